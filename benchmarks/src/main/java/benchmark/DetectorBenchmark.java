@@ -0,0 +1,141 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import servlet.Detector;
+import servlet.Threshold;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures every stage of the detection pipeline on synthetic images.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class DetectorBenchmark
+{
+	/**
+	 * Acceptable distance used by every benchmark
+	 */
+	static final int OK_DIST = 5;
+	/**
+	 * Discards the encoded output, so only encoding is measured
+	 */
+	static final OutputStream DISCARD = new OutputStream()
+	{
+		@Override
+		public void write(int b)
+		{
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len)
+		{
+		}
+	};
+
+	@Param({"256", "1024", "2048"})
+	int size;
+
+	@Param({"BLOB", "NOISE", "CHECKERBOARD", "SPIRAL"})
+	SyntheticImages.Pattern pattern;
+
+	/**
+	 * Input image
+	 */
+	BufferedImage image;
+	/**
+	 * Input image converted to a 256 color palette
+	 */
+	BufferedImage indexed;
+	/**
+	 * Input image encoded as PNG, for the decode stage
+	 */
+	byte[] encoded;
+	/**
+	 * Detector that has already run detect, used for the output stage
+	 */
+	Detector detected;
+	/**
+	 * Mask reused between threshold calls
+	 */
+	byte[] mask;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException
+	{
+		image = SyntheticImages.create(pattern, size);
+		indexed = new BufferedImage(size, size, BufferedImage.TYPE_BYTE_INDEXED);
+		indexed.createGraphics().drawImage(image, 0, 0, null);
+		ImageIO.setUseCache(false);
+		encoded = Files.readAllBytes(SyntheticImages.createFile(pattern, size).toPath());
+		detected = new Detector(image, SyntheticImages.BLOB_COLOR, OK_DIST);
+		detected.detect();
+	}
+
+	/**
+	 * Fresh copy of the image for {@link Detector#thresh}, which paints over its input
+	 */
+	@State(Scope.Thread)
+	public static class Copy
+	{
+		BufferedImage image;
+
+		@Setup(Level.Invocation)
+		public void setUp(DetectorBenchmark bench)
+		{
+			image = SyntheticImages.copy(bench.image);
+		}
+	}
+
+	@Benchmark
+	public BufferedImage thresh(Copy copy)
+	{
+		Detector.thresh(copy.image, SyntheticImages.BLOB_COLOR, OK_DIST);
+		return copy.image;
+	}
+
+	@Benchmark
+	public byte[] mask()
+	{
+		mask = Threshold.mask(image, SyntheticImages.BLOB_COLOR, OK_DIST, mask);
+		return mask;
+	}
+
+	@Benchmark
+	public byte[] maskIndexed()
+	{
+		mask = Threshold.mask(indexed, SyntheticImages.BLOB_COLOR, OK_DIST, mask);
+		return mask;
+	}
+
+	@Benchmark
+	public BufferedImage decode() throws IOException
+	{
+		return ImageIO.read(new ByteArrayInputStream(encoded));
+	}
+
+	@Benchmark
+	public void detect(Blackhole bh)
+	{
+		Detector detector = new Detector(image, SyntheticImages.BLOB_COLOR, OK_DIST);
+		detector.detect();
+		bh.consume(detector);
+	}
+
+	@Benchmark
+	public void writeResults() throws IOException
+	{
+		detected.writeResults(DISCARD, 1);
+	}
+}
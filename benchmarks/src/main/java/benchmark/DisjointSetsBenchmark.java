@@ -0,0 +1,72 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import servlet.DisjointSets;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link DisjointSets#union(int, int)} and {@link DisjointSets#find(int)}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class DisjointSetsBenchmark
+{
+	@Param({"65536", "1048576"})
+	int n;
+
+	/**
+	 * Values stored in the sets
+	 */
+	ArrayList<Integer> data;
+	/**
+	 * Random pairs to union, two entries per pair
+	 */
+	int[] pairs;
+
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		data = new ArrayList<>(n);
+		for(int i = 0; i < n; i++)
+			data.add(i);
+		Random random = new Random(n);
+		pairs = new int[2 * n];
+		for(int i = 0; i < pairs.length; i++)
+			pairs[i] = random.nextInt(n);
+	}
+
+	/**
+	 * Unions every element with its neighbor, the way detect unions a row of pixels.
+	 */
+	@Benchmark
+	public int unionChain()
+	{
+		DisjointSets<Integer> ds = new DisjointSets<>(data);
+		int root = 0;
+		for(int i = 1; i < n; i++)
+			root = ds.union(ds.find(i - 1), ds.find(i));
+		return root;
+	}
+
+	/**
+	 * Unions random pairs and then finds the root of every element.
+	 */
+	@Benchmark
+	public int unionRandomThenFind()
+	{
+		DisjointSets<Integer> ds = new DisjointSets<>(data);
+		for(int i = 0; i < pairs.length; i += 2)
+			ds.union(ds.find(pairs[i]), ds.find(pairs[i + 1]));
+		int sum = 0;
+		for(int i = 0; i < n; i++)
+			sum += ds.find(i);
+		return sum;
+	}
+}
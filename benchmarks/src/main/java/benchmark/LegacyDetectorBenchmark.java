@@ -0,0 +1,72 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import servlet.Detector;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the original {@link servlet.DisjointSets} detection path.
+ * Kept to smaller images because it allocates several objects per pixel.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class LegacyDetectorBenchmark
+{
+	@Param({"256", "512"})
+	int size;
+
+	@Param({"BLOB", "NOISE", "CHECKERBOARD", "SPIRAL"})
+	SyntheticImages.Pattern pattern;
+
+	/**
+	 * Input image
+	 */
+	BufferedImage image;
+
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		image = SyntheticImages.create(pattern, size);
+	}
+
+	/**
+	 * Fresh copy of the image, legacy detection paints over its input
+	 */
+	@State(Scope.Thread)
+	public static class Copy
+	{
+		BufferedImage image;
+
+		@Setup(Level.Invocation)
+		public void setUp(LegacyDetectorBenchmark bench)
+		{
+			image = SyntheticImages.copy(bench.image);
+		}
+	}
+
+	@Benchmark
+	public void detect(Copy copy, Blackhole bh)
+	{
+		Detector detector = new Detector(copy.image, SyntheticImages.BLOB_COLOR, DetectorBenchmark.OK_DIST);
+		detector.setLegacyLabeling(true);
+		detector.detect();
+		bh.consume(detector);
+	}
+
+	@Benchmark
+	public void detectAndOutput(Copy copy) throws IOException
+	{
+		Detector detector = new Detector(copy.image, SyntheticImages.BLOB_COLOR, DetectorBenchmark.OK_DIST);
+		detector.setLegacyLabeling(true);
+		detector.detect();
+		detector.writeResults(DetectorBenchmark.DISCARD, 1);
+	}
+}
@@ -0,0 +1,134 @@
+package benchmark;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Builds square test images with different blob layouts.
+ * Blob pixels use {@link #BLOB_COLOR}, everything else is white.
+ */
+public class SyntheticImages
+{
+	/**
+	 * Color of the blob pixels
+	 */
+	public static final Color BLOB_COLOR = new Color(255, 0, 0);
+
+	/**
+	 * Blob layouts
+	 */
+	public enum Pattern
+	{
+		/**
+		 * One large blob covering most of the image
+		 */
+		BLOB,
+		/**
+		 * Every pixel is a blob pixel with probability 1/2
+		 */
+		NOISE,
+		/**
+		 * Alternating pixels, every blob pixel is its own blob
+		 */
+		CHECKERBOARD,
+		/**
+		 * One long, one pixel wide path winding to the center
+		 */
+		SPIRAL
+	}
+
+	/**
+	 * Creates an image.
+	 *
+	 * @param pattern Blob layout
+	 * @param size    Width and height of the image
+	 * @return TYPE_INT_RGB image
+	 */
+	public static BufferedImage create(Pattern pattern, int size)
+	{
+		BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+		int white = Color.WHITE.getRGB(), blob = BLOB_COLOR.getRGB();
+		Random random = new Random(size);
+
+		for(int y = 0; y < size; y++){
+			for(int x = 0; x < size; x++){
+				boolean on;
+				switch(pattern){
+					case BLOB:
+						on = x >= size/8 && x < size - size/8 && y >= size/8 && y < size - size/8;
+						break;
+					case NOISE:
+						on = random.nextBoolean();
+						break;
+					case CHECKERBOARD:
+						on = ((x + y) & 1) == 0;
+						break;
+					default:
+						on = false;
+				}
+				image.setRGB(x, y, on ? blob : white);
+			}
+		}
+		if(pattern == Pattern.SPIRAL)
+			drawSpiral(image, blob);
+		return image;
+	}
+
+	/**
+	 * Draws a square spiral with one pixel gaps between its arms.
+	 *
+	 * @param image Image to draw on
+	 * @param rgb   Color of the spiral
+	 */
+	private static void drawSpiral(BufferedImage image, int rgb)
+	{
+		int left = 0, top = 0, right = image.getWidth() - 1, bottom = image.getHeight() - 1;
+		while(left <= right && top <= bottom){
+			for(int x = left; x <= right; x++)
+				image.setRGB(x, top, rgb);
+			for(int y = top; y <= bottom; y++)
+				image.setRGB(right, y, rgb);
+			for(int x = right; x >= left; x--)
+				image.setRGB(x, bottom, rgb);
+			for(int y = bottom; y >= top + 2; y--)
+				image.setRGB(left, y, rgb);
+			if(left + 1 <= right && top + 2 <= bottom)
+				image.setRGB(left + 1, top + 2, rgb);   // connect to the next ring
+			left += 2; top += 2; right -= 2; bottom -= 2;
+		}
+	}
+
+	/**
+	 * Copies an image, for detections that paint over their input.
+	 *
+	 * @param src Image
+	 * @return Copy of the same type
+	 */
+	public static BufferedImage copy(BufferedImage src)
+	{
+		BufferedImage image = new BufferedImage(src.getWidth(), src.getHeight(), src.getType());
+		image.setData(src.getRaster());
+		return image;
+	}
+
+	/**
+	 * Creates an image and saves it as a temporary PNG file,
+	 * for measuring how long decoding it takes.
+	 *
+	 * @param pattern Blob layout
+	 * @param size    Width and height of the image
+	 * @return PNG file, deleted when the JVM exits
+	 * @throws IOException If the file cannot be written
+	 */
+	public static File createFile(Pattern pattern, int size) throws IOException
+	{
+		File file = File.createTempFile("bench-" + pattern + "-" + size + "-", ".png");
+		file.deleteOnExit();
+		ImageIO.write(create(pattern, size), "png", file);
+		return file;
+	}
+}
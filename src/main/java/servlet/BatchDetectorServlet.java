@@ -0,0 +1,523 @@
+package servlet;
+
+import com.google.gson.Gson;
+
+import javax.imageio.ImageIO;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.MultipartConfig;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.Part;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Detects blobs in many images with one request.
+ *
+ * POST /batch takes the color fields of /colorDetector and either a ZIP of
+ * images as zip or any number of images as img. The upload is received
+ * first, kept in temporary files past 16 MB and limited to
+ * {@link #MAX_REQUEST_BYTES}; the images are then detected in parallel
+ * while the ZIP is unpacked, and the response is a ZIP that grows as
+ * images finish: name.png and name.json for every image, in the order they
+ * finish, then manifest.json with one line per image. An image that
+ * cannot be read or detected gets a manifest line with its error and the
+ * batch goes on; names that come twice get a -2, -3... suffix.
+ * With format=json only the statistics are returned, and connectivity=8
+ * joins pixels that only touch on a corner.
+ *
+ * Only a few images per core are held at a time, decoded or encoded, so
+ * memory does not grow with the size of the batch.
+ */
+@WebServlet(name = "batchDetector", urlPatterns = {"/batch"})
+@MultipartConfig(fileSizeThreshold = 16 * 1024 * 1024, maxFileSize = BatchDetectorServlet.MAX_REQUEST_BYTES,
+		maxRequestSize = BatchDetectorServlet.MAX_REQUEST_BYTES)
+public class BatchDetectorServlet extends HttpServlet
+{
+	/**
+	 * Largest upload accepted, 2 GB
+	 */
+	static final long MAX_REQUEST_BYTES = 2L * 1024 * 1024 * 1024;
+	/**
+	 * Shared serializer, Gson instances are thread safe
+	 */
+	private static final Gson GSON = new Gson();
+
+	/**
+	 * Runs the detections of every batch
+	 */
+	private DetectionExecutor executor;
+	/**
+	 * Output of recent detections, shared with {@link OnlineBlobDetector}
+	 */
+	private ResultCache cache;
+	/**
+	 * Stage timings and counters, shared with {@link MetricsServlet}
+	 */
+	private DetectorMetrics metrics;
+	/**
+	 * Largest number of images of one batch held at a time
+	 */
+	private int inFlight;
+	/**
+	 * Largest image accepted inside a batch
+	 */
+	private long maxImageBytes;
+
+	@Override
+	public void init() throws ServletException
+	{
+		super.init();
+		ImageIO.setUseCache(false);
+		int cores = Runtime.getRuntime().availableProcessors();
+		int workers = Integer.getInteger("detector.batch.workers", cores);
+		executor = new DetectionExecutor("batch", workers, Integer.getInteger("detector.batch.queue", workers));
+		inFlight = Integer.getInteger("detector.batch.inFlight", 2 * workers);
+		maxImageBytes = Long.getLong("detector.batch.maxImageBytes", 256L * 1024 * 1024);
+		cache = ResultCache.get(getServletContext());
+		metrics = DetectorMetrics.get(getServletContext());
+		metrics.register("batch", executor);
+	}
+
+	@Override
+	protected void doPost(HttpServletRequest request, HttpServletResponse response)
+			throws ServletException, IOException
+	{
+		List<Target> targets;
+		int k, connectivity;
+		try {
+			targets = DetectionRequest.parseTargets(request);
+			k = DetectionRequest.parseK(request);
+			connectivity = DetectionRequest.parseConnectivity(request);
+		}catch (IllegalArgumentException e){
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+			return;
+		}
+		boolean json = "json".equals(request.getParameter("format"));
+
+		List<Part> images = new ArrayList<>();
+		try {
+			for(Part part : request.getParts())
+				if((part.getName().equals("zip") || part.getName().equals("img")) && part.getSize() > 0)
+					images.add(part);
+		}catch (IllegalStateException e){       // over the size limits of the multipart config
+			response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+					"A batch should be at most " + MAX_REQUEST_BYTES + " bytes");
+			return;
+		}
+		if(images.isEmpty()){
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Please upload a zip of images or some images");
+			return;
+		}
+
+		response.setContentType("application/zip");
+		response.setHeader("Content-Disposition", "attachment; filename=\"blobs.zip\"");
+		try(ZipOutputStream zip = new ZipOutputStream(response.getOutputStream())) {
+			Batch batch = new Batch(zip, response, targets, k, connectivity, json);
+			try {
+				for(Part part : images){
+					try(InputStream in = part.getInputStream()) {
+						if(part.getName().equals("img")){
+							String name = part.getSubmittedFileName() == null ? "image"
+									: Paths.get(part.getSubmittedFileName()).getFileName().toString();
+							addImage(batch, name, in);
+						}else {
+							addZip(batch, part, in);
+						}
+					}
+				}
+			}finally {
+				batch.finish();     // the manifest is written even if the client is gone or the upload is bad
+			}
+		}
+	}
+
+	/**
+	 * Reads one image and adds it to the batch, or records why it cannot be read.
+	 * @param batch Batch
+	 * @param name  Name of the image
+	 * @param in    Image stream, not closed
+	 * @throws IOException If the response cannot be written
+	 */
+	private void addImage(Batch batch, String name, InputStream in) throws IOException
+	{
+		byte[] bytes;
+		try {
+			bytes = readAll(in);
+		}catch (IOException e){
+			batch.fail(name, "Cannot read the image: " + e.getMessage());
+			return;
+		}
+		if(bytes == null)
+			batch.fail(name, "Image is larger than " + maxImageBytes + " bytes");
+		else
+			batch.add(name, bytes);
+	}
+
+	/**
+	 * Adds every image of an uploaded ZIP to the batch. A damaged ZIP cannot
+	 * be read past the damage, so its remaining entries are given up on.
+	 * @param batch Batch
+	 * @param part  Uploaded ZIP
+	 * @param in    ZIP stream, not closed
+	 * @throws IOException If the response cannot be written
+	 */
+	private void addZip(Batch batch, Part part, InputStream in) throws IOException
+	{
+		ZipInputStream entries = new ZipInputStream(in);
+		String name = part.getSubmittedFileName() == null ? "zip" : part.getSubmittedFileName();
+		for(int images = 0; ; ){
+			ZipEntry entry;
+			try {
+				entry = entries.getNextEntry();
+			}catch (IOException e){     // the upload is spooled already, so this is the data
+				batch.fail(name, "Cannot read the zip: " + e.getMessage());
+				return;
+			}
+			if(entry == null){
+				if(images == 0)
+					batch.fail(name, "No images in the zip");
+				return;
+			}
+			if(entry.isDirectory())
+				continue;
+			images++;
+			String image = entryName(entry.getName());
+			byte[] bytes;
+			try {
+				bytes = readAll(entries);
+			}catch (IOException e){
+				batch.fail(image, "Cannot read the zip: " + e.getMessage());
+				return;
+			}
+			if(bytes == null)
+				batch.fail(image, "Image is larger than " + maxImageBytes + " bytes");    // the rest is skipped by getNextEntry
+			else
+				batch.add(image, bytes);
+		}
+	}
+
+	@Override
+	public void destroy()
+	{
+		executor.shutdown();
+	}
+
+	/**
+	 * Cleans up the name of an image in the uploaded ZIP, so that the output
+	 * cannot be extracted outside of the folder it is extracted into.
+	 * @param name Entry name
+	 * @return Relative name without .. or leading slashes
+	 */
+	private static String entryName(String name)
+	{
+		StringBuilder clean = new StringBuilder(name.length());
+		for(String part : name.replace('\\', '/').split("/")){
+			if(part.isEmpty() || part.equals(".") || part.equals(".."))
+				continue;
+			if(clean.length() > 0)
+				clean.append('/');
+			clean.append(part);
+		}
+		return clean.length() == 0 ? "image" : clean.toString();
+	}
+
+	/**
+	 * Reads a whole image into memory.
+	 * @param in Image stream, not closed
+	 * @return Image bytes, or null if the image is larger than maxImageBytes
+	 * @throws IOException If the stream cannot be read
+	 */
+	private byte[] readAll(InputStream in) throws IOException
+	{
+		long start = System.nanoTime();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[64 * 1024];
+		int read;
+		while((read = in.read(buffer)) != -1){
+			bytes.write(buffer, 0, read);
+			if(bytes.size() > maxImageBytes)
+				return null;
+		}
+		metrics.record(DetectorMetrics.Stage.UPLOAD, start);
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * The images of one request that are being detected, and the response they go to.
+	 * Only the request thread touches the ZIP, workers hand their output back through a queue.
+	 */
+	private class Batch
+	{
+		/**
+		 * Response ZIP
+		 */
+		private final ZipOutputStream zip;
+		/**
+		 * HTTP response, flushed after every image
+		 */
+		private final HttpServletResponse response;
+		/**
+		 * Shared colors and distances
+		 */
+		private final List<Target> targets;
+		/**
+		 * Number of blobs to recolor and report per target
+		 */
+		private final int k;
+		/**
+		 * 4 or 8, or 0 for the default of the detector
+		 */
+		private final int connectivity;
+		/**
+		 * True to skip the images
+		 */
+		private final boolean json;
+		/**
+		 * Output of the images that finished and are not written yet
+		 */
+		private final BlockingQueue<Output> done = new LinkedBlockingQueue<>();
+		/**
+		 * One line per written image
+		 */
+		private final List<Output> manifest = new ArrayList<>();
+		/**
+		 * Number of images submitted and not written yet
+		 */
+		private int pending;
+		/**
+		 * Names given out so far, so that no two entries of the response collide
+		 */
+		private final HashSet<String> names = new HashSet<>();
+
+		/**
+		 * Creates a batch
+		 */
+		private Batch(ZipOutputStream zip, HttpServletResponse response, List<Target> targets, int k,
+				int connectivity, boolean json)
+		{
+			this.zip = zip;
+			this.response = response;
+			this.targets = targets;
+			this.k = k;
+			this.connectivity = connectivity;
+			this.json = json;
+		}
+
+		/**
+		 * Starts the detection of one image, after writing out whatever has
+		 * finished. Waits for an image to finish first if too many are held.
+		 * @param name  Name of the image in the batch
+		 * @param bytes Encoded image
+		 * @throws IOException If the response cannot be written
+		 */
+		private void add(String name, byte[] bytes) throws IOException
+		{
+			for(Output output; (output = done.poll()) != null; )
+				write(output);
+			while(pending >= inFlight)
+				write(take());
+
+			pending++;
+			String unique = unique(name);
+			Runnable task = () -> done.add(detect(unique, bytes));
+			try {
+				executor.submit(task);
+			}catch (RejectedExecutionException e){
+				task.run();     // every worker is busy with other batches, do it here
+			}
+		}
+
+		/**
+		 * Records an image that could not be read, with a manifest line only.
+		 * @param name  Name of the image in the batch
+		 * @param error Reason of the failure
+		 */
+		private void fail(String name, String error)
+		{
+			Output output = new Output(unique(name));
+			output.error = error;
+			pending++;
+			done.add(output);
+		}
+
+		/**
+		 * Makes a name unique within the batch by adding -2, -3... before the
+		 * extension when it is already taken. manifest is kept for the manifest.
+		 * @param name Name of an image
+		 * @return Name no other image of the batch has
+		 */
+		private String unique(String name)
+		{
+			int dot = name.lastIndexOf('.');
+			if(dot <= name.lastIndexOf('/') + 1)
+				dot = name.length();        // no extension
+			String unique = name;
+			for(int n = 2; unique.equals("manifest") || !names.add(unique); n++)
+				unique = name.substring(0, dot) + "-" + n + name.substring(dot);
+			return unique;
+		}
+
+		/**
+		 * Writes out the remaining images and the manifest.
+		 * @throws IOException If the response cannot be written
+		 */
+		private void finish() throws IOException
+		{
+			while(pending > 0)
+				write(take());
+			zip.putNextEntry(new ZipEntry("manifest.json"));
+			for(Output output : manifest){
+				zip.write(GSON.toJson(output).getBytes(StandardCharsets.UTF_8));
+				zip.write('\n');
+			}
+			zip.closeEntry();
+		}
+
+		/**
+		 * Waits for the next image to finish.
+		 * @return Output of the image
+		 * @throws IOException If the wait is interrupted
+		 */
+		private Output take() throws IOException
+		{
+			try {
+				return done.take();
+			}catch (InterruptedException e){
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Batch was interrupted");
+			}
+		}
+
+		/**
+		 * Adds the output of one image to the ZIP and sends it on.
+		 * @param output Output of the image
+		 * @throws IOException If the response cannot be written
+		 */
+		private void write(Output output) throws IOException
+		{
+			pending--;
+			if(output.png != null){
+				zip.putNextEntry(new ZipEntry(output.name + ".png"));
+				zip.write(output.png);
+				zip.closeEntry();
+			}
+			if(output.json != null){
+				zip.putNextEntry(new ZipEntry(output.name + ".json"));
+				zip.write(output.json.getBytes(StandardCharsets.UTF_8));
+				zip.closeEntry();
+			}
+			zip.flush();
+			response.flushBuffer();
+			output.png = null;      // only the manifest line is kept
+			output.json = null;
+			manifest.add(output);
+		}
+
+		/**
+		 * Detects the blobs of one image, on a worker thread.
+		 * @param name  Name of the image in the batch
+		 * @param bytes Encoded image
+		 * @return Output of the image, never null
+		 */
+		private Output detect(String name, byte[] bytes)
+		{
+			long start = System.nanoTime();
+			Output output = new Output(name);
+			try {
+				String key = ResultCache.key(ResultCache.hash(new ByteArrayInputStream(bytes)), targets, k, null, connectivity);
+				ResultCache.Entry cached = cache.get(key, !json);
+				if(cached != null){
+					output.json = cached.getJson();
+					output.png = json ? null : cached.getPng();
+					output.blobCount = GSON.fromJson(output.json, DetectionResult.class).getBlobCount();
+					output.millis = (System.nanoTime() - start) / 1000000;
+					return output;
+				}
+
+				long decode = System.nanoTime();
+				BufferedImage image = ImageIO.read(new ByteArrayInputStream(bytes));
+				metrics.record(DetectorMetrics.Stage.DECODE, decode);
+				if(image == null){
+					output.error = "Unsupported image format";
+				}else {
+					Detector detector = new Detector(image, targets);
+					if(connectivity != 0)
+						detector.setConnectivity(connectivity);
+					detector.setMetrics(metrics);
+					detector.detect();
+					DetectionResult result = detector.getResult(k);
+					output.blobCount = result.getBlobCount();
+					output.json = result.toJson();
+					if(!json){
+						ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+						detector.writeResults(encoded, k);
+						output.png = encoded.toByteArray();
+					}
+					cache.put(key, output.json, output.png);
+				}
+			}catch (IOException | RuntimeException e){
+				output.error = "Detection failed: " + e.getMessage();
+			}
+			output.millis = (System.nanoTime() - start) / 1000000;
+			return output;
+		}
+	}
+
+	/**
+	 * Output of one image, and its line of the manifest
+	 */
+	private static class Output
+	{
+		/**
+		 * Name of the image in the batch
+		 */
+		private final String name;
+		/**
+		 * Number of blobs found
+		 */
+		private int blobCount;
+		/**
+		 * Time spent on the image
+		 */
+		private long millis;
+		/**
+		 * Reason of the failure, or null
+		 */
+		private String error;
+		/**
+		 * Blob statistics, not part of the manifest
+		 */
+		private transient String json;
+		/**
+		 * Encoded image, not part of the manifest
+		 */
+		private transient byte[] png;
+
+		/**
+		 * Creates the output of an image
+		 * @param name Name of the image in the batch
+		 */
+		private Output(String name)
+		{
+			this.name = name;
+		}
+	}
+}
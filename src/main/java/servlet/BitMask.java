@@ -0,0 +1,216 @@
+package servlet;
+
+import java.util.Arrays;
+
+/**
+ * BitMask holds one bit per pixel of a thresholded image, set where the
+ * pixel matches the color.
+ *
+ * Every row is stored in its own run of longs, pixel x of a row being bit
+ * x % 64 of word x / 64, so the lowest set bit of a word is its leftmost
+ * matching pixel. A mask is 8 times smaller than a byte per pixel mask and
+ * 32 times smaller than an ARGB image, and {@link LabelEngine} skips a
+ * word of background at a time.
+ */
+public class BitMask
+{
+	/**
+	 * Size of the image
+	 */
+	private final int width, height;
+	/**
+	 * Number of longs in a row
+	 */
+	private final int wordsPerRow;
+	/**
+	 * Bits of every row, row-major; bits past the width are always 0
+	 */
+	private final long[] words;
+
+	/**
+	 * Creates an empty mask.
+	 *
+	 * @param width  Width of the image
+	 * @param height Height of the image
+	 */
+	public BitMask(int width, int height)
+	{
+		if(width < 0 || height < 0)
+			throw new IllegalArgumentException("The size should not be negative, current size=" + width + "x" + height);
+		this.width = width;
+		this.height = height;
+		this.wordsPerRow = (width + 63) >>> 6;
+		this.words = new long[wordsPerRow * height];
+	}
+
+	/**
+	 * Returns an empty mask of the given size, reusing the old one when it fits.
+	 *
+	 * @param mask   Mask to reuse, or null
+	 * @param width  Width of the image
+	 * @param height Height of the image
+	 * @return Empty mask
+	 */
+	static BitMask reuse(BitMask mask, int width, int height)
+	{
+		if(mask == null || mask.width != width || mask.height != height)
+			return new BitMask(width, height);
+		mask.clear();
+		return mask;
+	}
+
+	/**
+	 * Returns whether a pixel is set.
+	 *
+	 * @param x Column of the pixel
+	 * @param y Row of the pixel
+	 * @return True if the pixel matched
+	 */
+	public boolean get(int x, int y)
+	{
+		check(x, y);
+		return (words[y * wordsPerRow + (x >>> 6)] & (1L << x)) != 0;
+	}
+
+	/**
+	 * Sets a pixel.
+	 *
+	 * @param x Column of the pixel
+	 * @param y Row of the pixel
+	 */
+	public void set(int x, int y)
+	{
+		check(x, y);
+		words[y * wordsPerRow + (x >>> 6)] |= 1L << x;
+	}
+
+	/**
+	 * Clears every pixel.
+	 */
+	public void clear()
+	{
+		Arrays.fill(words, 0L);
+	}
+
+	/**
+	 * Sets every pixel of a rectangle.
+	 *
+	 * @param x0 First column
+	 * @param y0 First row
+	 * @param x1 Column after the last
+	 * @param y1 Row after the last
+	 */
+	void fill(int x0, int y0, int x1, int y1)
+	{
+		if(x0 < 0 || y0 < 0 || x1 > width || y1 > height)
+			throw new IllegalArgumentException("Out of bounds");
+		if(x0 >= x1)
+			return;
+		int first = x0 >>> 6, last = (x1 - 1) >>> 6;
+		long head = -1L << x0, tail = -1L >>> (63 - ((x1 - 1) & 63));
+		for(int y = y0; y < y1; y++){
+			int base = y * wordsPerRow;
+			if(first == last){
+				words[base + first] |= head & tail;
+				continue;
+			}
+			words[base + first] |= head;
+			for(int i = first + 1; i < last; i++)
+				words[base + i] = -1L;
+			words[base + last] |= tail;
+		}
+	}
+
+	/**
+	 * Clears the pixels that are not set in another mask of the same size.
+	 * @param other Mask
+	 */
+	void and(BitMask other)
+	{
+		if(other.width != width || other.height != height)
+			throw new IllegalArgumentException("The masks should have the same size");
+		for(int i = 0; i < words.length; i++)
+			words[i] &= other.words[i];
+	}
+
+	/**
+	 * Clears the bytes of a byte per pixel mask of the same size where
+	 * this mask is not set.
+	 * @param mask One byte per pixel, row-major
+	 */
+	void retain(byte[] mask)
+	{
+		for(int y = 0; y < height; y++){
+			for(int w = 0; w < wordsPerRow; w++){
+				long word = words[y * wordsPerRow + w];
+				if(word == -1L)
+					continue;
+				int x0 = w << 6, x1 = Math.min(x0 + 64, width), offset = y * width;
+				if(word == 0){
+					Arrays.fill(mask, offset + x0, offset + x1, (byte)0);
+					continue;
+				}
+				for(int x = x0; x < x1; x++)
+					if((word & (1L << x)) == 0)
+						mask[offset + x] = 0;
+			}
+		}
+	}
+
+	/**
+	 * Counts the pixels that are set.
+	 * @return Number of pixels
+	 */
+	public long cardinality()
+	{
+		long bits = 0;
+		for(long word : words)
+			bits += Long.bitCount(word);
+		return bits;
+	}
+
+	/**
+	 * Returns the width of the image.
+	 * @return Pixels
+	 */
+	public int getWidth()
+	{
+		return width;
+	}
+
+	/**
+	 * Returns the height of the image.
+	 * @return Pixels
+	 */
+	public int getHeight()
+	{
+		return height;
+	}
+
+	/**
+	 * Returns the number of longs in a row.
+	 * @return Words per row
+	 */
+	int getWordsPerRow()
+	{
+		return wordsPerRow;
+	}
+
+	/**
+	 * Returns the bits of every row, row-major.
+	 * @return Backing array, shared with the mask
+	 */
+	long[] getWords()
+	{
+		return words;
+	}
+
+	/**
+	 * Checks that a pixel is inside the image.
+	 */
+	private void check(int x, int y)
+	{
+		if(x < 0 || x >= width || y < 0 || y >= height)
+			throw new IllegalArgumentException("Out of bounds");
+	}
+}
@@ -0,0 +1,169 @@
+package servlet;
+
+import java.awt.*;
+
+/**
+ * Blob holds the statistics of one connected component:
+ * its area, bounding box, centroid and mean color.
+ *
+ * The statistics are running sums, so a blob can be grown one pixel at a
+ * time and two blobs can be merged when they turn out to be connected.
+ */
+public class Blob
+{
+	/**
+	 * Number of pixels in the blob
+	 */
+	private int area;
+	/**
+	 * Bounding box of the blob, inclusive
+	 */
+	private int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = -1, maxY = -1;
+	/**
+	 * Sum of the pixel coordinates
+	 */
+	private long sumX, sumY;
+	/**
+	 * Sum of the pixel colors
+	 */
+	private long sumRed, sumGreen, sumBlue;
+
+	/**
+	 * Creates an empty blob.
+	 */
+	Blob()
+	{
+	}
+
+	/**
+	 * Creates a blob from sums collected elsewhere.
+	 */
+	Blob(int area, int minX, int minY, int maxX, int maxY,
+			long sumX, long sumY, long sumRed, long sumGreen, long sumBlue)
+	{
+		this.area = area;
+		this.minX = minX;
+		this.minY = minY;
+		this.maxX = maxX;
+		this.maxY = maxY;
+		this.sumX = sumX;
+		this.sumY = sumY;
+		this.sumRed = sumRed;
+		this.sumGreen = sumGreen;
+		this.sumBlue = sumBlue;
+	}
+
+	/**
+	 * Adds a pixel to the blob.
+	 *
+	 * @param x   Column of the pixel
+	 * @param y   Row of the pixel
+	 * @param rgb Color of the pixel
+	 */
+	void add(int x, int y, int rgb)
+	{
+		area++;
+		if(x < minX) minX = x;
+		if(x > maxX) maxX = x;
+		if(y < minY) minY = y;
+		if(y > maxY) maxY = y;
+		sumX += x;
+		sumY += y;
+		sumRed += (rgb >> 16) & 0xFF;
+		sumGreen += (rgb >> 8) & 0xFF;
+		sumBlue += rgb & 0xFF;
+	}
+
+	/**
+	 * Adds all the pixels of another blob to this blob.
+	 *
+	 * @param other Another Blob
+	 */
+	void merge(Blob other)
+	{
+		if(other == null)
+			throw new NullPointerException("Null Blob");
+		area += other.area;
+		minX = Math.min(minX, other.minX);
+		maxX = Math.max(maxX, other.maxX);
+		minY = Math.min(minY, other.minY);
+		maxY = Math.max(maxY, other.maxY);
+		sumX += other.sumX;
+		sumY += other.sumY;
+		sumRed += other.sumRed;
+		sumGreen += other.sumGreen;
+		sumBlue += other.sumBlue;
+	}
+
+	/**
+	 * Moves the blob, for a blob found in a region of a larger image.
+	 *
+	 * @param dx Columns to add
+	 * @param dy Rows to add
+	 */
+	void translate(int dx, int dy)
+	{
+		if(area == 0)
+			return;
+		minX += dx;
+		maxX += dx;
+		minY += dy;
+		maxY += dy;
+		sumX += (long)dx * area;
+		sumY += (long)dy * area;
+	}
+
+	/**
+	 * Returns the number of pixels in the blob.
+	 * @return Area
+	 */
+	public int getArea()
+	{
+		return area;
+	}
+
+	/**
+	 * Returns the bounding box of the blob.
+	 * @return Smallest rectangle holding every pixel of the blob
+	 */
+	public Rectangle getBounds()
+	{
+		return new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+	}
+
+	/**
+	 * Returns the mean column of the blob.
+	 * @return Centroid x
+	 */
+	public double getCentroidX()
+	{
+		return area == 0 ? 0 : sumX / (double)area;
+	}
+
+	/**
+	 * Returns the mean row of the blob.
+	 * @return Centroid y
+	 */
+	public double getCentroidY()
+	{
+		return area == 0 ? 0 : sumY / (double)area;
+	}
+
+	/**
+	 * Returns the mean color of the pixels in the blob.
+	 * @return Mean color
+	 */
+	public Color getMeanColor()
+	{
+		if(area == 0)
+			return Color.BLACK;
+		return new Color((int)(sumRed / area), (int)(sumGreen / area), (int)(sumBlue / area));
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("Blob[area=%d, bounds=(%d,%d %dx%d), centroid=(%.1f,%.1f)]",
+				area, minX, minY, maxX - minX + 1, maxY - minY + 1, getCentroidX(), getCentroidY());
+	}
+}
@@ -0,0 +1,430 @@
+package servlet;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.LongConsumer;
+
+/**
+ * BlobTracker follows blobs from one frame of a sequence to the next, so
+ * a blob keeps the same id for as long as it stays in view.
+ *
+ * A blob continues a track of the same target when their bounding boxes
+ * overlap enough, or else when its centroid is close to where the track
+ * was expected to be, from its last position and speed. The best pairs
+ * are taken first and every track and blob is used at most once. Tracks
+ * are looked up through a grid of cells, so a frame costs about linear
+ * time in the number of blobs instead of tracks times blobs. A track that
+ * finds no blob is kept for a few frames, in case its blob was only
+ * hidden, and then dropped.
+ */
+public class BlobTracker
+{
+	/**
+	 * Largest distance accepted, well beyond the diagonal of any frame
+	 */
+	public static final double MAX_DISTANCE = 1 << 24;
+
+	/**
+	 * Largest distance between the expected and the actual centroid of a blob
+	 */
+	private final double maxDistance;
+	/**
+	 * Smallest overlap of the bounding boxes, as intersection over union, that matches without looking at the distance
+	 */
+	private final double minOverlap;
+	/**
+	 * Number of frames a track is kept without finding its blob
+	 */
+	private final int maxMisses;
+	/**
+	 * Side of a grid cell in pixels
+	 */
+	private final int cellSize;
+	/**
+	 * Tracks that are still followed
+	 */
+	private List<Track> tracks = new ArrayList<>();
+	/**
+	 * Id of the next new track
+	 */
+	private long nextId = 1;
+	/**
+	 * Number of frames seen
+	 */
+	private int frame;
+	/**
+	 * Number of tracks started and dropped by the last update
+	 */
+	private int created, lost;
+
+	/**
+	 * Creates a tracker.
+	 *
+	 * @param maxDistance Largest distance in pixels between the expected and the actual centroid of a blob
+	 * @param minOverlap  Overlap of the bounding boxes, 0 to 1, that is a match whatever the distance
+	 * @param maxMisses   Number of frames a track is kept without finding its blob
+	 */
+	public BlobTracker(double maxDistance, double minOverlap, int maxMisses)
+	{
+		if(!(maxDistance >= 0 && maxDistance <= MAX_DISTANCE))
+			throw new IllegalArgumentException("maxDistance should be between 0 and " + (int)MAX_DISTANCE
+					+ ", current maxDistance=" + maxDistance);
+		if(!(minOverlap > 0 && minOverlap <= 1))
+			throw new IllegalArgumentException("minOverlap should be between 0 and 1, current minOverlap=" + minOverlap);
+		if(maxMisses < 0)
+			throw new IllegalArgumentException("maxMisses should not be negative, current maxMisses=" + maxMisses);
+		this.maxDistance = maxDistance;
+		this.minOverlap = minOverlap;
+		this.maxMisses = maxMisses;
+		this.cellSize = Math.max(16, (int)Math.ceil(maxDistance));
+	}
+
+	/**
+	 * Matches the blobs of the next frame to the tracks.
+	 *
+	 * @param blobSets Blobs of the frame for every target, in the order of the targets
+	 * @return Track of every blob, in the same order as the blobs
+	 */
+	public List<Track> update(List<List<Blob>> blobSets)
+	{
+		frame++;
+		int total = 0;
+		Rectangle area = null;      // blobs only look in the cells of their own box
+		for(List<Blob> blobs : blobSets){
+			total += blobs.size();
+			for(Blob blob : blobs)
+				area = area == null ? blob.getBounds() : area.union(blob.getBounds());
+		}
+
+		HashMap<Long, List<Track>> grid = new HashMap<>();
+		for(Track track : tracks){
+			track.matched = false;
+			track.lastCandidate = -1;
+			if(area == null)
+				continue;
+			int steps = track.misses + 1;
+			double x = track.x + track.velocityX * steps, y = track.y + track.velocityY * steps;
+			forCells(x - maxDistance, y - maxDistance, x + track.width + maxDistance, y + track.height + maxDistance, area,
+					cell -> grid.computeIfAbsent(cell, c -> new ArrayList<>()).add(track));
+		}
+
+		Blob[] blobs = new Blob[total];
+		Rectangle[] bounds = new Rectangle[total];
+		int[] targets = new int[total];
+		List<Candidate> candidates = new ArrayList<>();
+		int index = 0;
+		for(int target = 0; target < blobSets.size(); target++){
+			for(Blob blob : blobSets.get(target)){
+				int b = index++;
+				blobs[b] = blob;
+				bounds[b] = blob.getBounds();
+				targets[b] = target;
+				Rectangle r = bounds[b];
+				forCells(r.x, r.y, r.x + r.width - 1, r.y + r.height - 1, area, cell -> {
+					List<Track> near = grid.get(cell);
+					if(near == null)
+						return;
+					for(Track track : near){
+						if(track.target != targets[b] || track.lastCandidate == b)
+							continue;
+						track.lastCandidate = b;    // a track can sit in several cells of the blob
+						double score = score(track, blobs[b], bounds[b]);
+						if(score > 0)
+							candidates.add(new Candidate(track, b, score));
+					}
+				});
+			}
+		}
+
+		candidates.sort((c1, c2) -> Double.compare(c2.score, c1.score));
+		Track[] matches = new Track[total];
+		for(Candidate candidate : candidates){
+			if(candidate.track.matched || matches[candidate.blob] != null)
+				continue;
+			candidate.track.matched = true;
+			matches[candidate.blob] = candidate.track;
+			candidate.track.follow(blobs[candidate.blob], bounds[candidate.blob], frame);
+		}
+
+		List<Track> kept = new ArrayList<>(tracks.size() + total);
+		lost = 0;
+		for(Track track : tracks){
+			if(track.matched)
+				kept.add(track);
+			else if(++track.misses > maxMisses)
+				lost++;
+			else
+				kept.add(track);
+		}
+		created = 0;
+		for(int b = 0; b < total; b++){
+			if(matches[b] == null){
+				matches[b] = new Track(nextId++, targets[b], blobs[b], bounds[b], frame);
+				kept.add(matches[b]);
+				created++;
+			}
+		}
+		tracks = kept;
+		return Arrays.asList(matches);
+	}
+
+	/**
+	 * Returns the number of tracks started by the last update.
+	 * @return New tracks
+	 */
+	public int getCreated()
+	{
+		return created;
+	}
+
+	/**
+	 * Returns the number of tracks dropped by the last update.
+	 * @return Lost tracks
+	 */
+	public int getLost()
+	{
+		return lost;
+	}
+
+	/**
+	 * Returns the number of tracks followed, including the ones that missed the last frames.
+	 * @return Live tracks
+	 */
+	public int getTrackCount()
+	{
+		return tracks.size();
+	}
+
+	/**
+	 * Scores how well a blob continues a track.
+	 * @param track  Track
+	 * @param blob   Blob of the new frame
+	 * @param bounds Bounding box of the blob
+	 * @return Above 1 for overlapping boxes, between 0 and 1 for close centroids, 0 for no match
+	 */
+	private double score(Track track, Blob blob, Rectangle bounds)
+	{
+		int steps = track.misses + 1;
+		double x = track.x + track.velocityX * steps, y = track.y + track.velocityY * steps;
+		double ix = Math.min(x + track.width, bounds.x + bounds.width) - Math.max(x, bounds.x);
+		double iy = Math.min(y + track.height, bounds.y + bounds.height) - Math.max(y, bounds.y);
+		if(ix > 0 && iy > 0){
+			double intersection = ix * iy;
+			double overlap = intersection / ((double)track.width * track.height + (double)bounds.width * bounds.height - intersection);
+			if(overlap >= minOverlap)
+				return 1 + overlap;
+		}
+		double dx = track.centroidX + track.velocityX * steps - blob.getCentroidX();
+		double dy = track.centroidY + track.velocityY * steps - blob.getCentroidY();
+		double distance = Math.sqrt(dx * dx + dy * dy);
+		return distance <= maxDistance ? 1 - distance / (maxDistance + 1) : 0;
+	}
+
+	/**
+	 * Runs an action for every grid cell a box touches within an area.
+	 * @param x1     Left edge
+	 * @param y1     Top edge
+	 * @param x2     Right edge
+	 * @param y2     Bottom edge
+	 * @param area   Part of the frame that matters, the box is clipped to it
+	 * @param action Receives the key of every cell
+	 */
+	private void forCells(double x1, double y1, double x2, double y2, Rectangle area, LongConsumer action)
+	{
+		x1 = Math.max(x1, area.x);
+		y1 = Math.max(y1, area.y);
+		x2 = Math.min(x2, area.x + area.width - 1);
+		y2 = Math.min(y2, area.y + area.height - 1);
+		if(x1 > x2 || y1 > y2)
+			return;
+		long col1 = (long)Math.floor(x1 / cellSize), col2 = (long)Math.floor(x2 / cellSize);
+		long row1 = (long)Math.floor(y1 / cellSize), row2 = (long)Math.floor(y2 / cellSize);
+		for(long row = row1; row <= row2; row++)
+			for(long col = col1; col <= col2; col++)
+				action.accept(row << 32 ^ (col & 0xFFFFFFFFL));
+	}
+
+	/**
+	 * A blob followed across frames
+	 */
+	public static class Track
+	{
+		/**
+		 * Track id, never reused
+		 */
+		private final long id;
+		/**
+		 * Index of the target of the blob
+		 */
+		private final int target;
+		/**
+		 * Frame the track started in
+		 */
+		private final int firstFrame;
+		/**
+		 * Blob the track found last
+		 */
+		private Blob blob;
+		/**
+		 * Bounding box of that blob
+		 */
+		private int x, y, width, height;
+		/**
+		 * Centroid of that blob
+		 */
+		private double centroidX, centroidY;
+		/**
+		 * Movement of the centroid per frame
+		 */
+		private double velocityX, velocityY;
+		/**
+		 * Number of frames the blob was found in
+		 */
+		private int age = 1;
+		/**
+		 * Number of frames in a row the blob was not found in
+		 */
+		private int misses;
+		/**
+		 * True once a blob of the current frame is matched
+		 */
+		private boolean matched;
+		/**
+		 * Last blob the track was scored against in the current frame
+		 */
+		private int lastCandidate;
+
+		/**
+		 * Starts a track
+		 */
+		private Track(long id, int target, Blob blob, Rectangle bounds, int frame)
+		{
+			this.id = id;
+			this.target = target;
+			this.firstFrame = frame;
+			set(blob, bounds);
+		}
+
+		/**
+		 * Moves the track to the blob it was matched with.
+		 */
+		private void follow(Blob blob, Rectangle bounds, int frame)
+		{
+			int steps = misses + 1;
+			velocityX = (blob.getCentroidX() - centroidX) / steps;
+			velocityY = (blob.getCentroidY() - centroidY) / steps;
+			set(blob, bounds);
+			age++;
+			misses = 0;
+		}
+
+		/**
+		 * Remembers the position of a blob.
+		 */
+		private void set(Blob blob, Rectangle bounds)
+		{
+			this.blob = blob;
+			this.x = bounds.x;
+			this.y = bounds.y;
+			this.width = bounds.width;
+			this.height = bounds.height;
+			this.centroidX = blob.getCentroidX();
+			this.centroidY = blob.getCentroidY();
+		}
+
+		/**
+		 * Returns the track id.
+		 * @return Id, the same in every frame
+		 */
+		public long getId()
+		{
+			return id;
+		}
+
+		/**
+		 * Returns the target of the blob.
+		 * @return Target index
+		 */
+		public int getTarget()
+		{
+			return target;
+		}
+
+		/**
+		 * Returns the blob the track found last.
+		 * @return Blob
+		 */
+		public Blob getBlob()
+		{
+			return blob;
+		}
+
+		/**
+		 * Returns the number of frames the blob was found in.
+		 * @return Age in frames
+		 */
+		public int getAge()
+		{
+			return age;
+		}
+
+		/**
+		 * Returns the frame the track started in.
+		 * @return Frame number, the first frame is 1
+		 */
+		public int getFirstFrame()
+		{
+			return firstFrame;
+		}
+
+		/**
+		 * Returns the horizontal movement of the centroid per frame.
+		 * @return Pixels per frame
+		 */
+		public double getVelocityX()
+		{
+			return velocityX;
+		}
+
+		/**
+		 * Returns the vertical movement of the centroid per frame.
+		 * @return Pixels per frame
+		 */
+		public double getVelocityY()
+		{
+			return velocityY;
+		}
+	}
+
+	/**
+	 * A track and a blob that may continue it
+	 */
+	private static class Candidate
+	{
+		/**
+		 * Track
+		 */
+		private final Track track;
+		/**
+		 * Index of the blob in the frame
+		 */
+		private final int blob;
+		/**
+		 * How well the blob continues the track, higher is better
+		 */
+		private final double score;
+
+		/**
+		 * Creates a candidate pair
+		 */
+		private Candidate(Track track, int blob, double score)
+		{
+			this.track = track;
+			this.blob = blob;
+			this.score = score;
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package servlet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Disjoint sets of the integers 0 to n-1 that can be shared between threads
+ * without locks.
+ *
+ * Every element points to its parent in an atomic array and a root points
+ * to itself. Unions always link the larger root under the smaller one with
+ * a compare-and-set, so no cycle can ever form and the root of a set is its
+ * smallest element, the same convention as {@link LabelEngine}.
+ * Find halves the path with compare-and-set as well; a failed update only
+ * means another thread already shortened the path, so find never retries.
+ */
+public class ConcurrentDisjointSets
+{
+	/**
+	 * Parent of every element, a root is its own parent
+	 */
+	private final AtomicIntegerArray parent;
+
+	/**
+	 * Creates n sets that each hold a single element.
+	 *
+	 * @param n Number of elements
+	 */
+	public ConcurrentDisjointSets(int n)
+	{
+		parent = new AtomicIntegerArray(n);
+		for(int i = 0; i < n; i++)
+			parent.set(i, i);
+	}
+
+	/**
+	 * Finds the root of an element.
+	 * Halves the path between the element and its root.
+	 *
+	 * @param x Element
+	 * @return Root
+	 */
+	public int find(int x)
+	{
+		if(x < 0 || x >= parent.length())
+			throw new IllegalArgumentException("Out of bounds");
+		int p, gp;
+		while((p = parent.get(x)) != x){
+			gp = parent.get(p);
+			if(p != gp)
+				parent.compareAndSet(x, p, gp);     // path halving
+			x = gp;
+		}
+		return x;
+	}
+
+	/**
+	 * Unions the sets of two elements.
+	 * Unlike {@link DisjointSets#union(int, int)} the elements do not have to
+	 * be roots, since a root can change under another thread at any time.
+	 *
+	 * @param x Element
+	 * @param y Element
+	 * @return Root of the unioned set at the moment of the union
+	 */
+	public int union(int x, int y)
+	{
+		int small, big;
+		while(true){
+			x = find(x);
+			y = find(y);
+			if(x == y)
+				return x;
+			small = Math.min(x, y);
+			big = Math.max(x, y);
+			if(parent.compareAndSet(big, big, small))   // big is still a root
+				return small;
+		}
+	}
+
+	/**
+	 * Checks if two elements are in the same set.
+	 *
+	 * @param x Element
+	 * @param y Element
+	 * @return True if same set
+	 */
+	public boolean sameSet(int x, int y)
+	{
+		while(true){
+			x = find(x);
+			y = find(y);
+			if(x == y)
+				return true;
+			if(parent.get(x) == x)      // x was still a root, so the sets differ
+				return false;
+		}
+	}
+
+	/**
+	 * Returns the number of elements.
+	 *
+	 * @return Number of elements
+	 */
+	public int size()
+	{
+		return parent.length();
+	}
+
+	//main method
+	public static void main(String[] args) throws InterruptedException {
+		// Stress test: several threads union random pairs into one structure,
+		// then the partition is compared against the sequential DisjointSets.
+		// With n/4 pairs per run most sets stay small, so a lost union shows up.
+		int n = 200000, runs = 5, threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+		int pairsPerThread = n / 4 / threads;
+		for(int run = 0; run < runs; run++){
+			Random random = new Random(42 + run);
+			int[][] pairs = new int[threads][2 * pairsPerThread];
+			for(int[] list : pairs)
+				for(int i = 0; i < list.length; i++)
+					list[i] = random.nextInt(n);
+
+			ConcurrentDisjointSets concurrent = new ConcurrentDisjointSets(n);
+			Thread[] workers = new Thread[threads];
+			for(int t = 0; t < threads; t++){
+				final int[] list = pairs[t];
+				workers[t] = new Thread(() -> {
+					for(int i = 0; i < list.length; i += 2)
+						concurrent.union(list[i], list[i + 1]);
+				});
+				workers[t].start();
+			}
+			for(Thread worker : workers)
+				worker.join();
+
+			ArrayList<Integer> data = new ArrayList<>(n);
+			for(int i = 0; i < n; i++)
+				data.add(i);
+			DisjointSets<Integer> sequential = new DisjointSets<>(data);
+			for(int[] list : pairs)
+				for(int i = 0; i < list.length; i += 2)
+					sequential.union(sequential.find(list[i]), sequential.find(list[i + 1]));
+
+			// Same partition, rooted at its smallest member: every element must find
+			// the smallest member of its sequential set, and that member itself
+			int[] smallest = new int[n];
+			Arrays.fill(smallest, Integer.MAX_VALUE);
+			for(int i = 0; i < n; i++){
+				int root = sequential.find(i);
+				smallest[root] = Math.min(smallest[root], i);
+			}
+			int mismatches = 0, sets = 0;
+			for(int i = 0; i < n; i++){
+				int root = concurrent.find(i);
+				if(root != smallest[sequential.find(i)] || concurrent.find(root) != root)
+					mismatches++;
+				if(root == i)
+					sets++;
+			}
+			System.out.println("run " + run + ": " + threads + " threads, " + sets + " sets, " + mismatches + " mismatches");
+			if(mismatches != 0)
+				throw new AssertionError(mismatches + " elements are not in the set they should be in");
+		}
+	}
+}
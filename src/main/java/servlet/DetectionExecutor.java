@@ -0,0 +1,89 @@
+package servlet;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * DetectionExecutor runs detections on a fixed number of worker threads
+ * with a bounded queue in front of them.
+ *
+ * When every worker is busy and the queue is full, new work is rejected
+ * right away instead of piling up, so the caller can tell the client to
+ * come back later.
+ */
+public class DetectionExecutor
+{
+	/**
+	 * Worker threads and their queue
+	 */
+	private final ThreadPoolExecutor pool;
+
+	/**
+	 * Creates an executor.
+	 *
+	 * @param name          Prefix of the worker thread names
+	 * @param workers       Number of worker threads
+	 * @param queueCapacity Number of tasks that may wait for a worker
+	 */
+	public DetectionExecutor(String name, int workers, int queueCapacity)
+	{
+		if(workers < 1)
+			throw new IllegalArgumentException("workers should be greater than 0, current workers=" + workers);
+		AtomicInteger threadCount = new AtomicInteger();
+		ThreadFactory factory = task -> {
+			Thread thread = new Thread(task, name + "-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+		pool = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(Math.max(1, queueCapacity)), factory, new ThreadPoolExecutor.AbortPolicy());
+	}
+
+	/**
+	 * Queues a task.
+	 *
+	 * Throws RejectedExecutionException if the queue is full or the executor is shut down.
+	 *
+	 * @param task Task to run
+	 */
+	public void submit(Runnable task)
+	{
+		if(task == null)
+			throw new NullPointerException("Null task");
+		pool.execute(task);
+	}
+
+	/**
+	 * Returns the number of tasks waiting for a worker.
+	 * @return Queue depth
+	 */
+	public int getQueueDepth()
+	{
+		return pool.getQueue().size();
+	}
+
+	/**
+	 * Returns the number of tasks being run right now.
+	 * @return Active tasks
+	 */
+	public int getActiveCount()
+	{
+		return pool.getActiveCount();
+	}
+
+	/**
+	 * Stops accepting tasks and waits briefly for the running ones.
+	 */
+	public void shutdown()
+	{
+		pool.shutdown();
+		try {
+			pool.awaitTermination(10, TimeUnit.SECONDS);
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+	}
+}
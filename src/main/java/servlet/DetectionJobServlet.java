@@ -0,0 +1,287 @@
+package servlet;
+
+import javax.imageio.ImageIO;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.MultipartConfig;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs detections as background jobs, for images too large to be answered
+ * within one HTTP request.
+ *
+ * POST /jobs takes the same fields as /colorDetector and answers 202 with
+ * the job id right away. GET /jobs/{id} returns the state of the job; with
+ * wait=seconds it holds the request until the job finishes or the time is
+ * up, without holding a connector thread. GET /jobs/{id}/result returns the
+ * output in the requested format once the job is done, and DELETE /jobs/{id}
+ * forgets the job.
+ */
+@WebServlet(name = "detectionJobs", urlPatterns = {"/jobs", "/jobs/*"}, asyncSupported = true)
+@MultipartConfig(fileSizeThreshold = 16 * 1024 * 1024, maxFileSize = 256 * 1024 * 1024)
+public class DetectionJobServlet extends HttpServlet
+{
+	/**
+	 * Seconds a rejected client should wait before trying again
+	 */
+	private static final String RETRY_AFTER = "5";
+
+	/**
+	 * Background jobs
+	 */
+	private DetectionJobs jobs;
+	/**
+	 * Decoded uploads, shared with {@link ImageSessionServlet}
+	 */
+	private ImageSessionCache sessions;
+	/**
+	 * Longest time a status request may wait for a job to finish
+	 */
+	private long maxWaitMillis;
+	/**
+	 * Stage timings and counters, shared with {@link MetricsServlet}
+	 */
+	private DetectorMetrics metrics;
+
+	@Override
+	public void init() throws ServletException
+	{
+		super.init();
+		ImageIO.setUseCache(false);
+		int cores = Runtime.getRuntime().availableProcessors();
+		metrics = DetectorMetrics.get(getServletContext());
+		jobs = new DetectionJobs(Integer.getInteger("detector.jobs.concurrency", Math.max(1, cores / 2)),
+				Integer.getInteger("detector.jobs.queue", 64),
+				Long.getLong("detector.jobs.retention", 15 * 60) * 1000,
+				Integer.getInteger("detector.jobs.max", 1000),
+				Long.getLong("detector.jobs.bytes", 256L * 1024 * 1024),
+				ResultCache.get(getServletContext()),
+				metrics);
+		sessions = ImageSessionCache.get(getServletContext());
+		maxWaitMillis = Long.getLong("detector.jobs.maxWait", 30) * 1000;
+	}
+
+	@Override
+	protected void doPost(HttpServletRequest request, HttpServletResponse response)
+			throws ServletException, IOException
+	{
+		DetectionRequest detection;
+		try {
+			detection = DetectionRequest.parse(request);
+		}catch (IllegalArgumentException e){
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+			return;
+		}
+
+		ImageSessionCache.Session session = null;
+		Path upload = null;
+		String hash;
+		if(detection.getSession() != null){
+			session = sessions.get(detection.getSession());
+			if(session == null){
+				response.sendError(HttpServletResponse.SC_NOT_FOUND, "Unknown or expired session, please upload the image again");
+				return;
+			}
+			hash = session.getHash();
+		}else {
+			// the upload part is gone once this request is over, so the job keeps a copy on disk
+			long start = System.nanoTime();
+			MessageDigest digest = ResultCache.newDigest();
+			upload = Files.createTempFile("detector-job", ".upload");
+			try(InputStream fileContent = new DigestInputStream(detection.getImage().getInputStream(), digest)) {
+				Files.copy(fileContent, upload, StandardCopyOption.REPLACE_EXISTING);
+			}catch (IOException e){
+				Files.deleteIfExists(upload);
+				throw e;
+			}
+			hash = ResultCache.toHex(digest);
+			metrics.record(DetectorMetrics.Stage.UPLOAD, start);
+		}
+
+		DetectionJobs.Job job;
+		try {
+			job = jobs.submit(detection, upload, session, ResultCache.key(hash, detection.getTargets(), detection.getK(),
+					detection.getRoi(), detection.getConnectivity()));
+		}catch (RejectedExecutionException e){
+			response.setHeader("Retry-After", RETRY_AFTER);
+			response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many jobs in progress, try again later");
+			return;
+		}
+
+		response.setStatus(HttpServletResponse.SC_ACCEPTED);
+		response.setHeader("Location", jobUrl(request, job));
+		writeStatus(request, response, job);
+	}
+
+	@Override
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException
+	{
+		String[] path = splitPath(request);
+		DetectionJobs.Job job = path == null ? null : jobs.get(path[0]);
+		if(job == null){
+			response.sendError(HttpServletResponse.SC_NOT_FOUND, "Unknown or expired job");
+			return;
+		}
+
+		if(path.length == 2 && path[1].equals("result")){
+			writeResult(response, job);
+			return;
+		}
+		if(path.length != 1){
+			response.sendError(HttpServletResponse.SC_NOT_FOUND, "Unknown resource");
+			return;
+		}
+
+		long wait;
+		try {
+			wait = request.getParameter("wait") == null ? 0 : Long.parseLong(request.getParameter("wait")) * 1000;
+		}catch (NumberFormatException e){
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "wait should be a number of seconds");
+			return;
+		}
+		if(wait <= 0 || job.isFinished()){
+			writeStatus(request, response, job);
+			return;
+		}
+		longPoll(request, job, Math.min(wait, maxWaitMillis));
+	}
+
+	@Override
+	protected void doDelete(HttpServletRequest request, HttpServletResponse response) throws IOException
+	{
+		String[] path = splitPath(request);
+		if(path != null && path.length == 1 && jobs.remove(path[0]))
+			response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+		else
+			response.sendError(HttpServletResponse.SC_NOT_FOUND, "Unknown or expired job");
+	}
+
+	@Override
+	public void destroy()
+	{
+		jobs.shutdown();
+	}
+
+	/**
+	 * Answers a status request once the job finishes or the wait is over,
+	 * whichever comes first. The request is suspended in the meantime.
+	 * @param request HTTP request
+	 * @param job     Job
+	 * @param wait    Milliseconds to wait at most
+	 */
+	private void longPoll(HttpServletRequest request, DetectionJobs.Job job, long wait)
+	{
+		AsyncContext async = request.startAsync();
+		async.setTimeout(wait);
+		AtomicBoolean answered = new AtomicBoolean();
+		Runnable answer = () -> {
+			if(!answered.compareAndSet(false, true))
+				return;
+			try {
+				writeStatus((HttpServletRequest)async.getRequest(), (HttpServletResponse)async.getResponse(), job);
+			}catch (IOException ignored){
+				// client is gone
+			}finally {
+				async.complete();
+			}
+		};
+		async.addListener(new AsyncListener()
+		{
+			@Override
+			public void onTimeout(AsyncEvent event)
+			{
+				answer.run();
+			}
+
+			@Override
+			public void onComplete(AsyncEvent event)
+			{
+			}
+
+			@Override
+			public void onError(AsyncEvent event)
+			{
+				answered.set(true);
+			}
+
+			@Override
+			public void onStartAsync(AsyncEvent event)
+			{
+			}
+		});
+		job.whenFinished(answer);
+	}
+
+	/**
+	 * Writes the state of a job.
+	 * @param request  HTTP request
+	 * @param response HTTP response
+	 * @param job      Job
+	 * @throws IOException If the response cannot be written
+	 */
+	private static void writeStatus(HttpServletRequest request, HttpServletResponse response, DetectionJobs.Job job)
+			throws IOException
+	{
+		response.setContentType("application/json");
+		response.getWriter().print(job.toJson(jobUrl(request, job) + "/result"));
+	}
+
+	/**
+	 * Writes the output of a job, in the format the job was submitted with.
+	 * @param response HTTP response
+	 * @param job      Job
+	 * @throws IOException If the response cannot be written
+	 */
+	private static void writeResult(HttpServletResponse response, DetectionJobs.Job job) throws IOException
+	{
+		switch(job.getStatus()){
+			case DONE:
+				OnlineBlobDetector.respond(job.getDetection(), response, job.getJson(), job.getPng());
+				break;
+			case FAILED:
+				response.sendError(job.isInputError() ? HttpServletResponse.SC_BAD_REQUEST
+						: HttpServletResponse.SC_INTERNAL_SERVER_ERROR, job.getError());
+				break;
+			default:
+				response.sendError(HttpServletResponse.SC_CONFLICT, "Job is not finished yet");
+		}
+	}
+
+	/**
+	 * Returns the URL of a job.
+	 * @param request HTTP request
+	 * @param job     Job
+	 * @return Path of the job, including the context path
+	 */
+	private static String jobUrl(HttpServletRequest request, DetectionJobs.Job job)
+	{
+		return request.getContextPath() + "/jobs/" + job.getId();
+	}
+
+	/**
+	 * Splits the path after /jobs into its parts.
+	 * @param request HTTP request
+	 * @return Job id and what follows it, or null if there is no job id
+	 */
+	private static String[] splitPath(HttpServletRequest request)
+	{
+		String path = request.getPathInfo();
+		if(path == null || path.length() < 2)
+			return null;
+		return path.substring(1).split("/");
+	}
+}
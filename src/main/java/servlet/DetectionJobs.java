@@ -0,0 +1,509 @@
+package servlet;
+
+import com.google.gson.Gson;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * DetectionJobs runs detections in the background and keeps their output
+ * until the client comes back for it.
+ *
+ * Jobs run on their own {@link DetectionExecutor}, so long detections never
+ * hold a connector thread or compete with /colorDetector for its workers.
+ * A finished job is kept for a retention period and then forgotten; the
+ * number of jobs held at once and the bytes of the results they hold are
+ * bounded as well. A queued upload waits in a temporary file, not on the heap.
+ */
+public class DetectionJobs
+{
+	/**
+	 * Shared serializer, Gson instances are thread safe
+	 */
+	private static final Gson GSON = new Gson();
+
+	/**
+	 * State of a job
+	 */
+	public enum Status
+	{
+		QUEUED, RUNNING, DONE, FAILED
+	}
+
+	/**
+	 * Jobs by id
+	 */
+	private final ConcurrentHashMap<String, Job> jobs = new ConcurrentHashMap<>();
+	/**
+	 * Runs the jobs
+	 */
+	private final DetectionExecutor executor;
+	/**
+	 * Output of recent detections
+	 */
+	private final ResultCache cache;
+	/**
+	 * Time a finished job is kept
+	 */
+	private final long retentionMillis;
+	/**
+	 * Largest number of jobs held at once, finished or not
+	 */
+	private final int maxJobs;
+	/**
+	 * Largest number of result bytes held by finished jobs
+	 */
+	private final long maxBytes;
+	/**
+	 * Stage timings and counters
+	 */
+	private final DetectorMetrics metrics;
+
+	/**
+	 * Creates a job store.
+	 *
+	 * @param concurrency     Number of jobs run at the same time
+	 * @param queueCapacity   Number of jobs that may wait for a worker
+	 * @param retentionMillis Time a finished job is kept
+	 * @param maxJobs         Largest number of jobs held at once
+	 * @param maxBytes        Largest number of result bytes held by finished jobs
+	 * @param cache           Output of recent detections
+	 * @param metrics         Receives stage timings and the queue of the jobs
+	 */
+	public DetectionJobs(int concurrency, int queueCapacity, long retentionMillis, int maxJobs, long maxBytes,
+			ResultCache cache,
+			DetectorMetrics metrics)
+	{
+		if(cache == null)
+			throw new NullPointerException("Null cache");
+		if(metrics == null)
+			throw new NullPointerException("Null metrics");
+		this.executor = new DetectionExecutor("job", concurrency, queueCapacity);
+		this.retentionMillis = retentionMillis;
+		this.maxJobs = maxJobs;
+		this.maxBytes = maxBytes;
+		this.cache = cache;
+		this.metrics = metrics;
+		metrics.register("job", executor);
+	}
+
+	/**
+	 * Queues a detection.
+	 * A detection that is already in the cache finishes right away.
+	 *
+	 * The upload file belongs to the store from then on, it is deleted once
+	 * the job no longer needs it or when the job is rejected.
+	 *
+	 * Throws RejectedExecutionException if too many jobs are queued or held,
+	 * or if finished jobs hold too many result bytes.
+	 *
+	 * @param detection Parsed request
+	 * @param upload    Temporary file holding the uploaded image, or null when the image comes from a session
+	 * @param session   Session holding the image, or null
+	 * @param key       Cache key of the request
+	 * @return New job
+	 */
+	public Job submit(DetectionRequest detection, Path upload, ImageSessionCache.Session session, String key)
+	{
+		long held = expire();
+		if(jobs.size() >= maxJobs || held >= maxBytes){
+			delete(upload);
+			throw new RejectedExecutionException(held >= maxBytes ? "Too many job results held" : "Too many jobs held");
+		}
+
+		Job job = new Job(UUID.randomUUID().toString(), detection, upload, session, key);
+		jobs.put(job.id, job);
+		ResultCache.Entry cached = cache.get(key, !detection.isJson());
+		if(cached != null){
+			job.finish(cached.getJson(), cached.getPng(), null);
+			return job;
+		}
+		try {
+			executor.submit(() -> run(job));
+		}catch (RejectedExecutionException e){
+			jobs.remove(job.id);
+			job.finish(null, null, "Job was rejected");
+			throw e;
+		}
+		return job;
+	}
+
+	/**
+	 * Finds a job.
+	 *
+	 * @param id Job id
+	 * @return Job, or null if it does not exist or has expired
+	 */
+	public Job get(String id)
+	{
+		expire();
+		return id == null ? null : jobs.get(id);
+	}
+
+	/**
+	 * Forgets a job. A job that is still queued is not run.
+	 *
+	 * @param id Job id
+	 * @return True if the job existed
+	 */
+	public boolean remove(String id)
+	{
+		Job job = id == null ? null : jobs.remove(id);
+		if(job == null)
+			return false;
+		job.finish(null, null, "Job was removed");
+		return true;
+	}
+
+	/**
+	 * Returns the number of jobs waiting for a worker.
+	 * @return Queue depth
+	 */
+	public int getQueueDepth()
+	{
+		return executor.getQueueDepth();
+	}
+
+	/**
+	 * Stops accepting jobs.
+	 */
+	public void shutdown()
+	{
+		executor.shutdown();
+	}
+
+	/**
+	 * Drops the jobs that finished longer ago than the retention period.
+	 * @return Number of result bytes held by the jobs that are left
+	 */
+	private long expire()
+	{
+		long now = System.currentTimeMillis();
+		long held = 0;
+		Iterator<Map.Entry<String, Job>> it = jobs.entrySet().iterator();
+		while(it.hasNext()){
+			Job job = it.next().getValue();
+			if(job.finishedAt > 0 && now - job.finishedAt > retentionMillis)
+				it.remove();
+			else
+				held += job.weight;
+		}
+		return held;
+	}
+
+	/**
+	 * Deletes a temporary upload file.
+	 * @param upload File, or null
+	 */
+	private static void delete(Path upload)
+	{
+		if(upload == null)
+			return;
+		try {
+			Files.deleteIfExists(upload);
+		}catch (IOException ignored){
+			// left to the temporary directory cleanup
+		}
+	}
+
+	/**
+	 * Runs one job on a worker thread.
+	 * @param job Job
+	 */
+	private void run(Job job)
+	{
+		if(!job.start())
+			return;     // removed while queued
+		try {
+			long start = System.nanoTime();
+			DetectionRequest detection = job.detection;
+			Detector detector;
+			try {
+				if(job.session != null)
+					detector = detection.newDetector(job.session, null);
+				else {
+					try(InputStream in = new BufferedInputStream(Files.newInputStream(job.upload), 64 * 1024)) {
+						detector = detection.newDetector(null, in);
+					}
+					metrics.record(DetectorMetrics.Stage.DECODE, start);
+					delete(job.upload);
+				}
+			}catch (IllegalArgumentException e){     // the image or its regions are invalid
+				job.fail(e.getMessage(), true);
+				return;
+			}
+			if(detector == null){
+				job.fail("Unsupported image format", true);
+				return;
+			}
+
+			detector.setMetrics(metrics);
+			detector.detect();
+			String json = detector.getResult(detection.getK()).toJson();
+			byte[] png = null;
+			if(!detection.isJson()){
+				ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+				detector.writeResults(encoded, detection.getK());
+				png = encoded.toByteArray();
+			}
+			cache.put(job.key, json, png);
+			job.finish(json, png, null);
+		}catch (IOException | RuntimeException e){
+			job.fail("Detection failed: " + e.getMessage(), false);
+		}
+	}
+
+	/**
+	 * One detection run in the background
+	 */
+	public static class Job
+	{
+		/**
+		 * Job id
+		 */
+		private final String id;
+		/**
+		 * Parsed request, its upload part is not used once the request is over
+		 */
+		private final DetectionRequest detection;
+		/**
+		 * Session holding the image, or null
+		 */
+		private final ImageSessionCache.Session session;
+		/**
+		 * Cache key of the request
+		 */
+		private final String key;
+		/**
+		 * Temporary file holding the uploaded image, deleted once decoded
+		 */
+		private final Path upload;
+		/**
+		 * Current state
+		 */
+		private volatile Status status = Status.QUEUED;
+		/**
+		 * Output of the detection, set when done
+		 */
+		private volatile String json;
+		/**
+		 * Encoded image, set when done unless only JSON was asked for
+		 */
+		private volatile byte[] png;
+		/**
+		 * Reason of the failure, set when failed
+		 */
+		private volatile String error;
+		/**
+		 * True if the job failed because of its input and not of the server
+		 */
+		private volatile boolean inputError;
+		/**
+		 * Number of result bytes held, 0 until done
+		 */
+		private volatile long weight;
+		/**
+		 * Time the job finished, 0 while it has not
+		 */
+		private volatile long finishedAt;
+		/**
+		 * Completed when the job finishes
+		 */
+		private final CompletableFuture<Job> future = new CompletableFuture<>();
+
+		/**
+		 * Creates a queued job
+		 */
+		private Job(String id, DetectionRequest detection, Path upload, ImageSessionCache.Session session, String key)
+		{
+			this.id = id;
+			this.detection = detection;
+			this.upload = upload;
+			this.session = session;
+			this.key = key;
+		}
+
+		/**
+		 * Marks the job as running unless it has already finished.
+		 * @return False if the job was removed while queued
+		 */
+		private synchronized boolean start()
+		{
+			if(future.isDone())
+				return false;
+			this.status = Status.RUNNING;
+			return true;
+		}
+
+		/**
+		 * Records the outcome of the job, once.
+		 * @param json  Blob statistics, or null on failure
+		 * @param png   Encoded image, or null
+		 * @param error Reason of the failure, or null on success
+		 */
+		private synchronized void finish(String json, byte[] png, String error)
+		{
+			if(future.isDone())
+				return;
+			this.json = json;
+			this.png = png;
+			this.error = error;
+			this.weight = json == null ? 0 : ResultCache.weight(json, png);
+			delete(upload);
+			this.status = error == null ? Status.DONE : Status.FAILED;
+			this.finishedAt = System.currentTimeMillis();
+			future.complete(this);
+		}
+
+		/**
+		 * Records the failure of the job, once.
+		 * @param error      Reason of the failure
+		 * @param inputError True if the input was at fault
+		 */
+		private synchronized void fail(String error, boolean inputError)
+		{
+			if(future.isDone())
+				return;
+			this.inputError = inputError;
+			finish(null, null, error);
+		}
+
+		/**
+		 * Runs an action once the job has finished, right away if it already has.
+		 * @param action Action
+		 */
+		public void whenFinished(Runnable action)
+		{
+			future.thenRun(action);
+		}
+
+		/**
+		 * Returns the job id.
+		 * @return Id
+		 */
+		public String getId()
+		{
+			return id;
+		}
+
+		/**
+		 * Returns the parsed request.
+		 * @return Request
+		 */
+		public DetectionRequest getDetection()
+		{
+			return detection;
+		}
+
+		/**
+		 * Returns the current state.
+		 * @return Status
+		 */
+		public Status getStatus()
+		{
+			return status;
+		}
+
+		/**
+		 * Returns true once the job is done or has failed.
+		 * @return True if finished
+		 */
+		public boolean isFinished()
+		{
+			return future.isDone();
+		}
+
+		/**
+		 * Returns the blob statistics.
+		 * @return JSON text, or null unless done
+		 */
+		public String getJson()
+		{
+			return json;
+		}
+
+		/**
+		 * Returns the encoded image.
+		 * @return PNG bytes, or null
+		 */
+		public byte[] getPng()
+		{
+			return png;
+		}
+
+		/**
+		 * Returns the reason of the failure.
+		 * @return Error message, or null
+		 */
+		public String getError()
+		{
+			return error;
+		}
+
+		/**
+		 * Returns true if the job failed because of its input, such as an
+		 * image that cannot be decoded or a region outside of it.
+		 * @return True on an input error
+		 */
+		public boolean isInputError()
+		{
+			return inputError;
+		}
+
+		/**
+		 * Describes the state of the job.
+		 * @param resultUrl Where the result can be fetched
+		 * @return JSON text
+		 */
+		public String toJson(String resultUrl)
+		{
+			Status current = status;
+			return GSON.toJson(new StatusJson(id, current.name().toLowerCase(), error,
+					current == Status.DONE ? resultUrl : null));
+		}
+	}
+
+	/**
+	 * JSON form of the state of a job
+	 */
+	private static class StatusJson
+	{
+		/**
+		 * Job id
+		 */
+		private final String job;
+		/**
+		 * queued, running, done or failed
+		 */
+		private final String status;
+		/**
+		 * Reason of the failure, or null
+		 */
+		private final String error;
+		/**
+		 * Where the result can be fetched, or null until done
+		 */
+		private final String result;
+
+		/**
+		 * Creates the JSON form
+		 */
+		private StatusJson(String job, String status, String error, String result)
+		{
+			this.job = job;
+			this.status = status;
+			this.error = error;
+			this.result = result;
+		}
+	}
+}
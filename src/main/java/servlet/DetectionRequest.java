@@ -0,0 +1,438 @@
+package servlet;
+
+import javax.imageio.ImageIO;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.Part;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * DetectionRequest holds everything one call to /colorDetector asked for.
+ * A new one is parsed for every request, so concurrent requests never
+ * share state.
+ */
+public class DetectionRequest
+{
+	/**
+	 * Colors of the blobs we are detecting and their distances
+	 */
+	private final List<Target> targets;
+	/**
+	 * Number of blobs to recolor and report per target
+	 */
+	private final int k;
+	/**
+	 * Response format: html, json for the blob statistics only, or png for the image only
+	 */
+	private final String format;
+	/**
+	 * Uploaded image, null when the request names a session
+	 */
+	private final Part image;
+	/**
+	 * Id of an {@link ImageSessionCache} session holding the image, or null
+	 */
+	private final String session;
+	/**
+	 * Name of the uploaded file
+	 */
+	private final String fileName;
+	/**
+	 * Regions of interest, null to detect the whole image
+	 */
+	private final Roi roi;
+	/**
+	 * 4 or 8, or 0 for the default of the detector
+	 */
+	private final int connectivity;
+
+	/**
+	 * Creates a request for the whole image.
+	 *
+	 * @param targets  Desired colors and their distances
+	 * @param k        Number of blobs to recolor and report per target
+	 * @param format   html, json or png
+	 * @param image    Uploaded image, or null
+	 * @param session  Session holding the image, or null
+	 * @param fileName Name of the uploaded file
+	 */
+	public DetectionRequest(List<Target> targets, int k, String format, Part image, String session, String fileName)
+	{
+		this(targets, k, format, image, session, fileName, null);
+	}
+
+	/**
+	 * Creates a request restricted to regions of interest.
+	 *
+	 * @param targets  Desired colors and their distances
+	 * @param k        Number of blobs to recolor and report per target
+	 * @param format   html, json or png
+	 * @param image    Uploaded image, or null
+	 * @param session  Session holding the image, or null
+	 * @param fileName Name of the uploaded file
+	 * @param roi      Regions of interest, or null for the whole image
+	 */
+	public DetectionRequest(List<Target> targets, int k, String format, Part image, String session, String fileName,
+			Roi roi)
+	{
+		this(targets, k, format, image, session, fileName, roi, 0);
+	}
+
+	/**
+	 * Creates a request restricted to regions of interest, with the pixels
+	 * joined 4- or 8-connected.
+	 *
+	 * @param targets      Desired colors and their distances
+	 * @param k            Number of blobs to recolor and report per target
+	 * @param format       html, json or png
+	 * @param image        Uploaded image, or null
+	 * @param session      Session holding the image, or null
+	 * @param fileName     Name of the uploaded file
+	 * @param roi          Regions of interest, or null for the whole image
+	 * @param connectivity 4 or 8, or 0 for the default of the detector
+	 */
+	public DetectionRequest(List<Target> targets, int k, String format, Part image, String session, String fileName,
+			Roi roi, int connectivity)
+	{
+		if(k < 1)
+			throw new IllegalArgumentException("k should be greater than 0, current k=" + k);
+		if(targets.isEmpty() || targets.size() > Threshold.MAX_TARGETS)
+			throw new IllegalArgumentException("Please ask for between 1 and " + Threshold.MAX_TARGETS + " colors");
+		if(image == null && session == null)
+			throw new IllegalArgumentException("Please upload an image");
+		this.targets = targets;
+		this.k = k;
+		if(!format.equals("html") && !format.equals("json") && !format.equals("png"))
+			throw new IllegalArgumentException("format should be html, json or png");
+		this.format = format;
+		this.image = image;
+		this.session = session;
+		this.fileName = fileName;
+		this.roi = roi;
+		if(connectivity != 0 && connectivity != 4 && connectivity != 8)
+			throw new IllegalArgumentException("connectivity should be 4 or 8, current connectivity=" + connectivity);
+		this.connectivity = connectivity;
+	}
+
+	/**
+	 * Reads the parameters of a request.
+	 * The color comes from the red, green and blue fields when they are all
+	 * filled in, otherwise from the color picker. Several colors can be
+	 * asked for at once as targets, like {@code #ff0000:5,#00ff00:3},
+	 * in which case the other color fields and dist are not needed.
+	 * Only the k largest blobs of every color are recolored and reported;
+	 * without k every blob is. format=json returns only the statistics and
+	 * format=png only the image; by default an HTML page is returned.
+	 * The image is either uploaded as img or named by a session id from /session.
+	 * The detection can be restricted to regions of interest, given as roi
+	 * rectangles and/or a coarse roiMask bitmap, see {@link Roi}.
+	 * connectivity=8 also joins pixels that only touch on a corner.
+	 *
+	 * Throws IllegalArgumentException if a parameter is missing or invalid.
+	 *
+	 * @param request HTTP request
+	 * @return Parsed request
+	 * @throws IOException      If the upload cannot be read
+	 * @throws ServletException If the multipart body cannot be parsed
+	 */
+	public static DetectionRequest parse(HttpServletRequest request) throws IOException, ServletException
+	{
+		List<Target> targets = parseTargets(request);
+		int k = parseK(request);
+		Roi roi = parseRoi(request);
+		int connectivity = parseConnectivity(request);
+
+		String format = request.getParameter("format");
+		if(format == null || format.isEmpty())
+			format = "html";
+		String session = request.getParameter("session");
+		if(session != null && !session.isEmpty())
+			return new DetectionRequest(targets, k, format, null, session, "session " + session, roi, connectivity);
+
+		Part image = isMultipart(request) ? request.getPart("img") : null;
+		if(image == null || image.getSize() == 0)
+			throw new IllegalArgumentException("Please upload an image");
+		String fileName = image.getSubmittedFileName() == null ? "image"
+				: Paths.get(image.getSubmittedFileName()).getFileName().toString(); // MSIE fix.
+
+		return new DetectionRequest(targets, k, format, image, null, fileName, roi, connectivity);
+	}
+
+	/**
+	 * Reads the regions of interest: rectangles as roi, like
+	 * {@code 0,0,100,50;200,200,64,64}, and a bitmap as the roiMask upload.
+	 * The parts are only looked at in a multipart request, so a request that
+	 * names a session can be form encoded.
+	 *
+	 * Throws IllegalArgumentException if the regions are invalid.
+	 *
+	 * @param request HTTP request
+	 * @return Regions, or null when neither was given
+	 * @throws IOException      If the bitmap cannot be read
+	 * @throws ServletException If the multipart body cannot be parsed
+	 */
+	public static Roi parseRoi(HttpServletRequest request) throws IOException, ServletException
+	{
+		String rectangles = request.getParameter("roi");
+		Roi roi = rectangles == null || rectangles.trim().isEmpty() ? null : Roi.parse(rectangles);
+		if(!isMultipart(request))
+			return roi;
+		Part mask = request.getPart("roiMask");
+		if(mask == null || mask.getSize() == 0)
+			return roi;
+		Roi cells;
+		try(InputStream in = mask.getInputStream()) {
+			cells = Roi.bitmap(in);
+		}
+		if(cells == null)
+			throw new IllegalArgumentException("roiMask should be an image");
+		return roi == null ? cells : roi.union(cells);
+	}
+
+	/**
+	 * Checks whether the body of a request is multipart/form-data.
+	 * @param request HTTP request
+	 * @return True if the request has parts
+	 */
+	static boolean isMultipart(HttpServletRequest request)
+	{
+		String type = request.getContentType();
+		return type != null && type.toLowerCase(Locale.ROOT).startsWith("multipart/form-data");
+	}
+
+	/**
+	 * Creates the detector of the request. An upload restricted to regions
+	 * of interest is only decoded within their bounding box. A session image
+	 * detected coarse to fine uses the pyramid kept with the session.
+	 * The requested connectivity is set on the detector.
+	 *
+	 * Throws IllegalArgumentException if the regions are outside the image.
+	 *
+	 * @param session Session holding the image, or null to decode upload
+	 * @param upload  Encoded image, read when session is null and left open
+	 * @return Detector, or null if the upload is not a supported image
+	 * @throws IOException If the upload cannot be read
+	 */
+	public Detector newDetector(ImageSessionCache.Session session, InputStream upload) throws IOException
+	{
+		BufferedImage image;
+		Detector detector;
+		if(session != null){
+			image = session.getImage();
+		}else if(roi != null){
+			detector = Detector.read(upload, targets, roi);
+			if(detector != null && connectivity != 0)
+				detector.setConnectivity(connectivity);
+			return detector;
+		}else {
+			image = ImageIO.read(upload);
+			if(image == null)
+				return null;
+		}
+		detector = new Detector(image, targets);
+		detector.setRoi(roi);
+		if(connectivity != 0)
+			detector.setConnectivity(connectivity);
+		if(session != null && roi == null && detector.isCoarseToFine())
+			detector.setPyramid(session.getPyramid());
+		return detector;
+	}
+
+	/**
+	 * Reads the requested colors, either from targets or from the single color fields.
+	 *
+	 * Throws IllegalArgumentException if a parameter is missing or invalid.
+	 *
+	 * @param request HTTP request
+	 * @return Targets, at least one
+	 */
+	public static List<Target> parseTargets(HttpServletRequest request)
+	{
+		List<Target> targets = new ArrayList<>();
+		String list = request.getParameter("targets");
+		if(list != null && !list.trim().isEmpty()){
+			for(String target : list.split(","))
+				targets.add(Target.parse(target));
+		}else {
+			targets.add(parseTarget(request));
+		}
+		if(targets.size() > Threshold.MAX_TARGETS)
+			throw new IllegalArgumentException("Please ask for between 1 and " + Threshold.MAX_TARGETS + " colors");
+		return targets;
+	}
+
+	/**
+	 * Reads the number of blobs to recolor and report.
+	 *
+	 * Throws IllegalArgumentException if k is not a positive number.
+	 *
+	 * @param request HTTP request
+	 * @return k, Integer.MAX_VALUE when it was not given
+	 */
+	public static int parseK(HttpServletRequest request)
+	{
+		String top = request.getParameter("k");
+		if(top == null || top.isEmpty())
+			return Integer.MAX_VALUE;
+		int k;
+		try{
+			k = Integer.parseInt(top);
+		}catch (NumberFormatException e){
+			throw new IllegalArgumentException("k should be a number");
+		}
+		if(k < 1)
+			throw new IllegalArgumentException("k should be greater than 0, current k=" + k);
+		return k;
+	}
+
+	/**
+	 * Reads which pixels touch.
+	 *
+	 * Throws IllegalArgumentException if connectivity is not 4 or 8.
+	 *
+	 * @param request HTTP request
+	 * @return 4 or 8, 0 when it was not given
+	 */
+	public static int parseConnectivity(HttpServletRequest request)
+	{
+		String value = request.getParameter("connectivity");
+		if(value == null || value.isEmpty())
+			return 0;
+		int connectivity;
+		try{
+			connectivity = Integer.parseInt(value);
+		}catch (NumberFormatException e){
+			throw new IllegalArgumentException("connectivity should be a number");
+		}
+		if(connectivity != 4 && connectivity != 8)
+			throw new IllegalArgumentException("connectivity should be 4 or 8, current connectivity=" + connectivity);
+		return connectivity;
+	}
+
+	/**
+	 * Reads a single color and distance from the form fields.
+	 * @param request HTTP request
+	 * @return Target
+	 */
+	private static Target parseTarget(HttpServletRequest request)
+	{
+		Color color;
+		try {
+			color = new Color(Integer.parseInt(request.getParameter("red")),
+					Integer.parseInt(request.getParameter("green")),
+					Integer.parseInt(request.getParameter("blue")));
+		}catch (NumberFormatException e){
+			color = parsePicker(request.getParameter("colorPickerValue"));
+		}
+
+		int okDist;
+		try{
+			okDist = Integer.parseInt(request.getParameter("dist"));
+		}catch (NumberFormatException e){
+			throw new IllegalArgumentException("dist should be a number");
+		}
+		return new Target(color, okDist);
+	}
+
+	/**
+	 * Reads a color picker value like #aeaea6.
+	 * @param value Color picker value
+	 * @return Color
+	 */
+	private static Color parsePicker(String value)
+	{
+		if(value == null || !value.matches("#[0-9a-fA-F]{6}"))
+			throw new IllegalArgumentException("Please enter RGB values or choose a color using color picker !");
+		return new Color(Integer.valueOf(value.substring(1, 3), 16),
+				Integer.valueOf(value.substring(3, 5), 16),
+				Integer.valueOf(value.substring(5, 7), 16));
+	}
+
+	/**
+	 * Returns the requested colors and distances.
+	 * @return Targets, at least one
+	 */
+	public List<Target> getTargets()
+	{
+		return targets;
+	}
+
+	/**
+	 * Returns the number of blobs to recolor and report per target.
+	 * @return k, Integer.MAX_VALUE for every blob
+	 */
+	public int getK()
+	{
+		return k;
+	}
+
+	/**
+	 * Returns the regions of interest.
+	 * @return Regions, or null for the whole image
+	 */
+	public Roi getRoi()
+	{
+		return roi;
+	}
+
+	/**
+	 * Returns which pixels touch.
+	 * @return 4 or 8, or 0 for the default of the detector
+	 */
+	public int getConnectivity()
+	{
+		return connectivity;
+	}
+
+	/**
+	 * Returns true if only the blob statistics should be returned.
+	 * @return True for JSON
+	 */
+	public boolean isJson()
+	{
+		return format.equals("json");
+	}
+
+	/**
+	 * Returns true if only the image should be returned.
+	 * @return True for PNG
+	 */
+	public boolean isPng()
+	{
+		return format.equals("png");
+	}
+
+	/**
+	 * Returns the uploaded image.
+	 * @return Upload part, or null when the request names a session
+	 */
+	public Part getImage()
+	{
+		return image;
+	}
+
+	/**
+	 * Returns the id of the session holding the image.
+	 * @return Session id, or null when the image was uploaded
+	 */
+	public String getSession()
+	{
+		return session;
+	}
+
+	/**
+	 * Returns the name of the uploaded file.
+	 * @return File name
+	 */
+	public String getFileName()
+	{
+		return fileName;
+	}
+}
@@ -0,0 +1,277 @@
+package servlet;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * DetectionResult is the outcome of a detection in a form that can be sent
+ * to clients as JSON: the request parameters and the statistics of every
+ * blob, largest blob first.
+ *
+ * A detection of several targets lists the blobs of each target under
+ * targets instead of color, okDist and blobs.
+ */
+public class DetectionResult
+{
+	/**
+	 * Shared serializer, Gson instances are thread safe
+	 */
+	private static final Gson GSON = new GsonBuilder().serializeSpecialFloatingPointValues().create();
+
+	/**
+	 * Size of the image
+	 */
+	private final int width, height;
+	/**
+	 * Requested color as #rrggbb, null for several targets
+	 */
+	private final String color;
+	/**
+	 * Requested distance, null for several targets
+	 */
+	private final Integer okDist;
+	/**
+	 * Number of blobs found
+	 */
+	private final int blobCount;
+	/**
+	 * Statistics of every blob, largest first, null for several targets
+	 */
+	private final List<BlobStats> blobs;
+	/**
+	 * Blobs of every target, null for a single target
+	 */
+	private final List<TargetStats> targets;
+	/**
+	 * Part of the image that was detected, null for the whole image
+	 */
+	private RegionStats region;
+
+	/**
+	 * Creates a result.
+	 *
+	 * @param width  Width of the image
+	 * @param height Height of the image
+	 * @param color  Requested color
+	 * @param okDist Requested distance
+	 * @param blobs  Blobs, largest first
+	 */
+	public DetectionResult(int width, int height, Color color, int okDist, List<Blob> blobs)
+	{
+		this(width, height, color, okDist, blobs.size(), blobs);
+	}
+
+	/**
+	 * Creates a result that lists only some of the blobs found.
+	 *
+	 * @param width     Width of the image
+	 * @param height    Height of the image
+	 * @param color     Requested color
+	 * @param okDist    Requested distance
+	 * @param blobCount Number of blobs found
+	 * @param blobs     Blobs to list, largest first
+	 */
+	public DetectionResult(int width, int height, Color color, int okDist, int blobCount, List<Blob> blobs)
+	{
+		this.width = width;
+		this.height = height;
+		this.color = toHex(color);
+		this.okDist = okDist;
+		this.blobCount = blobCount;
+		this.blobs = toStats(blobs);
+		this.targets = null;
+	}
+
+	/**
+	 * Creates a result for several targets.
+	 *
+	 * @param width    Width of the image
+	 * @param height   Height of the image
+	 * @param targets  Requested targets
+	 * @param blobSets Blobs of every target, largest first
+	 */
+	public DetectionResult(int width, int height, List<Target> targets, List<List<Blob>> blobSets)
+	{
+		this(width, height, targets, blobSets.stream().mapToInt(List::size).toArray(), blobSets);
+	}
+
+	/**
+	 * Creates a result for several targets that lists only some of the blobs found.
+	 *
+	 * @param width      Width of the image
+	 * @param height     Height of the image
+	 * @param targets    Requested targets
+	 * @param blobCounts Number of blobs found for every target
+	 * @param blobSets   Blobs to list for every target, largest first
+	 */
+	public DetectionResult(int width, int height, List<Target> targets, int[] blobCounts, List<List<Blob>> blobSets)
+	{
+		this.width = width;
+		this.height = height;
+		this.color = null;
+		this.okDist = null;
+		this.blobs = null;
+		this.targets = new ArrayList<>(targets.size());
+		int total = 0;
+		for(int i = 0; i < targets.size(); i++){
+			this.targets.add(new TargetStats(targets.get(i), blobCounts[i], blobSets.get(i)));
+			total += blobCounts[i];
+		}
+		this.blobCount = total;
+	}
+
+	/**
+	 * Copies the statistics of some blobs.
+	 * @param blobs Blobs
+	 * @return JSON form of the blobs
+	 */
+	private static List<BlobStats> toStats(List<Blob> blobs)
+	{
+		List<BlobStats> stats = new ArrayList<>(blobs.size());
+		for(Blob blob : blobs)
+			stats.add(new BlobStats(blob));
+		return stats;
+	}
+
+	/**
+	 * Returns the number of blobs found.
+	 * @return Number of blobs
+	 */
+	public int getBlobCount()
+	{
+		return blobCount;
+	}
+
+	/**
+	 * Records that only part of the image was detected.
+	 * The output image of such a detection covers only that part.
+	 * @param region Bounding box of the regions of interest
+	 */
+	public void setRegion(Rectangle region)
+	{
+		this.region = new RegionStats(region);
+	}
+
+	/**
+	 * Serializes the result.
+	 * @return JSON text
+	 */
+	public String toJson()
+	{
+		return GSON.toJson(this);
+	}
+
+	/**
+	 * Formats a color as #rrggbb.
+	 * @param c Color
+	 * @return Hex string
+	 */
+	private static String toHex(Color c)
+	{
+		return String.format("#%02x%02x%02x", c.getRed(), c.getGreen(), c.getBlue());
+	}
+
+	/**
+	 * JSON form of the blobs of one {@link Target}
+	 */
+	private static class TargetStats
+	{
+		/**
+		 * Requested color as #rrggbb
+		 */
+		private final String color;
+		/**
+		 * Requested distance
+		 */
+		private final int okDist;
+		/**
+		 * Number of blobs found
+		 */
+		private final int blobCount;
+		/**
+		 * Statistics of the listed blobs, largest first
+		 */
+		private final List<BlobStats> blobs;
+
+		/**
+		 * Copies the blobs of a target
+		 * @param target    Target
+		 * @param blobCount Number of blobs found for the target
+		 * @param blobs     Blobs to list, largest first
+		 */
+		private TargetStats(Target target, int blobCount, List<Blob> blobs)
+		{
+			this.color = toHex(target.getColor());
+			this.okDist = target.getOkDist();
+			this.blobCount = blobCount;
+			this.blobs = toStats(blobs);
+		}
+	}
+
+	/**
+	 * JSON form of the part of the image that was detected
+	 */
+	private static class RegionStats
+	{
+		/**
+		 * Bounding box in the full image
+		 */
+		private final int x, y, width, height;
+
+		/**
+		 * Copies a region
+		 * @param region Bounding box
+		 */
+		private RegionStats(Rectangle region)
+		{
+			this.x = region.x;
+			this.y = region.y;
+			this.width = region.width;
+			this.height = region.height;
+		}
+	}
+
+	/**
+	 * JSON form of a {@link Blob}
+	 */
+	private static class BlobStats
+	{
+		/**
+		 * Number of pixels
+		 */
+		private final int area;
+		/**
+		 * Bounding box
+		 */
+		private final int x, y, width, height;
+		/**
+		 * Centroid
+		 */
+		private final double centroidX, centroidY;
+		/**
+		 * Mean color as #rrggbb
+		 */
+		private final String meanColor;
+
+		/**
+		 * Copies the statistics of a blob
+		 * @param blob Blob
+		 */
+		private BlobStats(Blob blob)
+		{
+			Rectangle bounds = blob.getBounds();
+			this.area = blob.getArea();
+			this.x = bounds.x;
+			this.y = bounds.y;
+			this.width = bounds.width;
+			this.height = bounds.height;
+			this.centroidX = blob.getCentroidX();
+			this.centroidY = blob.getCentroidY();
+			this.meanColor = toHex(blob.getMeanColor());
+		}
+	}
+}
@@ -1,14 +1,29 @@
 package servlet;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
 import java.util.Random;
 import java.util.Scanner;
 
@@ -19,6 +34,88 @@ import java.util.Scanner;
  */
 public class Detector extends JPanel
 {
+	/**
+	 * Uses the original {@link DisjointSets} labeling instead of the {@link LabelEngine}.
+	 * Kept so that both paths can be compared on the same image.
+	 */
+	private boolean legacy = Boolean.getBoolean("detector.legacy");
+	/**
+	 * Looks for the colors in a coarse {@link TilePyramid} first and only
+	 * thresholds and labels the tiles that may hold them
+	 */
+	private boolean coarseToFine = Boolean.getBoolean("detector.pyramid");
+	/**
+	 * Pyramid of img built beforehand, null to build one in detect
+	 */
+	private TilePyramid pyramid;
+	/**
+	 * Labels the thresholded image with primitive arrays
+	 */
+	private LabelEngine engine = new LabelEngine();
+	/**
+	 * One byte per pixel, 1 where the pixel matches the blob color
+	 */
+	private byte[] mask;
+	/**
+	 * One bit per pixel, used instead of mask when a single color is labeled by runs
+	 */
+	private BitMask bits;
+	/**
+	 * Image written by outputResults, the original image is left untouched
+	 */
+	private BufferedImage output;
+	/**
+	 * Colors looked for in one pass, null when only blobColor is
+	 */
+	private List<Target> targets;
+	/**
+	 * Deflate level of the PNG output, 0 to 9
+	 */
+	private int deflateLevel = DEFLATE_LEVEL;
+	/**
+	 * Receives the time spent in every stage, null to record nothing
+	 */
+	private DetectorMetrics metrics;
+	/**
+	 * Part of img that is detected, a view of the bounding box of the
+	 * regions of interest, or null to detect the whole image
+	 */
+	private BufferedImage work;
+	/**
+	 * Bounding box of the regions of interest in the full image
+	 */
+	private Rectangle region;
+	/**
+	 * Regions of interest inside work, null when they fill it
+	 */
+	private List<Rectangle> regions;
+	/**
+	 * Size of the full image, which may not have been decoded as a whole
+	 */
+	private int frameWidth, frameHeight;
+	/**
+	 * Pixels of work inside the regions of interest, used instead of regions
+	 * when there are too many of them to threshold one by one
+	 */
+	private BitMask regionBits;
+	/**
+	 * Above this number of regions of interest, which a detailed bitmap
+	 * easily reaches, work is thresholded as a whole and cleared outside
+	 * of them, which is cheaper than walking thousands of small rectangles
+	 */
+	private static final int MAX_REGIONS = 1024;
+	/**
+	 * Deflate level of the PNG output unless set, read once from
+	 * detector.png.deflate and clamped to 0 to 9
+	 */
+	private static final int DEFLATE_LEVEL = Math.max(0, Math.min(9,
+			Integer.getInteger("detector.png.deflate", PngEncoder.DEFAULT_LEVEL)));
+	/**
+	 * Above this part of the image in candidate tiles the whole image is scanned,
+	 * which is cheaper than walking nearly every tile
+	 */
+	private static final double MAX_TILE_COVERAGE = 0.5;
+
 	/**
 	 * Calculates the distance between two color to see
 	 * if they can be considered the "same" color.
@@ -97,16 +194,381 @@ public class Detector extends JPanel
 
 	/**
 	 * Most important method.
+	 * Thresholds the image and labels every blob of the requested colors.
+	 * With several targets every pixel goes to the nearest target it
+	 * matches, and the blobs of all targets are labeled in the same pass.
+	 * With regions of interest only their pixels are thresholded and labeled.
+	 * Coarse to fine, only the tiles of the {@link TilePyramid} that may
+	 * hold a color are thresholded and labeled; the blobs are the same.
+	 * A single color labeled by runs is thresholded into a {@link BitMask}.
+	 * Pixels are joined 4- or 8-connected, see {@link #setConnectivity(int)}.
+	 */
+	public void detect() {
+		if(legacy){
+			if(getTargets().size() > 1)
+				throw new IllegalStateException("Legacy labeling only supports a single color");
+			if(this.work != null)
+				throw new IllegalStateException("Legacy labeling does not support regions of interest");
+			if(getConnectivity() != 4)
+				throw new IllegalStateException("Legacy labeling only supports 4-connectivity");
+			detectLegacy();
+			return;
+		}
+		BufferedImage image = detectedImage();
+		int height = image.getHeight();
+		int width = image.getWidth();
+		long start = System.nanoTime();
+
+		TileMask tiles = this.regions == null ? candidateTiles(image) : null;
+		boolean packed = getTargets().size() == 1 && this.engine.isRunLength();
+		if(packed){
+			this.bits = this.regions == null ? Threshold.bits(image,getTargets().get(0),this.bits,tiles)
+					: Threshold.bits(image,getTargets().get(0),this.bits,this.regions);
+			if(this.regionBits != null)
+				this.bits.and(this.regionBits);
+		}else {
+			this.mask = this.regions == null ? Threshold.mask(image,getTargets(),this.mask,tiles)
+					: Threshold.mask(image,getTargets(),this.mask,this.regions);
+			if(this.regionBits != null)
+				this.regionBits.retain(this.mask);
+		}
+		start = record(DetectorMetrics.Stage.THRESHOLD, start);
+
+		if(packed)
+			this.engine.label(this.bits,image);
+		else
+			this.engine.label(this.mask,width,height,image,tiles);
+		record(DetectorMetrics.Stage.LABEL, start);
+		if(this.metrics != null)
+			this.metrics.countDetection((long)width * height, this.engine.getBlobCount());
+	}
+
+	/**
+	 * Finds the tiles that may hold a color when detecting coarse to fine.
+	 * @param image Image detect works on
+	 * @return Candidate tiles, or null to scan the whole image
+	 */
+	private TileMask candidateTiles(BufferedImage image)
+	{
+		if(!this.coarseToFine)
+			return null;
+		TilePyramid tiles = this.pyramid != null && this.work == null ? this.pyramid : TilePyramid.build(image);
+		TileMask candidates = tiles.candidates(getTargets());
+		return candidates.getCoverage() > MAX_TILE_COVERAGE ? null : candidates;
+	}
+
+	/**
+	 * Set whether detect looks for the colors coarse to fine.
+	 * The blobs are the same either way; coarse to fine is faster when the
+	 * colors cover a small part of the image.
+	 * @param coarseToFine True to threshold and label only the tiles that may hold a color
+	 */
+	public void setCoarseToFine(boolean coarseToFine)
+	{
+		this.coarseToFine = coarseToFine;
+	}
+
+	/**
+	 * Returns whether detect looks for the colors coarse to fine.
+	 * @return True if only candidate tiles are thresholded and labeled
+	 */
+	public boolean isCoarseToFine()
+	{
+		return this.coarseToFine;
+	}
+
+	/**
+	 * Gives the detector a pyramid of its image built beforehand, for
+	 * example one kept with an image that is detected many times.
+	 * It is only used coarse to fine and without regions of interest.
+	 * @param pyramid Pyramid of img, or null to build one when needed
+	 */
+	public void setPyramid(TilePyramid pyramid)
+	{
+		if(pyramid != null && (pyramid.getWidth() != this.img.getWidth() || pyramid.getHeight() != this.img.getHeight()))
+			throw new IllegalArgumentException("The pyramid does not match the image");
+		this.pyramid = pyramid;
+	}
+
+	/**
+	 * Returns the part of the image that detect works on.
+	 * @return Bounding box of the regions of interest, or the whole image
+	 */
+	private BufferedImage detectedImage()
+	{
+		return this.work != null ? this.work : this.img;
+	}
+
+	/**
+	 * Restricts the detection to regions of interest of the image.
+	 * Only the bounding box of the regions is thresholded, labeled and
+	 * painted into the output, which is that size; blobs keep the
+	 * coordinates of the full image.
+	 *
+	 * Throws IllegalArgumentException if the regions are outside the image.
+	 *
+	 * @param roi Regions of interest, null to detect the whole image again
+	 */
+	public void setRoi(Roi roi)
+	{
+		int width = this.img.getWidth(), height = this.img.getHeight();
+		setRoi(roi, new Rectangle(0,0,width,height), width, height);
+	}
+
+	/**
+	 * Restricts the detection to regions of interest of an image that was
+	 * only decoded in part, like the images of {@link #read}.
+	 *
+	 * Throws IllegalArgumentException if the regions are outside the decoded part.
+	 *
+	 * @param roi         Regions of interest, null to detect the whole decoded part
+	 * @param decoded     Part of the full image that img holds
+	 * @param frameWidth  Width of the full image
+	 * @param frameHeight Height of the full image
+	 */
+	public void setRoi(Roi roi, Rectangle decoded, int frameWidth, int frameHeight)
+	{
+		this.output = null;
+		if(roi == null){
+			this.work = null;
+			this.region = null;
+			this.regions = null;
+			this.regionBits = null;
+			return;
+		}
+		if(decoded.width != this.img.getWidth() || decoded.height != this.img.getHeight())
+			throw new IllegalArgumentException("The decoded part should be the size of the image");
+		Rectangle bounds = null;
+		List<Rectangle> inside = new ArrayList<>();
+		for(Rectangle r : roi.getRectangles(frameWidth, frameHeight)){
+			r = r.intersection(decoded);
+			if(r.isEmpty())
+				continue;
+			inside.add(r);
+			bounds = bounds == null ? new Rectangle(r) : bounds.union(r);
+		}
+		if(bounds == null)
+			throw new IllegalArgumentException("The region of interest is outside the image");
+
+		this.work = this.img.getSubimage(bounds.x - decoded.x, bounds.y - decoded.y, bounds.width, bounds.height);
+		this.region = bounds;
+		this.frameWidth = frameWidth;
+		this.frameHeight = frameHeight;
+		this.regions = null;
+		this.regionBits = null;
+		if(inside.size() == 1 && inside.get(0).equals(bounds))
+			return;
+		for(Rectangle r : inside)
+			r.translate(-bounds.x, -bounds.y);     // intersection made a copy
+		if(inside.size() <= MAX_REGIONS){
+			this.regions = inside;
+			return;
+		}
+		this.regionBits = new BitMask(bounds.width, bounds.height);
+		for(Rectangle r : inside)
+			this.regionBits.fill(r.x, r.y, r.x + r.width, r.y + r.height);
+	}
+
+	/**
+	 * Decodes an image for a detection restricted to regions of interest.
+	 * Only the bounding box of the regions is decoded, the reader is given
+	 * it as its source region, so the pixels around it are never converted
+	 * or stored.
+	 *
+	 * Throws IllegalArgumentException if the regions are outside the image.
+	 *
+	 * @param in      Encoded image, left open
+	 * @param targets Desired colors and their distances
+	 * @param roi     Regions of interest
+	 * @return Detector restricted to the regions, or null if the format is not supported
+	 * @throws IOException If the image cannot be read
+	 */
+	public static Detector read(InputStream in, List<Target> targets, Roi roi) throws IOException
+	{
+		ImageInputStream stream = ImageIO.createImageInputStream(in);
+		if(stream == null)
+			return null;
+		try {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+			if(!readers.hasNext())
+				return null;
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(stream, true, true);
+				int width = reader.getWidth(0), height = reader.getHeight(0);
+				Rectangle bounds = roi.getBounds(width, height);
+				if(bounds.isEmpty())
+					throw new IllegalArgumentException("The region of interest is outside the image");
+				ImageReadParam param = reader.getDefaultReadParam();
+				param.setSourceRegion(bounds);
+				BufferedImage image = reader.read(0, param);
+				Detector detector = new Detector(image, targets);
+				detector.setRoi(roi, bounds, width, height);
+				return detector;
+			}finally {
+				reader.dispose();
+			}
+		}finally {
+			stream.close();
+		}
+	}
+
+	/**
+	 * Returns the statistics of every blob found by detect, largest first.
+	 * @return {@code List<Blob>}
+	 */
+	public List<Blob> getBlobs()
+	{
+		return getBlobs(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Returns the statistics of the k largest blobs found by detect, largest first.
+	 * @param k Number of blobs wanted
+	 * @return {@code List<Blob>}
+	 */
+	public List<Blob> getBlobs(int k)
+	{
+		if(legacy)
+			throw new IllegalStateException("Blob statistics are not available with legacy labeling");
+		return toBlobs(this.engine.topBlobs(k));
+	}
+
+	/**
+	 * Returns the blobs found by detect for every target, largest first.
+	 * @return One list of blobs per target, in the order of the targets
+	 */
+	public List<List<Blob>> getBlobSets()
+	{
+		return getBlobSets(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Returns the k largest blobs found by detect for every target, largest first.
+	 * @param k Number of blobs wanted per target
+	 * @return One list of blobs per target, in the order of the targets
+	 */
+	public List<List<Blob>> getBlobSets(int k)
+	{
+		if(legacy)
+			throw new IllegalStateException("Blob statistics are not available with legacy labeling");
+		List<List<Blob>> sets = new ArrayList<>();
+		for(int i = 0; i < getTargets().size(); i++)
+			sets.add(toBlobs(topBlobs(k,i)));
+		return sets;
+	}
+
+	/**
+	 * Finds the k largest blobs of a target.
+	 * @param k      Number of blobs wanted
+	 * @param target Target index
+	 * @return Blob indices, largest blob first
+	 */
+	private int[] topBlobs(int k, int target)
+	{
+		if(getTargets().size() == 1)
+			return this.engine.topBlobs(k);     // every blob belongs to the target
+		return this.engine.topBlobs(k,target);
+	}
+
+	/**
+	 * Looks up the statistics of some blobs.
+	 * @param blobs Blob indices
+	 * @return {@code List<Blob>} in the same order
+	 */
+	private List<Blob> toBlobs(int[] blobs)
+	{
+		List<Blob> list = new ArrayList<>(blobs.length);
+		for(int blob : blobs){
+			Blob b = this.engine.getBlob(blob);
+			if(this.region != null)
+				b.translate(this.region.x, this.region.y);     // back to the coordinates of the full image
+			list.add(b);
+		}
+		return list;
+	}
+
+	/**
+	 * Returns the number of blobs found by detect, for every target together.
+	 * @return Number of blobs
+	 */
+	public int getBlobCount()
+	{
+		if(legacy)
+			throw new IllegalStateException("Blob statistics are not available with legacy labeling");
+		return this.engine.getBlobCount();
+	}
+
+	/**
+	 * Replaces the image with the next frame of a sequence.
+	 * The mask and the label arrays are kept, so frames of the same size
+	 * are detected without allocating any per-pixel array.
+	 * Regions of interest and the pyramid are dropped, set them again for the new frame.
+	 * @param image Next frame
+	 */
+	public void setImage(BufferedImage image)
+	{
+		if(image == null)
+			throw new NullPointerException("Null image");
+		this.img = image;
+		this.pyramid = null;
+		setRoi(null);
+	}
+
+	/**
+	 * Returns the colors this detector looks for.
+	 * @return Targets, a single one unless the detector was given a list
+	 */
+	public List<Target> getTargets()
+	{
+		if(this.targets == null)
+			return Collections.singletonList(new Target(this.blobColor,this.okDist));
+		return this.targets;
+	}
+
+	/**
+	 * Returns the result of detect in a form that can be sent as JSON.
+	 * @return Detection result
+	 */
+	public DetectionResult getResult()
+	{
+		return getResult(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Returns the result of detect in a form that can be sent as JSON,
+	 * listing only the k largest blobs of every target.
+	 * The size is the size of the full image, with regions of interest too.
+	 * @param k Number of blobs wanted per target
+	 * @return Detection result
+	 */
+	public DetectionResult getResult(int k)
+	{
+		long start = System.nanoTime();
+		int width = this.region != null ? this.frameWidth : this.img.getWidth();
+		int height = this.region != null ? this.frameHeight : this.img.getHeight();
+		int[] counts = new int[getTargets().size()];
+		for(int blob = 0; blob < this.engine.getBlobCount(); blob++)
+			counts[this.engine.getTarget(blob)]++;
+		DetectionResult result = counts.length > 1
+				? new DetectionResult(width,height,getTargets(),counts,getBlobSets(k))
+				: new DetectionResult(width,height,this.blobColor,this.okDist,counts[0],getBlobs(k));
+		if(this.region != null)
+			result.setRegion(this.region);
+		record(DetectorMetrics.Stage.SELECT, start);
+		return result;
+	}
+
+	/**
 	 * Walks the the image and processes each individual pixels.
 	 * Unions the pixel to the north and its west if those pixels
 	 * matches the criteria.
-	 *
 	 */
-	public void detect() {
+	private void detectLegacy() {
 		int height = this.img.getHeight();
 		int width = this.img.getWidth();
 		int arrayLen = width*height, id = 0;
-		System.out.println("Pixels: " + arrayLen);
+		long start = System.nanoTime();
 
 		Pair<Integer,Integer> position;
 		ArrayList<Pixel> list = new ArrayList<>(arrayLen);
@@ -114,6 +576,7 @@ public class Detector extends JPanel
 		initArrayList(list,arrayLen);
 
 		thresh(this.img,this.blobColor,this.okDist);
+		start = record(DetectorMetrics.Stage.THRESHOLD, start);
 
 		this.ds = new DisjointSets<>(list);
 
@@ -126,6 +589,57 @@ public class Detector extends JPanel
 			}
 		}
 		//System.out.println();
+		record(DetectorMetrics.Stage.LABEL, start);
+	}
+
+	/**
+	 * Set how many strips of the image are labeled concurrently.
+	 * Small images, and labeling by runs, are always sequential.
+	 * @param parallelism Number of strips, 1 labels sequentially
+	 */
+	public void setParallelism(int parallelism)
+	{
+		this.engine.setParallelism(parallelism);
+	}
+
+	/**
+	 * Set the deflate level of the PNG output.
+	 * Lower levels encode faster, higher levels give smaller files.
+	 * On Java 8 the PNG writer ignores it and uses its own level.
+	 * @param deflateLevel 0 (store) to 9 (smallest)
+	 */
+	public void setDeflateLevel(int deflateLevel)
+	{
+		if(deflateLevel < 0 || deflateLevel > 9)
+			throw new IllegalArgumentException("deflateLevel should be between 0 and 9, current deflateLevel=" + deflateLevel);
+		this.deflateLevel = deflateLevel;
+	}
+
+	/**
+	 * Set which pixels touch. 8-connectivity keeps thin diagonal lines in one blob.
+	 * @param connectivity 4 to join pixels that share an edge, 8 to also join pixels that share a corner
+	 */
+	public void setConnectivity(int connectivity)
+	{
+		this.engine.setConnectivity(connectivity);
+	}
+
+	/**
+	 * Returns which pixels touch.
+	 * @return 4 or 8
+	 */
+	public int getConnectivity()
+	{
+		return this.engine.getConnectivity();
+	}
+
+	/**
+	 * Set whether the original {@link DisjointSets} labeling should be used.
+	 * @param legacy True to use the original labeling
+	 */
+	public void setLegacyLabeling(boolean legacy)
+	{
+		this.legacy = legacy;
 	}
 
 	/**
@@ -213,40 +727,44 @@ public class Detector extends JPanel
 	}
 
 	/**
-	 * Goes through the image and recolors the image using the appropriate shades
-	 * of the calculated color based on size of the disjoint set blobs
-	 * @param roots - Set of roots of blobs
-	 * @param pixels - Disjoint set of pixels
+	 * Goes through the image once and recolors the pixels of the k largest
+	 * blobs using the appropriate shades of the calculated color based on
+	 * size of the disjoint set blobs
+	 * @param roots - Roots of the k largest blobs, largest first
 	 * @param data - row and col of the image
 	 */
-	private void recolor(ArrayList<Integer> roots, ArrayList<Set<Pixel>> pixels, int...data)
+	private void recolor(ArrayList<Integer> roots, int...data)
 	{
-		int k = data[0],color,row = data[1], col = data[2];
-		for(int i = 0; i < k; i++){
-			System.out.printf("Blob %d: %d\n",i+1,pixels.get(i).size());
-			color = getSeqColor(i,k).getRGB();
-			for(int m = 0; m < row; m++) {
-				for (int n = 0; n < col; n++) {
-					if (ds.find(getId(this.img, n, m)) == roots.get(i))
-						this.img.setRGB(n, m, color);       //recolor
-				}
+		int k = roots.size(),row = data[0], col = data[1];
+		HashMap<Integer,Integer> colors = new HashMap<>(2 * k);
+		for(int i = 0; i < k; i++)
+			colors.put(roots.get(i), getSeqColor(i,k).getRGB());
+		Integer color;
+		for(int m = 0; m < row; m++) {
+			for (int n = 0; n < col; n++) {
+				color = colors.get(ds.find(getId(this.img, n, m)));
+				if (color != null)
+					this.img.setRGB(n, m, color);       //recolor
 			}
 		}
 	}
 
 	/**
-	 * Sorts both the roots and the pixels of the image
+	 * Sorts the roots of the image, largest blob first.
+	 * Blobs of the same size are ordered by their first pixel in row-major
+	 * order, like the {@link LabelEngine} ranks them.
 	 * @param roots - Integer list of roots
-	 * @param pixels - Set of pixels
 	 */
-	private void sortTrees(ArrayList<Integer> roots, ArrayList<Set<Pixel>> pixels)
+	private void sortTrees(ArrayList<Integer> roots)
 	{
-		roots.sort((r1, r2) -> Integer.compare(ds.get(r2).size(), ds.get(r1).size()));
-		pixels.sort((p1, p2) -> Integer.compare(p2.size(), p1.size()));
+		roots.sort((r1, r2) -> ds.get(r1).size() != ds.get(r2).size()
+				? Integer.compare(ds.get(r2).size(), ds.get(r1).size())
+				: Integer.compare(ds.getSmallest(r1), ds.getSmallest(r2)));
 	}
 
 	/**
-	 * Prepares the image by gathering the roots and the pixels of the image
+	 * Prepares the image by gathering the roots of the k largest blobs.
+	 * Only k roots are kept at a time, the smallest of them on top of a heap.
 	 * @param k - Number of blobs to find
 	 */
 	private void prepImageOutput(int k)
@@ -254,19 +772,150 @@ public class Detector extends JPanel
 		int row = this.img.getHeight(), col = this.img.getWidth();
 
 		int arrLen = this.img.getWidth() * this.img.getHeight();
-		ArrayList<Integer> roots = new ArrayList<>(arrLen);   // Holds the roots of desired blobs
-		ArrayList<Set<Pixel>> pixels = new ArrayList<>(arrLen);   //Holds the pixels of the roots
+		long start = System.nanoTime();
+		PriorityQueue<Integer> top = new PriorityQueue<>(Math.min(k, 1024) + 1,
+				(r1, r2) -> ds.get(r1).size() != ds.get(r2).size()
+						? Integer.compare(ds.get(r1).size(), ds.get(r2).size())
+						: Integer.compare(ds.getSmallest(r2), ds.getSmallest(r1)));
 
 		for (int i = 0; i < arrLen; i++) {
 			if (ds.get(i).size() > 0 && getColor(this.img, getPixel(this.img, i)).equals(Color.BLACK)) {
-				roots.add(i); pixels.add(this.ds.get(i));
+				top.add(i);
+				if(top.size() > k)
+					top.poll();     // drop the smallest
 			}
 		}
-		sortTrees(roots,pixels);
-		if(k > roots.size()) k = roots.size();
-		k = roots.size();
-		System.out.printf("%d/%d\n",k,roots.size());
-		recolor(roots,pixels,k,row,col);
+		ArrayList<Integer> roots = new ArrayList<>(top);
+		sortTrees(roots);
+		start = record(DetectorMetrics.Stage.SELECT, start);
+		recolor(roots,row,col);
+		record(DetectorMetrics.Stage.RECOLOR, start);
+	}
+
+	/**
+	 * Paints the thresholded image into a new output image with the blobs
+	 * found by the {@link LabelEngine} recolored, largest first.
+	 * The color of every blob is looked up once, so the image is painted
+	 * in a single pass no matter how many blobs there are.
+	 * When the result has at most 256 colors it is painted as a palette
+	 * image, which is encoded with 1 to 8 bits per pixel instead of 24.
+	 * With regions of interest only their bounding box is painted.
+	 * @param k - Number of blobs to find
+	 */
+	private void prepLabelOutput(int k)
+	{
+		BufferedImage image = detectedImage();
+		int width = image.getWidth(), height = image.getHeight(), len = width * height;
+		int white = Color.WHITE.getRGB();
+		int[] labels = this.engine.getLabels();
+		long start = System.nanoTime();
+		int[] colors = blobColors(k);
+		start = record(DetectorMetrics.Stage.SELECT, start);
+
+		int[] palette = new int[256];
+		byte[] index = new byte[colors.length];
+		int size = buildPalette(colors, white, palette, index);
+		if(size > 0){
+			this.output = PngEncoder.createIndexed(width,height,palette,size);
+			paintIndexed(labels, index, width, height);
+			record(DetectorMetrics.Stage.RECOLOR, start);
+			return;
+		}
+
+		this.output = new BufferedImage(width,height,BufferedImage.TYPE_INT_RGB);
+		int[] pixels = ((DataBufferInt)this.output.getRaster().getDataBuffer()).getData();
+		for(int id = 0; id < len; id++)
+			pixels[id] = labels[id] == LabelEngine.BACKGROUND ? white : colors[labels[id]];    //recolor
+		record(DetectorMetrics.Stage.RECOLOR, start);
+	}
+
+	/**
+	 * Collects the distinct colors of the output, the background first.
+	 * @param colors     ARGB color of every blob
+	 * @param background ARGB color of the background
+	 * @param palette    Receives the distinct colors
+	 * @param index      Receives the palette index of every blob
+	 * @return Number of colors, or 0 if there are more than 256
+	 */
+	private static int buildPalette(int[] colors, int background, int[] palette, byte[] index)
+	{
+		HashMap<Integer,Integer> seen = new HashMap<>();
+		palette[0] = background;
+		seen.put(background, 0);
+		int last = background, lastIndex = 0;
+		for(int blob = 0; blob < colors.length; blob++){
+			if(colors[blob] != last){      // most blobs share the color of the previous one
+				Integer i = seen.get(colors[blob]);
+				if(i == null){
+					if(seen.size() == palette.length)
+						return 0;
+					i = seen.size();
+					palette[i] = colors[blob];
+					seen.put(colors[blob], i);
+				}
+				last = colors[blob];
+				lastIndex = i;
+			}
+			index[blob] = (byte)lastIndex;
+		}
+		return seen.size();
+	}
+
+	/**
+	 * Paints the palette index of every pixel into the output image,
+	 * packing several pixels to a byte when the palette is small.
+	 * @param labels Blob index of every pixel
+	 * @param index  Palette index of every blob
+	 * @param width  Width of the image
+	 * @param height Height of the image
+	 */
+	private void paintIndexed(int[] labels, byte[] index, int width, int height)
+	{
+		int bits = this.output.getColorModel().getPixelSize();
+		int stride = (width * bits + 7) / 8, perByte = 8 / bits;
+		byte[] data = ((DataBufferByte)this.output.getRaster().getDataBuffer()).getData();
+		int id = 0, label, packed, shift;
+		for(int row = 0; row < height; row++){
+			int p = row * stride;
+			if(bits == 8){
+				for(int col = 0; col < width; col++, id++){
+					label = labels[id];
+					data[p + col] = label == LabelEngine.BACKGROUND ? 0 : index[label];
+				}
+				continue;
+			}
+			for(int col = 0; col < width; col += perByte){
+				packed = 0;
+				shift = 8 - bits;
+				for(int x = col; x < col + perByte && x < width; x++, id++, shift -= bits){
+					label = labels[id];
+					if(label != LabelEngine.BACKGROUND)
+						packed |= index[label] << shift;
+				}
+				data[p++] = (byte)packed;
+			}
+		}
+	}
+
+	/**
+	 * Builds the color of every blob, indexed by blob index.
+	 * The k largest blobs of every target are ranked by size and each rank
+	 * gets the next shade of the color of its target; the other blobs stay black.
+	 * @param k - Number of blobs to find
+	 * @return ARGB color of every blob
+	 */
+	private int[] blobColors(int k)
+	{
+		int[] colors = new int[this.engine.getBlobCount()];
+		Arrays.fill(colors, Color.BLACK.getRGB());
+		List<Target> targets = getTargets();
+
+		for(int target = 0; target < targets.size(); target++){
+			int[] top = topBlobs(k,target);
+			for(int i = 0; i < top.length; i++)
+				colors[top[i]] = getSeqColor(i,top.length,targets.get(target).getColor()).getRGB();
+		}
+		return colors;
 	}
 
 	/**
@@ -282,16 +931,13 @@ public class Detector extends JPanel
 	 */
 	public void outputResults(String outputFileName, int k)
 	{
-		if (k < 1) {
-			throw new IllegalArgumentException(new String("! Error: k should be greater than 0, current k=" + k));
-		}
-
-		prepImageOutput(k);
+		prepOutput(k);
 
 		//Output file
-		try {
-			File ouptut = new File(outputFileName);
-			ImageIO.write(this.img, "png", ouptut);
+		try (OutputStream ouptut = new BufferedOutputStream(new FileOutputStream(outputFileName))) {
+			long start = System.nanoTime();
+			PngEncoder.write(legacy ? this.img : this.output, ouptut, this.deflateLevel);
+			record(DetectorMetrics.Stage.ENCODE, start);
 			System.err.println("- Saved result to "+outputFileName);
 		}
 		catch (Exception e) {
@@ -312,6 +958,62 @@ public class Detector extends JPanel
 		*/
 	}
 
+	/**
+	 * Same as {@link #outputResults(String, int)} but writes the PNG to a stream,
+	 * so nothing is shared between detectors running at the same time.
+	 * The stream is written to while the image is encoded, so it can be a
+	 * response stream without any intermediate buffer or file.
+	 *
+	 * @param out   Stream the PNG is written to, left open
+	 * @param k     Number of blobs to color
+	 * @throws IOException If the image cannot be written
+	 */
+	public void writeResults(OutputStream out, int k) throws IOException
+	{
+		prepOutput(k);
+		long start = System.nanoTime();
+		PngEncoder.write(legacy ? this.img : this.output, out, this.deflateLevel);
+		record(DetectorMetrics.Stage.ENCODE, start);
+	}
+
+	/**
+	 * Records the time spent in every stage from now on.
+	 * @param metrics Metrics to record into, null to record nothing
+	 */
+	public void setMetrics(DetectorMetrics metrics)
+	{
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Records the time spent in a stage, if there are metrics to record into.
+	 * @param stage Stage that just ended
+	 * @param start Value of System.nanoTime when the stage started
+	 * @return Value of System.nanoTime now
+	 */
+	private long record(DetectorMetrics.Stage stage, long start)
+	{
+		if(this.metrics == null)
+			return System.nanoTime();
+		return this.metrics.record(stage, start);
+	}
+
+	/**
+	 * Recolors the output image.
+	 * @param k     Number of blobs to color
+	 */
+	private void prepOutput(int k)
+	{
+		if (k < 1) {
+			throw new IllegalArgumentException(new String("! Error: k should be greater than 0, current k=" + k));
+		}
+
+		if(legacy)
+			prepImageOutput(k);
+		else
+			prepLabelOutput(k);
+	}
+
 	//Main
 	public static void main(String[] args) {
 
@@ -363,10 +1065,55 @@ public class Detector extends JPanel
 		reloadImage();
 	}
 
+	/**
+	 * Constructor for an image that is already decoded,
+	 * for example straight from an upload
+	 * @param image     Buffered Image
+	 * @param blobColor Desired color
+	 * @param okDist    Distance between two colors
+	 */
+	public Detector(BufferedImage image, Color blobColor, int okDist) {
+		if(image == null)
+			throw new NullPointerException("Null image");
+		this.img = image;
+		this.blobColor = blobColor;
+		this.okDist = okDist;
+	}
+
+	/**
+	 * Constructor for a decoded image and several colors,
+	 * which are all found in a single pass
+	 * @param image   Buffered Image
+	 * @param targets Desired colors and their distances
+	 */
+	public Detector(BufferedImage image, List<Target> targets) {
+		this(image, first(targets).getColor(), first(targets).getOkDist());
+		if(targets.size() > Threshold.MAX_TARGETS)
+			throw new IllegalArgumentException("At most " + Threshold.MAX_TARGETS + " targets are supported");
+		this.targets = Collections.unmodifiableList(new ArrayList<>(targets));
+	}
+
+	/**
+	 * Returns the first target, which the single color fields are set from.
+	 * Throws IllegalArgumentException if there is none.
+	 * @param targets Desired colors and their distances
+	 * @return First target
+	 */
+	private static Target first(List<Target> targets) {
+		if(targets == null)
+			throw new NullPointerException("Null targets");
+		if(targets.isEmpty())
+			throw new IllegalArgumentException("At least one target is needed");
+		return targets.get(0);
+	}
+
 	/**
 	 * Reads the original image from the file.
+	 * Does nothing if the detector was given a decoded image.
 	 */
 	public void reloadImage() {
+		if(this.imgFileName == null)
+			return;
 		File imageFile = new File(this.imgFileName);
 
 		try {
@@ -475,12 +1222,23 @@ public class Detector extends JPanel
 	 * @return Next color in sequence
 	 */
 	private Color getSeqColor(int i, int max) {
+		return getSeqColor(i, max, blobColor);
+	}
+
+	/**
+	 * {@code Pass 0 -> k-1 as i to get the color for the blobs 0 -> k-1}
+	 * @param i Initial value
+	 * @param max Max value
+	 * @param color Color of the largest blob
+	 * @return Next shade of color in sequence
+	 */
+	private static Color getSeqColor(int i, int max, Color color) {
 		if(i < 0) i = 0;
 		if(i >= max) i = max-1;
 
-		int r = (int)(((max-i+1)/(double)(max+1)) * blobColor.getRed());
-		int g = (int)(((max-i+1)/(double)(max+1)) * blobColor.getGreen());
-		int b = (int)(((max-i+1)/(double)(max+1)) * blobColor.getBlue());
+		int r = (int)(((max-i+1)/(double)(max+1)) * color.getRed());
+		int g = (int)(((max-i+1)/(double)(max+1)) * color.getGreen());
+		int b = (int)(((max-i+1)/(double)(max+1)) * color.getBlue());
 
 		if(r == 0 && g == 0 && b == 0) {
 			r = g = b = 10;
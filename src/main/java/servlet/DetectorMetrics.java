@@ -0,0 +1,295 @@
+package servlet;
+
+import javax.servlet.ServletContext;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * DetectorMetrics collects timings and counters of the detection pipeline
+ * and writes them in the Prometheus text format.
+ *
+ * Every stage of a detection, from reading the upload to encoding the
+ * output, is recorded in a latency histogram, and so is every request per
+ * endpoint. Counters and histograms are lock free, so recording from many
+ * workers at once costs a few atomic adds and never blocks a detection.
+ */
+public class DetectorMetrics
+{
+	/**
+	 * Name of the servlet context attribute that holds the shared metrics
+	 */
+	private static final String ATTRIBUTE = DetectorMetrics.class.getName();
+	/**
+	 * Upper bounds of the histogram buckets, in seconds
+	 */
+	private static final double[] BUCKETS = {0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60};
+
+	/**
+	 * Stage of the pipeline
+	 */
+	public enum Stage
+	{
+		/** Reading and hashing the uploaded bytes */
+		UPLOAD,
+		/** Decoding the image */
+		DECODE,
+		/** Building the mask of matching pixels */
+		THRESHOLD,
+		/** Labeling the blobs of the mask */
+		LABEL,
+		/** Picking the largest blobs and their statistics */
+		SELECT,
+		/** Painting the output image */
+		RECOLOR,
+		/** Encoding the output image, including writing it to the client when streamed */
+		ENCODE
+	}
+
+	/**
+	 * Time spent in every stage, by stage ordinal
+	 */
+	private final Histogram[] stages = new Histogram[Stage.values().length];
+	/**
+	 * Time spent on requests, by endpoint
+	 */
+	private final ConcurrentHashMap<String, Histogram> requests = new ConcurrentHashMap<>();
+	/**
+	 * Executors whose queues are reported, by name
+	 */
+	private final ConcurrentHashMap<String, DetectionExecutor> executors = new ConcurrentHashMap<>();
+	/**
+	 * Detection counters
+	 */
+	private final LongAdder detections = new LongAdder(), pixels = new LongAdder(), blobs = new LongAdder();
+	/**
+	 * Requests being served right now
+	 */
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	/**
+	 * Creates empty metrics.
+	 */
+	public DetectorMetrics()
+	{
+		for(int i = 0; i < stages.length; i++)
+			stages[i] = new Histogram();
+	}
+
+	/**
+	 * Returns the metrics shared by every servlet of the application.
+	 *
+	 * @param context Servlet context
+	 * @return Shared metrics
+	 */
+	public static DetectorMetrics get(ServletContext context)
+	{
+		synchronized(context){
+			DetectorMetrics metrics = (DetectorMetrics)context.getAttribute(ATTRIBUTE);
+			if(metrics == null){
+				metrics = new DetectorMetrics();
+				context.setAttribute(ATTRIBUTE, metrics);
+			}
+			return metrics;
+		}
+	}
+
+	/**
+	 * Records the time spent in a stage that started at the given time.
+	 *
+	 * @param stage Stage
+	 * @param start Value of System.nanoTime when the stage started
+	 * @return Value of System.nanoTime now, so the next stage can start from it
+	 */
+	public long record(Stage stage, long start)
+	{
+		long now = System.nanoTime();
+		stages[stage.ordinal()].observe(now - start);
+		return now;
+	}
+
+	/**
+	 * Counts a finished detection.
+	 *
+	 * @param pixelCount Number of pixels of the image
+	 * @param blobCount  Number of blobs found
+	 */
+	public void countDetection(long pixelCount, int blobCount)
+	{
+		detections.increment();
+		pixels.add(pixelCount);
+		blobs.add(blobCount);
+	}
+
+	/**
+	 * Reports the queue of an executor.
+	 *
+	 * @param name     Name of the executor
+	 * @param executor Executor
+	 */
+	public void register(String name, DetectionExecutor executor)
+	{
+		executors.put(name, executor);
+	}
+
+	/**
+	 * Counts a request that has started.
+	 */
+	public void requestStarted()
+	{
+		inFlight.incrementAndGet();
+	}
+
+	/**
+	 * Records a request that has finished.
+	 *
+	 * @param endpoint Path of the servlet that served it
+	 * @param nanos    Time the request took
+	 */
+	public void requestFinished(String endpoint, long nanos)
+	{
+		inFlight.decrementAndGet();
+		requests.computeIfAbsent(endpoint, e -> new Histogram()).observe(nanos);
+	}
+
+	/**
+	 * Writes every metric in the Prometheus text format.
+	 *
+	 * @param out   Writer
+	 * @param cache Result cache to report, or null
+	 */
+	public void write(PrintWriter out, ResultCache cache)
+	{
+		out.println("# HELP detector_stage_seconds Time spent in each stage of the detection pipeline.");
+		out.println("# TYPE detector_stage_seconds histogram");
+		for(Stage stage : Stage.values())
+			stages[stage.ordinal()].write(out, "detector_stage_seconds", "stage=\"" + stage.name().toLowerCase() + "\"");
+
+		out.println("# HELP detector_request_seconds Time spent serving requests, by endpoint.");
+		out.println("# TYPE detector_request_seconds histogram");
+		for(Map.Entry<String, Histogram> request : new TreeMap<>(requests).entrySet())
+			request.getValue().write(out, "detector_request_seconds", "endpoint=\"" + request.getKey() + "\"");
+
+		counter(out, "detector_detections_total", "Detections run.", detections.sum());
+		counter(out, "detector_pixels_total", "Pixels thresholded and labeled.", pixels.sum());
+		counter(out, "detector_blobs_total", "Blobs found.", blobs.sum());
+		double labelSeconds = (stages[Stage.THRESHOLD.ordinal()].sum.sum() + stages[Stage.LABEL.ordinal()].sum.sum()) / 1e9;
+		gauge(out, "detector_pixels_per_second", "Pixels thresholded and labeled per second of threshold and label time.",
+				labelSeconds == 0 ? 0.0 : pixels.sum() / labelSeconds);
+		gauge(out, "detector_requests_in_flight", "Requests being served.", inFlight.get());
+
+		out.println("# HELP detector_queue_depth Detections waiting for a worker.");
+		out.println("# TYPE detector_queue_depth gauge");
+		for(Map.Entry<String, DetectionExecutor> executor : new TreeMap<>(executors).entrySet())
+			out.println("detector_queue_depth{executor=\"" + executor.getKey() + "\"} " + executor.getValue().getQueueDepth());
+		out.println("# HELP detector_active_workers Workers running a detection.");
+		out.println("# TYPE detector_active_workers gauge");
+		for(Map.Entry<String, DetectionExecutor> executor : new TreeMap<>(executors).entrySet())
+			out.println("detector_active_workers{executor=\"" + executor.getKey() + "\"} " + executor.getValue().getActiveCount());
+
+		if(cache != null){
+			counter(out, "detector_cache_hits_total", "Result cache lookups that found an entry.", cache.getHits());
+			counter(out, "detector_cache_misses_total", "Result cache lookups that found nothing.", cache.getMisses());
+			counter(out, "detector_cache_evictions_total", "Result cache entries evicted to stay within budget.", cache.getEvictions());
+			gauge(out, "detector_cache_bytes", "Bytes held by the result cache.", cache.getBytes());
+		}
+	}
+
+	/**
+	 * Writes a counter.
+	 */
+	private static void counter(PrintWriter out, String name, String help, long value)
+	{
+		out.println("# HELP " + name + " " + help);
+		out.println("# TYPE " + name + " counter");
+		out.println(name + " " + value);
+	}
+
+	/**
+	 * Writes a gauge.
+	 */
+	private static void gauge(PrintWriter out, String name, String help, double value)
+	{
+		out.println("# HELP " + name + " " + help);
+		out.println("# TYPE " + name + " gauge");
+		out.println(name + " " + value);
+	}
+
+	/**
+	 * Writes a gauge that only takes whole values.
+	 */
+	private static void gauge(PrintWriter out, String name, String help, long value)
+	{
+		out.println("# HELP " + name + " " + help);
+		out.println("# TYPE " + name + " gauge");
+		out.println(name + " " + value);
+	}
+
+	/**
+	 * Latency histogram with fixed buckets
+	 */
+	private static class Histogram
+	{
+		/**
+		 * Upper bounds of the buckets, in nanoseconds
+		 */
+		private static final long[] BOUNDS = new long[BUCKETS.length];
+
+		static {
+			for(int i = 0; i < BUCKETS.length; i++)
+				BOUNDS[i] = (long)(BUCKETS[i] * 1e9);
+		}
+
+		/**
+		 * Number of observations that fell in each bucket, the last one is +Inf
+		 */
+		private final LongAdder[] counts = new LongAdder[BOUNDS.length + 1];
+		/**
+		 * Sum of the observations, in nanoseconds
+		 */
+		private final LongAdder sum = new LongAdder();
+
+		/**
+		 * Creates an empty histogram
+		 */
+		private Histogram()
+		{
+			for(int i = 0; i < counts.length; i++)
+				counts[i] = new LongAdder();
+		}
+
+		/**
+		 * Records one observation.
+		 * @param nanos Duration
+		 */
+		private void observe(long nanos)
+		{
+			int bucket = 0;
+			while(bucket < BOUNDS.length && nanos > BOUNDS[bucket])
+				bucket++;
+			counts[bucket].increment();
+			sum.add(nanos);
+		}
+
+		/**
+		 * Writes the cumulative buckets, the sum and the count.
+		 * @param out    Writer
+		 * @param name   Metric name
+		 * @param labels Labels of this histogram
+		 */
+		private void write(PrintWriter out, String name, String labels)
+		{
+			long total = 0;
+			for(int i = 0; i < counts.length; i++){
+				total += counts[i].sum();
+				String le = i < BUCKETS.length ? Double.toString(BUCKETS[i]) : "+Inf";
+				out.println(name + "_bucket{" + labels + ",le=\"" + le + "\"} " + total);
+			}
+			out.println(name + "_sum{" + labels + "} " + sum.sum() / 1e9);
+			out.println(name + "_count{" + labels + "} " + total);
+		}
+	}
+}
@@ -15,6 +15,10 @@ public class DisjointSets<T>
 	 * Holds the roots based on union by size
 	 */
 	private int[] s;
+	/**
+	 * Smallest index in the set of every root
+	 */
+	private int[] smallest;
 	/**
 	 * Holds the acutal data of the sets
 	 */
@@ -31,8 +35,10 @@ public class DisjointSets<T>
 		Set<T> tempSet;
 		sets = new ArrayList<>(data.size());
 		s = new int[data.size()];
+		smallest = new int[data.size()];
 		for(int i = 0; i < s.length; i++){
 			s[i] = -1;
+			smallest[i] = i;
 			tempSet = new Set<>();
 			tempSet.add(data.get(i));
 			sets.add(tempSet);
@@ -58,12 +64,14 @@ public class DisjointSets<T>
 		if( s[root2] < s[root1] ) {             // root2 is deeper
 			s[root2] += s[root1];
 			newRoot = s[root1] = root2;        // Make root2 new root
+			smallest[root2] = Math.min(smallest[root2], smallest[root1]);
 			addAll(root2,root1);
 		}else if(root1==root2){
 			newRoot = root1;
 		} else {
 			s[root1]--;
 			newRoot = s[root2] = root1;        // Make root1 new root
+			smallest[root1] = Math.min(smallest[root1], smallest[root2]);
 			addAll(root1,root2);
 		}
 		return newRoot;
@@ -83,9 +91,15 @@ public class DisjointSets<T>
 		if(s[x] < 0 )
 			return x;
 
-		while(s[x] >= 0)    // Compress path
-			x = s[x];
-		return x;
+		int root = x, next;
+		while(s[root] >= 0)
+			root = s[root];
+		while(x != root){   // Compress path
+			next = s[x];
+			s[x] = root;
+			x = next;
+		}
+		return root;
 	}
 
 	/**
@@ -99,6 +113,18 @@ public class DisjointSets<T>
 		return sets.get(root);
 	}
 
+	/**
+	 * Returns the smallest index in the set of a root.
+	 * The root itself is often not the smallest, union by size picks it.
+	 *
+	 * @param root Root set
+	 * @return Smallest index
+	 */
+	public int getSmallest(int root)
+	{
+		return smallest[root];
+	}
+
 	/**
 	 * Validates that the two roots are in fact roots and not non-roots
 	 * @param root1 First Root
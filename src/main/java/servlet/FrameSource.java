@@ -0,0 +1,460 @@
+package servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * FrameSource hands out the encoded frames of a sequence one at a time,
+ * so a sequence is never held in memory as a whole.
+ *
+ * Frames come from a directory of images sorted by file name, a ZIP of
+ * images in archive order, or a Motion JPEG stream, which is JPEG images
+ * written one after the other.
+ */
+public abstract class FrameSource implements Closeable
+{
+	/**
+	 * File name extensions of the images taken from a directory or a ZIP
+	 */
+	private static final String[] EXTENSIONS = {".png", ".jpg", ".jpeg", ".bmp", ".gif"};
+
+	/**
+	 * Returns the next frame.
+	 * @return Frame, or null after the last one
+	 * @throws IOException If the frame cannot be read
+	 */
+	public abstract Frame next() throws IOException;
+
+	/**
+	 * Returns the number of frames skipped because they were damaged.
+	 * @return Frames skipped so far
+	 */
+	public int getDropped()
+	{
+		return 0;
+	}
+
+	/**
+	 * Reads the images of a directory, sorted by file name.
+	 *
+	 * @param directory Directory of frames
+	 * @return Frame source
+	 * @throws IOException If the directory cannot be listed
+	 */
+	public static FrameSource directory(File directory) throws IOException
+	{
+		File[] files = directory.listFiles(file -> file.isFile() && isImage(file.getName()));
+		if(files == null)
+			throw new IOException("Cannot list " + directory);
+		Arrays.sort(files);
+		return new FrameSource()
+		{
+			private int next;
+
+			@Override
+			public Frame next() throws IOException
+			{
+				if(next == files.length)
+					return null;
+				File file = files[next++];
+				return new Frame(file.getName(), Files.readAllBytes(file.toPath()));
+			}
+
+			@Override
+			public void close()
+			{
+			}
+		};
+	}
+
+	/**
+	 * Reads the images of a ZIP, in archive order.
+	 *
+	 * @param zip          ZIP of frames, closed with the source
+	 * @param maxFrameSize Largest frame accepted, in bytes
+	 * @return Frame source
+	 */
+	public static FrameSource zip(InputStream zip, int maxFrameSize)
+	{
+		ZipInputStream entries = new ZipInputStream(zip);
+		return new FrameSource()
+		{
+			@Override
+			public Frame next() throws IOException
+			{
+				for(ZipEntry entry; (entry = entries.getNextEntry()) != null; )
+					if(!entry.isDirectory() && isImage(entry.getName()))
+						return new Frame(entry.getName(), readAll(entries, maxFrameSize));
+				return null;
+			}
+
+			@Override
+			public void close() throws IOException
+			{
+				entries.close();
+			}
+		};
+	}
+
+	/**
+	 * Reads a Motion JPEG stream.
+	 * Anything between two images, like the boundaries of a multipart
+	 * stream, is skipped. A damaged or too large image is dropped and
+	 * counted, and reading goes on from the next start of image. A last
+	 * image that is cut short is dropped.
+	 *
+	 * @param mjpeg        Stream of JPEG images, closed with the source
+	 * @param maxFrameSize Largest frame accepted, in bytes
+	 * @return Frame source
+	 */
+	public static FrameSource mjpeg(InputStream mjpeg, int maxFrameSize)
+	{
+		return new MjpegSource(mjpeg, maxFrameSize);
+	}
+
+	/**
+	 * Opens the frames of a path: a directory, a ZIP or a Motion JPEG file.
+	 *
+	 * @param path         Directory or file
+	 * @param maxFrameSize Largest frame accepted, in bytes
+	 * @return Frame source
+	 * @throws IOException If the path cannot be read
+	 */
+	public static FrameSource open(File path, int maxFrameSize) throws IOException
+	{
+		if(path.isDirectory())
+			return directory(path);
+		InputStream in = new FileInputStream(path);
+		if(path.getName().toLowerCase(Locale.ROOT).endsWith(".zip"))
+			return zip(in, maxFrameSize);
+		return mjpeg(in, maxFrameSize);
+	}
+
+	/**
+	 * Returns true if a file name looks like an image.
+	 * @param name File name
+	 * @return True for the extensions ImageIO reads
+	 */
+	private static boolean isImage(String name)
+	{
+		String lower = name.toLowerCase(Locale.ROOT);
+		for(String extension : EXTENSIONS)
+			if(lower.endsWith(extension))
+				return true;
+		return false;
+	}
+
+	/**
+	 * Reads a stream to its end.
+	 * @param in      Stream, not closed
+	 * @param maxSize Largest number of bytes accepted
+	 * @return Bytes
+	 * @throws IOException If the stream cannot be read or is too long
+	 */
+	private static byte[] readAll(InputStream in, int maxSize) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[64 * 1024];
+		int read;
+		while((read = in.read(buffer)) != -1){
+			bytes.write(buffer, 0, read);
+			if(bytes.size() > maxSize)
+				throw new IOException("Frame is larger than " + maxSize + " bytes");
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * One encoded frame
+	 */
+	public static class Frame
+	{
+		/**
+		 * Name of the frame, its file name or its number in a stream
+		 */
+		private final String name;
+		/**
+		 * Encoded image
+		 */
+		private final byte[] bytes;
+
+		/**
+		 * Creates a frame
+		 * @param name  Name of the frame
+		 * @param bytes Encoded image
+		 */
+		public Frame(String name, byte[] bytes)
+		{
+			this.name = name;
+			this.bytes = bytes;
+		}
+
+		/**
+		 * Returns the name of the frame.
+		 * @return Name
+		 */
+		public String getName()
+		{
+			return name;
+		}
+
+		/**
+		 * Returns the encoded image.
+		 * @return Bytes
+		 */
+		public byte[] getBytes()
+		{
+			return bytes;
+		}
+	}
+
+	/**
+	 * Splits a Motion JPEG stream into its images by following the JPEG
+	 * markers: segments are skipped by their length, so a thumbnail inside
+	 * a header does not end the image early, and the compressed data of a
+	 * scan is read until a marker that is neither byte stuffing nor a restart.
+	 * Bytes go through plain arrays, the synchronized streams would take a
+	 * lock for every byte.
+	 *
+	 * When a marker is missing where one should be, the bytes of the image
+	 * read so far are searched again for a start of image, since the image
+	 * may have been cut short by the next one.
+	 */
+	private static class MjpegSource extends FrameSource
+	{
+		/**
+		 * Start of image, end of image and start of scan markers
+		 */
+		private static final int SOI = 0xD8, EOI = 0xD9, SOS = 0xDA;
+
+		/**
+		 * Stream of images
+		 */
+		private final InputStream in;
+		/**
+		 * Largest frame accepted, in bytes
+		 */
+		private final int maxFrameSize;
+		/**
+		 * Bytes read from the stream
+		 */
+		private final byte[] buffer = new byte[64 * 1024];
+		/**
+		 * Next byte of the buffer to use and end of the bytes read
+		 */
+		private int pos, limit;
+		/**
+		 * Bytes of a damaged image to read again before the stream, or null
+		 */
+		private byte[] replay;
+		/**
+		 * Next byte of the replayed bytes to use
+		 */
+		private int replayPos;
+		/**
+		 * Image being read
+		 */
+		private byte[] frame;
+		/**
+		 * Number of bytes of the image read so far
+		 */
+		private int size;
+		/**
+		 * True once the image being read went over the largest frame size
+		 */
+		private boolean overflow;
+		/**
+		 * Number of images read
+		 */
+		private int count;
+		/**
+		 * Number of images dropped
+		 */
+		private int dropped;
+
+		/**
+		 * Creates a source
+		 */
+		private MjpegSource(InputStream in, int maxFrameSize)
+		{
+			this.in = in;
+			this.maxFrameSize = maxFrameSize;
+			this.frame = new byte[Math.min(256 * 1024, maxFrameSize)];
+		}
+
+		@Override
+		public Frame next() throws IOException
+		{
+			try {
+				while(true){
+					size = 0;
+					overflow = false;
+					for(int previous = 0, b; ; previous = b){    // skip to the next start of image
+						b = read();
+						if(previous == 0xFF && b == SOI)
+							break;
+					}
+					write(0xFF);
+					write(SOI);
+					if(readImage() && !overflow)
+						return new Frame(String.format("frame%06d.jpg", ++count), Arrays.copyOf(frame, size));
+					dropped++;
+				}
+			}catch (EOFException e){
+				return null;    // no more images, or the last one was cut short
+			}
+		}
+
+		@Override
+		public int getDropped()
+		{
+			return dropped;
+		}
+
+		/**
+		 * Copies an image after its start of image marker, up to its end of image marker.
+		 * @return True if the image is whole, false if a marker is damaged
+		 * @throws IOException If the stream ends
+		 */
+		private boolean readImage() throws IOException
+		{
+			int marker = nextMarker();
+			while(marker != EOI){
+				if(marker < 0){
+					resync();
+					return false;
+				}
+				if(marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)){      // no length
+					marker = nextMarker();
+					continue;
+				}
+				int high = read(), low = read();
+				write(high);
+				write(low);
+				for(int length = (high << 8 | low) - 2; length > 0; length--)
+					write(read());
+				marker = marker == SOS ? scan() : nextMarker();
+			}
+			return true;
+		}
+
+		/**
+		 * Reads again the bytes of a damaged image from the first start of
+		 * image after its own, so an image that cut it short is not lost.
+		 */
+		private void resync()
+		{
+			int from = 2;
+			while(from + 1 < size && !(frame[from] == (byte)0xFF && frame[from + 1] == (byte)SOI))
+				from++;
+			if(from + 1 >= size)
+				return;
+			byte[] bytes = Arrays.copyOfRange(frame, from, size);
+			if(replay != null){     // still replaying an earlier image
+				int left = replay.length - replayPos;
+				bytes = Arrays.copyOf(bytes, bytes.length + left);
+				System.arraycopy(replay, replayPos, bytes, bytes.length - left, left);
+			}
+			replay = bytes;
+			replayPos = 0;
+		}
+
+		/**
+		 * Copies the next marker, skipping fill bytes.
+		 * @return Marker code, or -1 if there is no marker where one should be
+		 * @throws IOException If the stream ends
+		 */
+		private int nextMarker() throws IOException
+		{
+			int b = read();
+			if(b != 0xFF){
+				write(b);   // kept for resync
+				return -1;
+			}
+			int marker;
+			while((marker = read()) == 0xFF);
+			write(0xFF);
+			write(marker);
+			return marker;
+		}
+
+		/**
+		 * Copies the compressed data of a scan.
+		 * @return Marker that ends the scan
+		 * @throws IOException If the stream ends
+		 */
+		private int scan() throws IOException
+		{
+			while(true){
+				int b = read();
+				if(b != 0xFF){
+					write(b);
+					continue;
+				}
+				int marker;
+				while((marker = read()) == 0xFF);
+				write(0xFF);
+				write(marker);
+				if(marker != 0x00 && (marker < 0xD0 || marker > 0xD7))
+					return marker;
+			}
+		}
+
+		/**
+		 * Reads one byte.
+		 * @return Byte
+		 * @throws IOException If the stream ends
+		 */
+		private int read() throws IOException
+		{
+			if(replay != null){
+				int b = replay[replayPos++] & 0xFF;
+				if(replayPos == replay.length)
+					replay = null;
+				return b;
+			}
+			if(pos == limit){
+				limit = in.read(buffer);
+				pos = 0;
+				if(limit <= 0){
+					limit = 0;
+					throw new EOFException();
+				}
+			}
+			return buffer[pos++] & 0xFF;
+		}
+
+		/**
+		 * Appends one byte to the image.
+		 * Bytes past the largest frame size are not kept, the image is dropped.
+		 * @param b Byte
+		 */
+		private void write(int b)
+		{
+			if(size == frame.length){
+				if(size >= maxFrameSize){
+					overflow = true;
+					return;
+				}
+				frame = Arrays.copyOf(frame, (int)Math.min(maxFrameSize, 2L * size));
+			}
+			frame[size++] = (byte)b;
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,277 @@
+package servlet;
+
+import javax.servlet.ServletContext;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.UUID;
+
+/**
+ * ImageSessionCache keeps decoded uploads in memory so that a user can try
+ * many colors and distances on one image without uploading it again.
+ *
+ * Every image is stored as TYPE_INT_RGB, so its data buffer is already the
+ * packed color array the threshold reads, except palette images, which are
+ * kept as they are: they take less memory and the threshold only has to
+ * look at their palette. A session expires after it has
+ * not been used for a while, and the least recently used sessions are
+ * dropped when the decoded pixels go over a memory budget.
+ *
+ * Images in a session are shared by concurrent detections and must not be modified.
+ */
+public class ImageSessionCache
+{
+	/**
+	 * Name of the servlet context attribute that holds the shared cache
+	 */
+	private static final String ATTRIBUTE = ImageSessionCache.class.getName();
+
+	/**
+	 * Sessions by id, least recently used first
+	 */
+	private final LinkedHashMap<String, Session> sessions = new LinkedHashMap<>(16, 0.75f, true);
+	/**
+	 * Largest number of pixel bytes the cache may hold
+	 */
+	private final long maxBytes;
+	/**
+	 * Time a session may stay unused
+	 */
+	private final long ttlMillis;
+	/**
+	 * Number of pixel bytes held right now
+	 */
+	private long bytes;
+
+	/**
+	 * Creates a cache.
+	 *
+	 * @param maxBytes  Memory budget for decoded pixels
+	 * @param ttlMillis Time a session may stay unused
+	 */
+	public ImageSessionCache(long maxBytes, long ttlMillis)
+	{
+		this.maxBytes = maxBytes;
+		this.ttlMillis = ttlMillis;
+	}
+
+	/**
+	 * Returns the cache shared by every servlet of the application.
+	 *
+	 * @param context Servlet context
+	 * @return Shared cache
+	 */
+	public static ImageSessionCache get(ServletContext context)
+	{
+		synchronized(context){
+			ImageSessionCache cache = (ImageSessionCache)context.getAttribute(ATTRIBUTE);
+			if(cache == null){
+				cache = new ImageSessionCache(Long.getLong("detector.sessions.bytes", 512L * 1024 * 1024),
+						Long.getLong("detector.sessions.ttl", 10 * 60) * 1000);
+				context.setAttribute(ATTRIBUTE, cache);
+			}
+			return cache;
+		}
+	}
+
+	/**
+	 * Stores an image in a new session.
+	 *
+	 * Throws IllegalArgumentException if the image alone is over the memory budget.
+	 *
+	 * @param image Decoded image
+	 * @param hash  Hash of the uploaded bytes
+	 * @return New session
+	 */
+	public Session create(BufferedImage image, String hash)
+	{
+		Session session = new Session(UUID.randomUUID().toString(), toStored(image), hash);
+		if(session.bytes > maxBytes)
+			throw new IllegalArgumentException("Image is too large to keep in a session");
+
+		synchronized(this){
+			long now = System.currentTimeMillis();
+			session.lastUsed = now;
+			sessions.put(session.id, session);
+			bytes += session.bytes;
+
+			Iterator<Session> eldest = sessions.values().iterator();
+			while(eldest.hasNext()){
+				Session old = eldest.next();
+				if(old != session && (bytes > maxBytes || now - old.lastUsed > ttlMillis)){
+					eldest.remove();
+					bytes -= old.bytes;
+				}else if(bytes <= maxBytes){
+					break;      // the rest was used more recently
+				}
+			}
+		}
+		return session;
+	}
+
+	/**
+	 * Finds a session and marks it as used.
+	 *
+	 * @param id Session id
+	 * @return Session, or null if it does not exist or has expired
+	 */
+	public synchronized Session get(String id)
+	{
+		if(id == null)
+			return null;
+		Session session = sessions.get(id);
+		if(session == null)
+			return null;
+		long now = System.currentTimeMillis();
+		if(now - session.lastUsed > ttlMillis){
+			sessions.remove(id);
+			bytes -= session.bytes;
+			return null;
+		}
+		session.lastUsed = now;
+		return session;
+	}
+
+	/**
+	 * Ends a session.
+	 *
+	 * @param id Session id
+	 * @return True if the session existed
+	 */
+	public synchronized boolean remove(String id)
+	{
+		Session session = id == null ? null : sessions.remove(id);
+		if(session == null)
+			return false;
+		bytes -= session.bytes;
+		return true;
+	}
+
+	/**
+	 * Returns the time a session may stay unused.
+	 * @return Milliseconds
+	 */
+	public long getTtlMillis()
+	{
+		return ttlMillis;
+	}
+
+	/**
+	 * Converts an image to TYPE_INT_RGB, or returns it if it already is
+	 * TYPE_INT_RGB or a palette image.
+	 * Alpha is dropped, like {@link Detector#thresh} ignores it.
+	 *
+	 * @param image Image
+	 * @return TYPE_INT_RGB or palette image
+	 */
+	static BufferedImage toStored(BufferedImage image)
+	{
+		if(image.getType() == BufferedImage.TYPE_INT_RGB || image.getColorModel() instanceof IndexColorModel)
+			return image;
+		BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = rgb.createGraphics();
+		try {
+			g.setComposite(AlphaComposite.Src);
+			g.drawImage(image, 0, 0, null);
+		}finally {
+			g.dispose();
+		}
+		return rgb;
+	}
+
+	/**
+	 * One decoded upload
+	 */
+	public static class Session
+	{
+		/**
+		 * Session id
+		 */
+		private final String id;
+		/**
+		 * Decoded image, TYPE_INT_RGB or palette
+		 */
+		private final BufferedImage image;
+		/**
+		 * Hash of the uploaded bytes
+		 */
+		private final String hash;
+		/**
+		 * Bytes of decoded pixels and of their pyramid
+		 */
+		private final long bytes;
+		/**
+		 * Last time the session was used
+		 */
+		private long lastUsed;
+		/**
+		 * Pyramid of the image, built by the first coarse to fine detection
+		 */
+		private volatile TilePyramid pyramid;
+
+		/**
+		 * Creates a session
+		 * @param id    Session id
+		 * @param image Decoded image
+		 * @param hash  Hash of the uploaded bytes
+		 */
+		private Session(String id, BufferedImage image, String hash)
+		{
+			this.id = id;
+			this.image = image;
+			this.hash = hash;
+			DataBuffer buffer = image.getRaster().getDataBuffer();
+			this.bytes = (long)buffer.getSize() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8
+					+ TilePyramid.sizeOf(image.getWidth(), image.getHeight());     // budgeted before it is built
+		}
+
+		/**
+		 * Returns the session id.
+		 * @return Id
+		 */
+		public String getId()
+		{
+			return id;
+		}
+
+		/**
+		 * Returns the decoded image.
+		 * @return TYPE_INT_RGB or palette image, must not be modified
+		 */
+		public BufferedImage getImage()
+		{
+			return image;
+		}
+
+		/**
+		 * Returns the pyramid of the image, building it the first time.
+		 * Every color tried on the session then skips the same empty tiles
+		 * without reading the image again.
+		 * @return Pyramid, shared and never modified
+		 */
+		public TilePyramid getPyramid()
+		{
+			TilePyramid built = pyramid;
+			if(built == null){
+				synchronized(this){
+					if(pyramid == null)
+						pyramid = TilePyramid.build(image);
+					built = pyramid;
+				}
+			}
+			return built;
+		}
+
+		/**
+		 * Returns the hash of the uploaded bytes.
+		 * @return SHA-256 as hex
+		 */
+		public String getHash()
+		{
+			return hash;
+		}
+	}
+}
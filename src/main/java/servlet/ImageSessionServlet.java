@@ -0,0 +1,92 @@
+package servlet;
+
+import javax.imageio.ImageIO;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.MultipartConfig;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.Part;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+
+/**
+ * Creates and ends image sessions.
+ *
+ * POST an image as img to decode it once and get a session id back. The id
+ * can then be passed to /colorDetector as session together with any color
+ * and distance. DELETE with session ends the session early; otherwise it
+ * expires once it has not been used for a while.
+ */
+@WebServlet(name = "imageSession", urlPatterns = {"/session"})
+@MultipartConfig(fileSizeThreshold = 16 * 1024 * 1024, maxFileSize = 256 * 1024 * 1024)
+public class ImageSessionServlet extends HttpServlet
+{
+	/**
+	 * Decoded uploads, shared with {@link OnlineBlobDetector}
+	 */
+	private ImageSessionCache sessions;
+	/**
+	 * Stage timings and counters, shared with {@link MetricsServlet}
+	 */
+	private DetectorMetrics metrics;
+
+	@Override
+	public void init() throws ServletException
+	{
+		super.init();
+		ImageIO.setUseCache(false);
+		sessions = ImageSessionCache.get(getServletContext());
+		metrics = DetectorMetrics.get(getServletContext());
+	}
+
+	@Override
+	protected void doPost(HttpServletRequest request, HttpServletResponse response)
+			throws ServletException, IOException
+	{
+		Part upload = DetectionRequest.isMultipart(request) ? request.getPart("img") : null;
+		if(upload == null || upload.getSize() == 0){
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Please upload an image");
+			return;
+		}
+
+		long start = System.nanoTime();
+		MessageDigest digest = ResultCache.newDigest();
+		BufferedImage image;
+		try(InputStream fileContent = new DigestInputStream(upload.getInputStream(), digest)) {
+			image = ImageIO.read(fileContent);      // hash while decoding
+			byte[] rest = new byte[8192];
+			while(fileContent.read(rest) != -1);    // hash whatever the decoder left
+		}
+		metrics.record(DetectorMetrics.Stage.DECODE, start);
+		if(image == null){
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unsupported image format");
+			return;
+		}
+
+		ImageSessionCache.Session session;
+		try {
+			session = sessions.create(image, ResultCache.toHex(digest));
+		}catch (IllegalArgumentException e){
+			response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, e.getMessage());
+			return;
+		}
+
+		response.setContentType("application/json");
+		response.getWriter().printf("{\"session\":\"%s\",\"width\":%d,\"height\":%d,\"ttlSeconds\":%d}",
+				session.getId(), image.getWidth(), image.getHeight(), sessions.getTtlMillis() / 1000);
+	}
+
+	@Override
+	protected void doDelete(HttpServletRequest request, HttpServletResponse response) throws IOException
+	{
+		if(sessions.remove(request.getParameter("session")))
+			response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+		else
+			response.sendError(HttpServletResponse.SC_NOT_FOUND, "Unknown or expired session");
+	}
+}
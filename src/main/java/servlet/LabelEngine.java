@@ -0,0 +1,1147 @@
+package servlet;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * LabelEngine finds the connected components of a thresholded image
+ * using nothing but primitive arrays indexed by pixel id.
+ *
+ * Every foreground pixel starts as its own root in a parent array.
+ * Roots are always linked towards the smaller pixel id, so the root of
+ * a blob is the first pixel of that blob in row-major order and a
+ * parent id is never larger than its child id. That invariant lets a
+ * single forward pass resolve every pixel to a compact blob index.
+ * When the original image is given, the same pass also collects the
+ * bounding box, centroid and mean color of every blob. Every blob
+ * remembers the mask value it was labeled from, so a mask holding several
+ * classes of pixels is labeled in one pass.
+ *
+ * The engine keeps its arrays between calls so that the same instance
+ * can label several images of the same size without reallocating.
+ *
+ * Large images can be labeled in parallel: the image is cut into
+ * horizontal strips that are labeled concurrently, then the blobs that
+ * touch across strip boundaries are merged. Because roots always end up
+ * on the smallest pixel id, the result is identical to the sequential scan.
+ *
+ * Run-length labeling works on runs instead of pixels: every row of the
+ * mask is cut into runs of the same non-zero value, runs of neighboring
+ * rows that overlap are joined, and the statistics of a blob are summed a
+ * run at a time. Runs are numbered in row-major order and roots are kept
+ * on the smallest run, so the blobs and their indices are the same as
+ * with the pixel scan, while the work and memory follow the number of
+ * runs. The label of every pixel is only written out when it is asked for.
+ * A {@link BitMask} is always labeled by runs: words without a set bit are
+ * skipped whole and the edges of a run are found a word at a time.
+ *
+ * Pixels are 4-connected by default, touching on an edge. 8-connected,
+ * pixels that only touch on a corner join too. The pixel scan then walks
+ * a decision tree over the neighbors above and to the left: the pixel
+ * above touches the other three, so when it matches nothing else is read,
+ * and at most one pair of blobs is ever merged per pixel. Runs touch
+ * 8-connected when they overlap with one more column on either side.
+ *
+ * When the mask comes with a {@link TileMask}, only the marked tiles are
+ * scanned and resolved; every other pixel is known to be background.
+ * The tiles are visited in row-major order, so the blobs and their
+ * indices are the same as with a scan of the whole mask.
+ */
+public class LabelEngine
+{
+	/**
+	 * Value used in the label array for pixels that are not part of a blob
+	 */
+	public static final int BACKGROUND = -1;
+
+	/**
+	 * Parent of every pixel while labeling, blob index once resolved
+	 */
+	private int[] labels = new int[0];
+	/**
+	 * Number of pixels in each blob, indexed by blob index
+	 */
+	private int[] sizes = new int[64];
+	/**
+	 * Mask value of each blob, indexed by blob index
+	 */
+	private byte[] classes = new byte[64];
+	/**
+	 * Bounding box of each blob, indexed by blob index
+	 */
+	private int[] minX = new int[64], minY = new int[64], maxX = new int[64], maxY = new int[64];
+	/**
+	 * Coordinate and color sums of each blob, indexed by blob index
+	 */
+	private long[] sumX = new long[64], sumY = new long[64],
+			sumRed = new long[64], sumGreen = new long[64], sumBlue = new long[64];
+	/**
+	 * True if the last call to label collected blob statistics
+	 */
+	private boolean hasStats;
+	/**
+	 * Number of blobs found by the last call to label
+	 */
+	private int count;
+	/**
+	 * Joins pixels that touch on a corner as well as on an edge
+	 */
+	private boolean eightConnected = Integer.getInteger("detector.connectivity", 4) == 8;
+	/**
+	 * Labels runs of pixels instead of single pixels
+	 */
+	private boolean runLength = !"pixels".equals(System.getProperty("detector.labeling", "runs"));
+	/**
+	 * First column of every run, in row-major order
+	 */
+	private int[] runStart = new int[1024];
+	/**
+	 * Column after the last of every run
+	 */
+	private int[] runEnd = new int[1024];
+	/**
+	 * Parent of every run while labeling, blob index once resolved
+	 */
+	private int[] runParent = new int[1024];
+	/**
+	 * Mask value of every run
+	 */
+	private byte[] runClass = new byte[1024];
+	/**
+	 * Index of the first run of every row, followed by the number of runs
+	 */
+	private int[] rowRuns = new int[0];
+	/**
+	 * Number of runs found by the last call to label
+	 */
+	private int runCount;
+	/**
+	 * Size of the last image labeled
+	 */
+	private int width, height;
+	/**
+	 * True once the label array holds the blob of every pixel of the last image
+	 */
+	private boolean labelsReady;
+	/**
+	 * Number of strips labeled concurrently, 1 labels sequentially
+	 */
+	private int parallelism = Math.max(1, Integer.getInteger("detector.parallelism", 1));
+	/**
+	 * Images with fewer pixels than this are always labeled sequentially
+	 */
+	private int minParallelPixels = Integer.getInteger("detector.parallel.minPixels", 1 << 20);
+	/**
+	 * Pool that labels the strips
+	 */
+	private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+	/**
+	 * Labels the connected components of the mask.
+	 * Two neighboring pixels belong to the same blob if they share the same
+	 * non-zero mask value. A zero mask value is background.
+	 *
+	 * @param mask   One byte per pixel, row-major
+	 * @param width  Width of the image
+	 * @param height Height of the image
+	 * @return Number of blobs found
+	 */
+	public int label(byte[] mask, int width, int height)
+	{
+		return label(mask, width, height, null);
+	}
+
+	/**
+	 * Labels the connected components of the mask and collects the
+	 * statistics of every blob from the original image.
+	 *
+	 * @param mask   One byte per pixel, row-major
+	 * @param width  Width of the image
+	 * @param height Height of the image
+	 * @param image  Original image, or null to only count blob sizes
+	 * @return Number of blobs found
+	 */
+	public int label(byte[] mask, int width, int height, BufferedImage image)
+	{
+		return label(mask, width, height, image, null);
+	}
+
+	/**
+	 * Labels the connected components of the mask inside the marked tiles
+	 * and collects the statistics of every blob from the original image.
+	 * The mask must be 0 outside of the tiles.
+	 *
+	 * @param mask   One byte per pixel, row-major
+	 * @param width  Width of the image
+	 * @param height Height of the image
+	 * @param image  Original image, or null to only count blob sizes
+	 * @param tiles  Tiles that may hold a blob, or null for the whole image
+	 * @return Number of blobs found
+	 */
+	public int label(byte[] mask, int width, int height, BufferedImage image, TileMask tiles)
+	{
+		int len = width * height;
+		if(mask.length < len)
+			throw new IllegalArgumentException("Mask is smaller than the image");
+		if(tiles != null && (tiles.getWidth() != width || tiles.getHeight() != height))
+			throw new IllegalArgumentException("The tiles do not match the image");
+		this.width = width;
+		this.height = height;
+		if(runLength){
+			labelsReady = false;
+			return labelRuns(mask, width, height, image, tiles);
+		}
+		labelsReady = true;
+		runCount = 0;
+		if(labels.length < len)
+			labels = new int[len];
+		if(tiles != null){
+			Arrays.fill(labels, 0, len, BACKGROUND);
+			return labelTiles(mask, width, height, image, tiles);
+		}
+
+		int strips = Math.min(parallelism, height);
+		if(strips <= 1 || len < minParallelPixels){
+			scan(mask, width, 0, height);
+		}else{
+			pool.invoke(new Strips(mask, width, height, strips, 0, strips));
+			for(int i = 1; i < strips; i++)
+				seam(mask, width, stripStart(height, strips, i));
+		}
+		return image == null ? resolve(mask, len) : resolve(mask, width, height, image);
+	}
+
+	/**
+	 * Labels the connected components of a bit mask by runs and collects
+	 * the statistics of every blob from the original image. The blobs are
+	 * the same as for a byte mask holding 1 where the bits are set.
+	 *
+	 * @param mask  One bit per pixel
+	 * @param image Original image, or null to only count blob sizes
+	 * @return Number of blobs found
+	 */
+	public int label(BitMask mask, BufferedImage image)
+	{
+		int width = mask.getWidth(), height = mask.getHeight();
+		if(image != null && (image.getWidth() != width || image.getHeight() != height))
+			throw new IllegalArgumentException("The mask does not match the image");
+		this.width = width;
+		this.height = height;
+		labelsReady = false;
+		if(rowRuns.length < height + 1)
+			rowRuns = new int[height + 1];
+		runCount = 0;
+		long[] words = mask.getWords();
+		int wordsPerRow = mask.getWordsPerRow();
+		for(int row = 0; row < height; row++){
+			rowRuns[row] = runCount;
+			findRuns(words, row * wordsPerRow, wordsPerRow);
+			if(row > 0)
+				joinRuns(rowRuns[row - 1], rowRuns[row], runCount);
+		}
+		rowRuns[height] = runCount;
+		return resolveRuns(width, height, image);
+	}
+
+	/**
+	 * Labels a range of rows.
+	 * Rows above the range are not looked at, so different ranges can be
+	 * scanned at the same time.
+	 *
+	 * @param mask     One byte per pixel, row-major
+	 * @param width    Width of the image
+	 * @param rowStart First row of the range
+	 * @param rowEnd   Row after the last row of the range
+	 */
+	private void scan(byte[] mask, int width, int rowStart, int rowEnd)
+	{
+		for(int row = rowStart; row < rowEnd; row++)
+			scan(mask, width, row, row > rowStart, 0, width);
+	}
+
+	/**
+	 * Labels part of a row.
+	 *
+	 * @param mask     One byte per pixel, row-major
+	 * @param width    Width of the image
+	 * @param row      Row
+	 * @param top      True if the row above may be joined
+	 * @param colStart First column
+	 * @param colEnd   Column after the last
+	 */
+	private void scan(byte[] mask, int width, int row, boolean top, int colStart, int colEnd)
+	{
+		if(eightConnected){
+			scan8(mask, width, row, top, colStart, colEnd);
+			return;
+		}
+		int[] parent = labels;
+		int id = row * width + colStart, m, root;
+		for(int col = colStart; col < colEnd; col++, id++){
+			m = mask[id];
+			if(m == 0){
+				parent[id] = BACKGROUND;
+				continue;
+			}
+			parent[id] = id;
+			if(top && mask[id - width] == m)
+				parent[id] = find(parent, id - width);  // join the top blob
+			if(col > 0 && mask[id - 1] == m){
+				root = find(parent, id - 1);
+				merge(parent, root, parent[id]);         // join the left blob
+			}
+		}
+	}
+
+	/**
+	 * Labels part of a row with 8-connectivity.
+	 * Above means north; west, north-west and north-east touch it, so they are
+	 * only looked at when it is background. North-west touches west as well,
+	 * so only north-east can bring a second blob.
+	 *
+	 * @param mask     One byte per pixel, row-major
+	 * @param width    Width of the image
+	 * @param row      Row
+	 * @param top      True if the row above may be joined
+	 * @param colStart First column
+	 * @param colEnd   Column after the last
+	 */
+	private void scan8(byte[] mask, int width, int row, boolean top, int colStart, int colEnd)
+	{
+		int[] parent = labels;
+		int id = row * width + colStart, m, root, other, up;
+		for(int col = colStart; col < colEnd; col++, id++){
+			m = mask[id];
+			if(m == 0){
+				parent[id] = BACKGROUND;
+				continue;
+			}
+			up = id - width;
+			if(top && mask[up] == m){
+				parent[id] = find(parent, up);          // north
+				continue;
+			}
+			root = id;
+			if(top && col + 1 < width && mask[up + 1] == m)
+				root = find(parent, up + 1);            // north-east
+			other = -1;
+			if(col > 0){
+				if(top && mask[up - 1] == m)
+					other = up - 1;                     // north-west
+				else if(mask[id - 1] == m)
+					other = id - 1;                     // west
+			}
+			if(other >= 0){
+				other = find(parent, other);
+				root = root == id ? other : root == other ? root : merge(parent, root, other);
+			}
+			parent[id] = root;
+		}
+	}
+
+	/**
+	 * Labels the marked tiles only, then resolves them in row-major order.
+	 * Pixels outside of the tiles are background in the mask, so a blob
+	 * never reaches past them.
+	 *
+	 * @param mask   One byte per pixel, row-major, 0 outside of the tiles
+	 * @param width  Width of the image
+	 * @param height Height of the image
+	 * @param image  Original image, or null to only count blob sizes
+	 * @param tiles  Tiles that may hold a blob
+	 * @return Number of blobs found
+	 */
+	private int labelTiles(byte[] mask, int width, int height, BufferedImage image, TileMask tiles)
+	{
+		int tile = tiles.getTileSize();
+		for(int tileRow = 0; tileRow < tiles.getTileRows(); tileRow++){
+			int[] spans = tiles.getSpans(tileRow);
+			for(int row = tileRow * tile; row < Math.min(height, (tileRow + 1) * tile); row++)
+				for(int i = 0; i < spans.length; i += 2)
+					scan(mask, width, row, row > 0, spans[i], spans[i + 1]);
+		}
+
+		int[] rgb = image == null ? null : new int[width];
+		count = 0;
+		hasStats = image != null;
+		for(int tileRow = 0; tileRow < tiles.getTileRows(); tileRow++){
+			int[] spans = tiles.getSpans(tileRow);
+			for(int row = tileRow * tile; row < Math.min(height, (tileRow + 1) * tile); row++){
+				for(int i = 0; i < spans.length; i += 2){
+					if(image == null)
+						resolve(mask, row * width + spans[i], row * width + spans[i + 1]);
+					else
+						resolve(mask, width, row, spans[i], spans[i + 1], image, rgb);
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Merges the blobs that touch across the top edge of a strip.
+	 *
+	 * @param mask  One byte per pixel, row-major
+	 * @param width Width of the image
+	 * @param row   First row of the strip
+	 */
+	private void seam(byte[] mask, int width, int row)
+	{
+		int id = row * width, m;
+		for(int col = 0; col < width; col++, id++){
+			m = mask[id];
+			if(m == 0)
+				continue;
+			if(mask[id - width] == m)
+				join(id - width, id);
+			else if(eightConnected){     // a corner only counts when north is background
+				if(col > 0 && mask[id - width - 1] == m)
+					join(id - width - 1, id);
+				if(col + 1 < width && mask[id - width + 1] == m)
+					join(id - width + 1, id);
+			}
+		}
+	}
+
+	/**
+	 * Merges the blobs of two pixels.
+	 *
+	 * @param id1 Pixel id
+	 * @param id2 Pixel id
+	 */
+	private void join(int id1, int id2)
+	{
+		int root1 = find(labels, id1), root2 = find(labels, id2);
+		if(root1 != root2)
+			merge(labels, root1, root2);
+	}
+
+	/**
+	 * Returns the first row of a strip.
+	 *
+	 * @param height Height of the image
+	 * @param strips Number of strips
+	 * @param strip  Strip index
+	 * @return First row of the strip
+	 */
+	private static int stripStart(int height, int strips, int strip)
+	{
+		return (int)((long)height * strip / strips);
+	}
+
+	/**
+	 * Labels the mask run by run.
+	 *
+	 * @param mask   One byte per pixel, row-major
+	 * @param width  Width of the image
+	 * @param height Height of the image
+	 * @param image  Original image, or null to only count blob sizes
+	 * @param tiles  Tiles that may hold a blob, or null for the whole image
+	 * @return Number of blobs found
+	 */
+	private int labelRuns(byte[] mask, int width, int height, BufferedImage image, TileMask tiles)
+	{
+		if(rowRuns.length < height + 1)
+			rowRuns = new int[height + 1];
+		runCount = 0;
+		int[] whole = {0, width};
+		for(int row = 0; row < height; row++){
+			rowRuns[row] = runCount;
+			int[] spans = tiles == null ? whole : tiles.getSpans(row / tiles.getTileSize());
+			for(int i = 0; i < spans.length; i += 2)
+				findRuns(mask, row * width, spans[i], spans[i + 1]);
+			if(row > 0)
+				joinRuns(rowRuns[row - 1], rowRuns[row], runCount);
+		}
+		rowRuns[height] = runCount;
+		return resolveRuns(width, height, image);
+	}
+
+	/**
+	 * Cuts part of a row of the mask into runs of the same non-zero value.
+	 *
+	 * @param mask     One byte per pixel, row-major
+	 * @param offset   Pixel id of the first pixel of the row
+	 * @param colStart First column
+	 * @param colEnd   Column after the last
+	 */
+	private void findRuns(byte[] mask, int offset, int colStart, int colEnd)
+	{
+		int x = colStart, start;
+		byte m;
+		while(x < colEnd){
+			m = mask[offset + x];
+			if(m == 0){
+				x++;
+				continue;
+			}
+			start = x;
+			while(++x < colEnd && mask[offset + x] == m);
+			if(runCount == runStart.length)
+				growRuns();
+			runStart[runCount] = start;
+			runEnd[runCount] = x;
+			runClass[runCount] = m;
+			runParent[runCount] = runCount;
+			runCount++;
+		}
+	}
+
+	/**
+	 * Cuts a row of a bit mask into runs. Empty words are skipped, and
+	 * within a word the edges of every run are found with
+	 * {@link Long#numberOfTrailingZeros(long)}; a run that reaches the last
+	 * bit of a word is carried over into the next one.
+	 *
+	 * @param words  Bits of the mask
+	 * @param offset First word of the row
+	 * @param count  Number of words in the row
+	 */
+	private void findRuns(long[] words, int offset, int count)
+	{
+		int open = -1, base, start, end;       // first column of a run still going on, or -1
+		long word, gaps;
+		for(int i = 0; i < count; i++){
+			word = words[offset + i];
+			base = i << 6;
+			if(word == 0){
+				if(open >= 0){
+					addRun(open, base);
+					open = -1;
+				}
+				continue;
+			}
+			if(word == -1L){
+				if(open < 0)
+					open = base;
+				continue;
+			}
+			if(open >= 0 && (word & 1) == 0){
+				addRun(open, base);
+				open = -1;
+			}
+			while(word != 0){
+				start = Long.numberOfTrailingZeros(word);
+				gaps = ~word & (-1L << start);
+				if(gaps == 0){          // runs to the end of the word
+					if(open < 0)
+						open = base + start;
+					break;
+				}
+				end = Long.numberOfTrailingZeros(gaps);
+				addRun(open >= 0 ? open : base + start, base + end);
+				open = -1;
+				word &= -1L << end;
+			}
+		}
+		if(open >= 0)
+			addRun(open, count << 6);
+	}
+
+	/**
+	 * Appends a run of a bit mask, which always has class 1.
+	 *
+	 * @param start First column
+	 * @param end   Column after the last
+	 */
+	private void addRun(int start, int end)
+	{
+		if(runCount == runStart.length)
+			growRuns();
+		runStart[runCount] = start;
+		runEnd[runCount] = end;
+		runClass[runCount] = 1;
+		runParent[runCount] = runCount;
+		runCount++;
+	}
+
+	/**
+	 * Joins the runs of a row to the runs of the row above that they
+	 * overlap and share the mask value with; 8-connected a run reaches one
+	 * column further on either side. The row above is walked left to right
+	 * once, and every run of the row only looks at the runs it touches.
+	 *
+	 * @param above First run of the row above
+	 * @param first First run of the row
+	 * @param end   Run after the last of the row
+	 */
+	private void joinRuns(int above, int first, int end)
+	{
+		int[] parent = runParent;
+		int i = above, top, curr, reach = eightConnected ? 1 : 0;
+		for(int j = first; j < end; j++){
+			while(i < first && runEnd[i] + reach <= runStart[j])
+				i++;                    // ends before this run, and so before every later one
+			for(int k = i; k < first && runStart[k] < runEnd[j] + reach; k++){
+				if(runClass[k] != runClass[j])
+					continue;
+				top = find(parent, k);
+				curr = find(parent, j);
+				if(top != curr)
+					merge(parent, top, curr);
+			}
+		}
+	}
+
+	/**
+	 * Replaces the parent of every run with its blob index and sums the
+	 * statistics of every blob a run at a time. Only the colors need the
+	 * pixels, and only the pixels of the runs are read.
+	 *
+	 * @param width  Width of the image
+	 * @param height Height of the image
+	 * @param image  Original image, or null to only count blob sizes
+	 * @return Number of blobs
+	 */
+	private int resolveRuns(int width, int height, BufferedImage image)
+	{
+		int[] parent = runParent;
+		int[] rgb = image == null ? null : new int[width];
+		int p, blob, start, end, length, color;
+		count = 0;
+		hasStats = image != null;
+		for(int y = 0; y < height; y++){
+			int first = rowRuns[y], last = rowRuns[y + 1];
+			for(int run = first; run < last; run++){
+				start = runStart[run];
+				end = runEnd[run];
+				p = parent[run];
+				if(p == run){
+					if(count == sizes.length)
+						grow();
+					blob = count++;
+					sizes[blob] = 0;
+					classes[blob] = runClass[run];
+					minX[blob] = start;
+					maxX[blob] = end - 1;
+					minY[blob] = y;
+					sumX[blob] = sumY[blob] = 0;
+					sumRed[blob] = sumGreen[blob] = sumBlue[blob] = 0;
+				}else{
+					blob = parent[p];       // already resolved
+				}
+				parent[run] = blob;
+				length = end - start;
+				sizes[blob] += length;
+				if(start < minX[blob]) minX[blob] = start;
+				if(end - 1 > maxX[blob]) maxX[blob] = end - 1;
+				maxY[blob] = y;         // rows only grow
+				sumX[blob] += (long)(start + end - 1) * length / 2;
+				sumY[blob] += (long)y * length;
+				if(image == null)
+					continue;
+				image.getRGB(start, y, length, 1, rgb, start, width);
+				for(int x = start; x < end; x++){
+					color = rgb[x];
+					sumRed[blob] += (color >> 16) & 0xFF;
+					sumGreen[blob] += (color >> 8) & 0xFF;
+					sumBlue[blob] += color & 0xFF;
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Doubles the capacity of the per run arrays.
+	 */
+	private void growRuns()
+	{
+		int capacity = runStart.length * 2;
+		runStart = Arrays.copyOf(runStart, capacity);
+		runEnd = Arrays.copyOf(runEnd, capacity);
+		runParent = Arrays.copyOf(runParent, capacity);
+		runClass = Arrays.copyOf(runClass, capacity);
+	}
+
+	/**
+	 * Finds the root of a pixel and halves the path on the way up.
+	 *
+	 * @param parent Parent array
+	 * @param x      Pixel id
+	 * @return Root pixel id
+	 */
+	static int find(int[] parent, int x)
+	{
+		int p;
+		while((p = parent[x]) != x){
+			parent[x] = parent[p];      // path halving
+			x = parent[x];
+		}
+		return x;
+	}
+
+	/**
+	 * Links two roots together, keeping the smaller pixel id as the root.
+	 *
+	 * @param parent Parent array
+	 * @param root1  Root
+	 * @param root2  Root
+	 * @return New root of the merged blob
+	 */
+	static int merge(int[] parent, int root1, int root2)
+	{
+		if(root1 < root2){
+			parent[root2] = root1;
+			return root1;
+		}
+		parent[root1] = root2;
+		return root2;
+	}
+
+	/**
+	 * Replaces every parent with the compact index of its blob and counts
+	 * the size of each blob.
+	 * Works in place because a parent is always visited before its children.
+	 *
+	 * @param mask One byte per pixel, row-major
+	 * @param len  Number of pixels
+	 * @return Number of blobs
+	 */
+	private int resolve(byte[] mask, int len)
+	{
+		count = 0;
+		hasStats = false;
+		resolve(mask, 0, len);
+		return count;
+	}
+
+	/**
+	 * Resolves a range of pixel ids, see {@link #resolve(byte[], int)}.
+	 * Every range before it must already be resolved.
+	 *
+	 * @param mask  One byte per pixel, row-major
+	 * @param start First pixel id
+	 * @param end   Pixel id after the last
+	 */
+	private void resolve(byte[] mask, int start, int end)
+	{
+		int[] parent = labels;
+		int p, blob;
+		for(int id = start; id < end; id++){
+			p = parent[id];
+			if(p == BACKGROUND)
+				continue;
+			if(p == id){
+				if(count == sizes.length)
+					grow();
+				sizes[count] = 0;
+				classes[count] = mask[id];
+				blob = count++;
+			}else{
+				blob = parent[p];       // already resolved
+			}
+			parent[id] = blob;
+			sizes[blob]++;
+		}
+	}
+
+	/**
+	 * Same as {@link #resolve(byte[], int)}, and also collects the bounding box,
+	 * centroid and color sums of every blob.
+	 *
+	 * @param mask   One byte per pixel, row-major
+	 * @param width  Width of the image
+	 * @param height Height of the image
+	 * @param image  Original image
+	 * @return Number of blobs
+	 */
+	private int resolve(byte[] mask, int width, int height, BufferedImage image)
+	{
+		int[] rgb = new int[width];
+		count = 0;
+		for(int y = 0; y < height; y++)
+			resolve(mask, width, y, 0, width, image, rgb);
+		hasStats = true;
+		return count;
+	}
+
+	/**
+	 * Resolves part of a row, see {@link #resolve(byte[], int, int, BufferedImage)}.
+	 * Every part before it must already be resolved.
+	 *
+	 * @param mask   One byte per pixel, row-major
+	 * @param width  Width of the image
+	 * @param y      Row
+	 * @param xStart First column
+	 * @param xEnd   Column after the last
+	 * @param image  Original image
+	 * @param rgb    Row buffer, as wide as the image
+	 */
+	private void resolve(byte[] mask, int width, int y, int xStart, int xEnd, BufferedImage image, int[] rgb)
+	{
+		int[] parent = labels;
+		int p, blob, color, id = y * width + xStart;
+		boolean loaded = false;
+		for(int x = xStart; x < xEnd; x++, id++){
+			p = parent[id];
+			if(p == BACKGROUND)
+				continue;
+			if(!loaded){
+				image.getRGB(xStart, y, xEnd - xStart, 1, rgb, xStart, width);   // only parts of rows that hold a blob
+				loaded = true;
+			}
+			if(p == id){
+				if(count == sizes.length)
+					grow();
+				blob = count++;
+				sizes[blob] = 0;
+				classes[blob] = mask[id];
+				minX[blob] = maxX[blob] = x;
+				minY[blob] = maxY[blob] = y;
+				sumX[blob] = sumY[blob] = 0;
+				sumRed[blob] = sumGreen[blob] = sumBlue[blob] = 0;
+			}else{
+				blob = parent[p];       // already resolved
+			}
+			parent[id] = blob;
+			sizes[blob]++;
+			if(x < minX[blob]) minX[blob] = x;
+			if(x > maxX[blob]) maxX[blob] = x;
+			maxY[blob] = y;         // rows only grow
+			sumX[blob] += x;
+			sumY[blob] += y;
+			color = rgb[x];
+			sumRed[blob] += (color >> 16) & 0xFF;
+			sumGreen[blob] += (color >> 8) & 0xFF;
+			sumBlue[blob] += color & 0xFF;
+		}
+	}
+
+	/**
+	 * Doubles the capacity of the per blob arrays.
+	 */
+	private void grow()
+	{
+		int capacity = sizes.length * 2;
+		sizes = Arrays.copyOf(sizes, capacity);
+		classes = Arrays.copyOf(classes, capacity);
+		minX = Arrays.copyOf(minX, capacity);
+		minY = Arrays.copyOf(minY, capacity);
+		maxX = Arrays.copyOf(maxX, capacity);
+		maxY = Arrays.copyOf(maxY, capacity);
+		sumX = Arrays.copyOf(sumX, capacity);
+		sumY = Arrays.copyOf(sumY, capacity);
+		sumRed = Arrays.copyOf(sumRed, capacity);
+		sumGreen = Arrays.copyOf(sumGreen, capacity);
+		sumBlue = Arrays.copyOf(sumBlue, capacity);
+	}
+
+	/**
+	 * Sets how many strips are labeled concurrently, when pixels are labeled.
+	 * @param parallelism Number of strips, 1 labels sequentially
+	 */
+	public void setParallelism(int parallelism)
+	{
+		if(parallelism < 1)
+			throw new IllegalArgumentException("parallelism should be greater than 0, current parallelism=" + parallelism);
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Sets the smallest image that is labeled in parallel.
+	 * @param minParallelPixels Number of pixels
+	 */
+	public void setMinParallelPixels(int minParallelPixels)
+	{
+		this.minParallelPixels = minParallelPixels;
+	}
+
+	/**
+	 * Sets the pool that labels the strips.
+	 * @param pool Fork-join pool
+	 */
+	public void setPool(ForkJoinPool pool)
+	{
+		if(pool == null)
+			throw new NullPointerException("Null pool");
+		this.pool = pool;
+	}
+
+	/**
+	 * Returns the blob index of every pixel, or {@link #BACKGROUND}.
+	 * Only the first width*height entries are meaningful.
+	 * After run-length labeling the array is written out from the runs
+	 * the first time it is asked for.
+	 *
+	 * @return Label array
+	 */
+	public int[] getLabels()
+	{
+		if(!labelsReady){
+			int len = width * height;
+			if(labels.length < len)
+				labels = new int[len];
+			Arrays.fill(labels, 0, len, BACKGROUND);
+			for(int y = 0; y < height; y++)
+				for(int run = rowRuns[y]; run < rowRuns[y + 1]; run++)
+					Arrays.fill(labels, y * width + runStart[run], y * width + runEnd[run], runParent[run]);
+			labelsReady = true;
+		}
+		return labels;
+	}
+
+	/**
+	 * Sets whether runs of pixels are labeled instead of single pixels.
+	 * Both give the same blobs; runs are faster and smaller for masks with
+	 * long runs, pixels can be labeled in parallel strips.
+	 * @param runLength True to label runs
+	 */
+	public void setRunLength(boolean runLength)
+	{
+		this.runLength = runLength;
+	}
+
+	/**
+	 * Sets which pixels touch.
+	 * @param connectivity 4 to join pixels that share an edge, 8 to also join pixels that share a corner
+	 */
+	public void setConnectivity(int connectivity)
+	{
+		if(connectivity != 4 && connectivity != 8)
+			throw new IllegalArgumentException("connectivity should be 4 or 8, current connectivity=" + connectivity);
+		this.eightConnected = connectivity == 8;
+	}
+
+	/**
+	 * Returns which pixels touch.
+	 * @return 4 or 8
+	 */
+	public int getConnectivity()
+	{
+		return eightConnected ? 8 : 4;
+	}
+
+	/**
+	 * Returns whether runs of pixels are labeled instead of single pixels.
+	 * @return True if byte masks are labeled by runs
+	 */
+	public boolean isRunLength()
+	{
+		return runLength;
+	}
+
+	/**
+	 * Returns the number of runs found by the last run-length labeling.
+	 * @return Number of runs, 0 after a pixel labeling
+	 */
+	public int getRunCount()
+	{
+		return runCount;
+	}
+
+	/**
+	 * Returns the number of blobs found by the last call to label.
+	 *
+	 * @return Number of blobs
+	 */
+	public int getBlobCount()
+	{
+		return count;
+	}
+
+	/**
+	 * Returns the number of pixels in a blob.
+	 *
+	 * @param blob Blob index
+	 * @return Size of the blob
+	 */
+	public int getSize(int blob)
+	{
+		if(blob < 0 || blob >= count)
+			throw new IllegalArgumentException("Out of bounds");
+		return sizes[blob];
+	}
+
+	/**
+	 * Returns the target a blob was labeled from.
+	 * With a mask from {@link Threshold} this is the index of the target the
+	 * pixels of the blob matched.
+	 *
+	 * @param blob Blob index
+	 * @return Mask value of the blob minus one
+	 */
+	public int getTarget(int blob)
+	{
+		getSize(blob);      // bounds check
+		return (classes[blob] & 0xFF) - 1;
+	}
+
+	/**
+	 * Returns the statistics of a blob.
+	 * Only available if the original image was given to label.
+	 *
+	 * @param blob Blob index
+	 * @return Area, bounding box, centroid and mean color of the blob
+	 */
+	public Blob getBlob(int blob)
+	{
+		if(!hasStats)
+			throw new IllegalStateException("Blob statistics were not collected");
+		getSize(blob);      // bounds check
+		return new Blob(sizes[blob], minX[blob], minY[blob], maxX[blob], maxY[blob],
+				sumX[blob], sumY[blob], sumRed[blob], sumGreen[blob], sumBlue[blob]);
+	}
+
+	/**
+	 * Orders the blobs from largest to smallest.
+	 * Blobs of the same size keep their row-major order.
+	 *
+	 * @return Blob indices, largest blob first
+	 */
+	public int[] rankBlobs()
+	{
+		long[] keys = new long[count];
+		for(int i = 0; i < count; i++)
+			keys[i] = rankKey(i);
+		Arrays.sort(keys);
+
+		int[] ranked = new int[count];
+		for(int i = 0; i < count; i++)
+			ranked[i] = (int)keys[i];
+		return ranked;
+	}
+
+	/**
+	 * Finds the k largest blobs, in the same order as {@link #rankBlobs()}.
+	 *
+	 * @param k Number of blobs wanted
+	 * @return Blob indices, largest blob first, at most k of them
+	 */
+	public int[] topBlobs(int k)
+	{
+		return topBlobs(k, -1);
+	}
+
+	/**
+	 * Finds the k largest blobs of a target, in the same order as {@link #rankBlobs()}.
+	 * Only a heap of k entries is kept, so this costs O(blobs log k)
+	 * instead of sorting every blob.
+	 *
+	 * @param k      Number of blobs wanted
+	 * @param target Target from {@link #getTarget(int)}, or -1 for every blob
+	 * @return Blob indices, largest blob first, at most k of them
+	 */
+	public int[] topBlobs(int k, int target)
+	{
+		if(k < 1)
+			throw new IllegalArgumentException("k should be greater than 0, current k=" + k);
+		if(k >= count && target < 0)
+			return rankBlobs();
+
+		long[] heap = new long[Math.min(k, count)];     // max-heap of the best keys so far
+		int size = 0;
+		long key;
+		for(int i = 0; i < count; i++){
+			if(target >= 0 && (classes[i] & 0xFF) - 1 != target)
+				continue;
+			key = rankKey(i);
+			if(size < heap.length){
+				siftUp(heap, size++, key);
+			}else if(key < heap[0]){
+				siftDown(heap, size, key);      // replaces the worst of the k
+			}
+		}
+
+		Arrays.sort(heap, 0, size);
+		int[] top = new int[size];
+		for(int i = 0; i < size; i++)
+			top[i] = (int)heap[i];
+		return top;
+	}
+
+	/**
+	 * Builds a key that sorts larger blobs first and equal blobs in row-major order.
+	 *
+	 * @param blob Blob index
+	 * @return Rank key
+	 */
+	private long rankKey(int blob)
+	{
+		return ((long)(Integer.MAX_VALUE - sizes[blob]) << 32) | blob;
+	}
+
+	/**
+	 * Adds a key to the end of a max-heap and moves it up into place.
+	 *
+	 * @param heap Heap
+	 * @param i    Index of the new key
+	 * @param key  Key
+	 */
+	private static void siftUp(long[] heap, int i, long key)
+	{
+		int parent;
+		while(i > 0 && heap[parent = (i - 1) >>> 1] < key){
+			heap[i] = heap[parent];
+			i = parent;
+		}
+		heap[i] = key;
+	}
+
+	/**
+	 * Replaces the top of a max-heap with a key and moves it down into place.
+	 *
+	 * @param heap Heap
+	 * @param size Number of keys in the heap
+	 * @param key  Key
+	 */
+	private static void siftDown(long[] heap, int size, long key)
+	{
+		int i = 0, child;
+		while((child = 2 * i + 1) < size){
+			if(child + 1 < size && heap[child + 1] > heap[child])
+				child++;
+			if(heap[child] <= key)
+				break;
+			heap[i] = heap[child];
+			i = child;
+		}
+		heap[i] = key;
+	}
+
+	/**
+	 * Labels a range of strips, splitting it in half until a single strip is left.
+	 */
+	private class Strips extends RecursiveAction
+	{
+		/**
+		 * One byte per pixel, row-major
+		 */
+		private final byte[] mask;
+		/**
+		 * Size of the image and number of strips
+		 */
+		private final int width, height, strips;
+		/**
+		 * Range of strips handled by this task
+		 */
+		private final int from, to;
+
+		/**
+		 * Creates a task for the strips [from, to)
+		 */
+		private Strips(byte[] mask, int width, int height, int strips, int from, int to)
+		{
+			this.mask = mask;
+			this.width = width;
+			this.height = height;
+			this.strips = strips;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if(to - from == 1){
+				scan(mask, width, stripStart(height, strips, from), stripStart(height, strips, to));
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new Strips(mask, width, height, strips, from, mid),
+					new Strips(mask, width, height, strips, mid, to));
+		}
+	}
+}
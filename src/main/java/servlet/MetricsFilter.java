@@ -0,0 +1,94 @@
+package servlet;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRegistration;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.annotation.WebFilter;
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Times every request and counts the ones in flight.
+ *
+ * Asynchronous requests are timed until they complete, not until the
+ * connector thread is released, so a detection that waits in the queue
+ * shows up in the latency of /colorDetector.
+ */
+@WebFilter(filterName = "metrics", urlPatterns = {"/*"}, asyncSupported = true)
+public class MetricsFilter implements Filter
+{
+	/**
+	 * Shared metrics
+	 */
+	private DetectorMetrics metrics;
+	/**
+	 * Servlet paths reported by name, anything else is reported as other
+	 */
+	private final Set<String> endpoints = new HashSet<>();
+
+	@Override
+	public void init(FilterConfig config)
+	{
+		metrics = DetectorMetrics.get(config.getServletContext());
+		for(ServletRegistration servlet : config.getServletContext().getServletRegistrations().values())
+			for(String mapping : servlet.getMappings())
+				if(mapping.startsWith("/"))
+					endpoints.add(mapping.endsWith("/*") ? mapping.substring(0, mapping.length() - 2) : mapping);
+	}
+
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+			throws IOException, ServletException
+	{
+		String path = ((HttpServletRequest)request).getServletPath();
+		String endpoint = endpoints.contains(path) ? path : "other";     // keeps the number of series bounded
+		long start = System.nanoTime();
+		metrics.requestStarted();
+		boolean async = false;
+		try {
+			chain.doFilter(request, response);
+			if(request.isAsyncStarted()){
+				request.getAsyncContext().addListener(new AsyncListener()
+				{
+					@Override
+					public void onComplete(AsyncEvent event)
+					{
+						metrics.requestFinished(endpoint, System.nanoTime() - start);
+					}
+
+					@Override
+					public void onTimeout(AsyncEvent event)
+					{
+					}
+
+					@Override
+					public void onError(AsyncEvent event)
+					{
+					}
+
+					@Override
+					public void onStartAsync(AsyncEvent event)
+					{
+					}
+				});
+				async = true;
+			}
+		}finally {
+			if(!async)
+				metrics.requestFinished(endpoint, System.nanoTime() - start);
+		}
+	}
+
+	@Override
+	public void destroy()
+	{
+	}
+}
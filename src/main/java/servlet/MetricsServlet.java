@@ -0,0 +1,55 @@
+package servlet;
+
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+
+/**
+ * Exposes the {@link DetectorMetrics} in the Prometheus text format.
+ *
+ * GET /metrics only answers clients on the same host, unless the
+ * detector.metrics.remote system property is true.
+ */
+@WebServlet(name = "metrics", urlPatterns = {"/metrics"})
+public class MetricsServlet extends HttpServlet
+{
+	/**
+	 * Shared metrics
+	 */
+	private DetectorMetrics metrics;
+	/**
+	 * Shared result cache, reported along with the metrics
+	 */
+	private ResultCache cache;
+	/**
+	 * True if clients on other hosts may read the metrics
+	 */
+	private boolean remote;
+
+	@Override
+	public void init() throws ServletException
+	{
+		super.init();
+		metrics = DetectorMetrics.get(getServletContext());
+		cache = ResultCache.get(getServletContext());
+		remote = Boolean.getBoolean("detector.metrics.remote");
+	}
+
+	@Override
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException
+	{
+		if(!remote && !InetAddress.getByName(request.getRemoteAddr()).isLoopbackAddress()){
+			response.sendError(HttpServletResponse.SC_FORBIDDEN, "Metrics are only available locally");
+			return;
+		}
+		response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+		PrintWriter out = response.getWriter();
+		metrics.write(out, cache);
+		out.flush();
+	}
+}
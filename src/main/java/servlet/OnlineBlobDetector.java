@@ -1,120 +1,260 @@
 package servlet;
 
 
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.MultipartConfig;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.servlet.http.Part;
-import java.awt.*;
+import javax.imageio.ImageIO;
+import org.jsoup.nodes.Entities;
 import java.io.*;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.RejectedExecutionException;
 
-@WebServlet(name = "colorDetector", urlPatterns = {"/colorDetector"})
-@MultipartConfig
+/**
+ * Uploads below {@code fileSizeThreshold} stay in memory and are decoded
+ * straight from the request; only larger uploads are spilled to disk by the container.
+ *
+ * Detection runs asynchronously on a bounded {@link DetectionExecutor}, so
+ * connector threads are released right away. When the executor is full the
+ * request is turned down at once with 503 and a Retry-After header.
+ *
+ * Results are kept in a {@link ResultCache}, so a repeated upload with the
+ * same color and distance is answered on the request thread without
+ * decoding or detecting anything.
+ *
+ * Images are encoded straight into the response while the page is being
+ * sent, either raw with format=png or as the base64 source of the page.
+ *
+ * Instead of an upload a request may name a session created by
+ * {@link ImageSessionServlet}, so a new color or distance is tried on the
+ * decoded image without uploading or decoding it again.
+ */
+@WebServlet(name = "colorDetector", urlPatterns = {"/colorDetector"}, asyncSupported = true)
+@MultipartConfig(fileSizeThreshold = 16 * 1024 * 1024, maxFileSize = 256 * 1024 * 1024)
 public class OnlineBlobDetector extends HttpServlet
 {
-	private final static String TMP_PATH = "src/main/java/servlet/tmp";
-	private int r,g,b, d;
-	private String filePath;
-	private String colorPickerValue;
+	/**
+	 * Seconds a rejected client should wait before trying again
+	 */
+	private static final String RETRY_AFTER = "2";
+
+	/**
+	 * Runs the detections
+	 */
+	private DetectionExecutor executor;
+	/**
+	 * Output of recent detections, shared with {@link DetectionJobServlet}
+	 */
+	private ResultCache cache;
+	/**
+	 * Decoded uploads, shared with {@link ImageSessionServlet}
+	 */
+	private ImageSessionCache sessions;
+	/**
+	 * Stage timings and counters, shared with {@link MetricsServlet}
+	 */
+	private DetectorMetrics metrics;
+
+	@Override
+	public void init() throws ServletException
+	{
+		super.init();
+		ImageIO.setUseCache(false);     // decode from memory, not from an ImageIO temp file
+		int cores = Runtime.getRuntime().availableProcessors();
+		executor = new DetectionExecutor("detector",
+				Integer.getInteger("detector.workers", cores),
+				Integer.getInteger("detector.queue", 2 * cores));
+		cache = ResultCache.get(getServletContext());
+		sessions = ImageSessionCache.get(getServletContext());
+		metrics = DetectorMetrics.get(getServletContext());
+		metrics.register("detector", executor);
+	}
+
 	@Override
 	protected void doPost  (HttpServletRequest request, HttpServletResponse response)
 			throws ServletException, IOException
 	{
-		boolean single = false, both = false;
-		response.setContentType("text/html");
-		PrintWriter out = response.getWriter();
-
+		DetectionRequest detection;
 		try {
-			r = Integer.parseInt(request.getParameter("red"));
-			g = Integer.parseInt(request.getParameter("green"));
-			b = Integer.parseInt(request.getParameter("blue"));
-			System.out.printf("RGB Values: r: %d, g: %d, b: %d\n",r,g,b);
-			single = true;
-		}catch (NumberFormatException e){
-			single = false;
+			detection = DetectionRequest.parse(request);
+		}catch (IllegalArgumentException e){
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+			return;
 		}
 
-		colorPickerValue = request.getParameter("colorPickerValue");
-		System.out.println(colorPickerValue);
-
-		if(!single){
-
-			System.out.println("We are here for some reason");
-			r = Integer.valueOf(colorPickerValue.substring(1, 3), 16);
-			g = Integer.valueOf(colorPickerValue.substring(3, 5), 16);
-			b = Integer.valueOf(colorPickerValue.substring(5, 7), 16);
-			System.out.println("Color Picker: " + colorPickerValue);
-//			System.out.printf("RGB Values: r: %d, g: %d, b: %d\n",r1,r2,r3);
+		ImageSessionCache.Session session = null;
+		String key;
+		if(detection.getSession() != null){
+			session = sessions.get(detection.getSession());
+			if(session == null){
+				response.sendError(HttpServletResponse.SC_NOT_FOUND, "Unknown or expired session, please upload the image again");
+				return;
+			}
+			key = ResultCache.key(session.getHash(), detection.getTargets(), detection.getK(), detection.getRoi(),
+					detection.getConnectivity());
+		}else {
+			long start = System.nanoTime();
+			try(InputStream fileContent = detection.getImage().getInputStream()) {
+				key = ResultCache.key(ResultCache.hash(fileContent), detection.getTargets(), detection.getK(),
+						detection.getRoi(), detection.getConnectivity());
+			}
+			metrics.record(DetectorMetrics.Stage.UPLOAD, start);
 		}
-
-		try{
-			d = Integer.parseInt(request.getParameter("dist"));
-			System.out.println("d value: "+ d);
-		}catch (NumberFormatException e){
-			e.printStackTrace();
+		ResultCache.Entry cached = cache.get(key, !detection.isJson());
+		if(cached != null){
+			response.setHeader("X-Cache", "HIT");
+			respond(detection, response, cached.getJson(), cached.getPng());
+			return;
 		}
 
-		Part filePart = request.getPart("img");
-		String fileName = Paths.get(filePart.getSubmittedFileName()).getFileName().toString(); // MSIE fix.
-		InputStream fileContent = filePart.getInputStream();
+		ImageSessionCache.Session image = session;
+		AsyncContext async = request.startAsync();
+		async.setTimeout(0);    // the queue is bounded, so no request waits forever
+		try {
+			executor.submit(() -> run(detection, image, key, async));
+		}catch (RejectedExecutionException e){
+			response.setHeader("Retry-After", RETRY_AFTER);
+			response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many detections in progress, try again later");
+			async.complete();
+		}
+	}
 
-		byte[] buffer = new byte[fileContent.available()];
-		fileContent.read(buffer);
+	/**
+	 * Runs one detection on a worker thread and completes the request.
+	 * @param detection Parsed request
+	 * @param session   Session holding the image, or null to decode the upload
+	 * @param key       Cache key of the request
+	 * @param async     Async context of the request
+	 */
+	private void run(DetectionRequest detection, ImageSessionCache.Session session, String key, AsyncContext async)
+	{
+		HttpServletResponse response = (HttpServletResponse)async.getResponse();
+		try {
+			process(detection, session, key, response);
+		}catch (Exception e){
+			log("Detection failed for " + detection.getFileName(), e);
+			if(!response.isCommitted()){
+				try {
+					response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Detection failed");
+				}catch (IOException ignored){
+					// client is gone
+				}
+			}
+		}finally {
+			async.complete();
+		}
+	}
 
-		File targetFile = new File(TMP_PATH+"/"+fileName);
-		OutputStream outStream = null;
+	/**
+	 * Decodes the upload, detects the blobs, caches the output and writes the response.
+	 * @param detection Parsed request
+	 * @param session   Session holding the image, or null to decode the upload
+	 * @param key       Cache key of the request
+	 * @param response  HTTP response
+	 * @throws IOException If the upload cannot be read or the response cannot be written
+	 */
+	private void process(DetectionRequest detection, ImageSessionCache.Session session, String key,
+			HttpServletResponse response) throws IOException
+	{
+		Detector detector;
 		try {
-			outStream = new FileOutputStream(targetFile);
-		}catch (FileNotFoundException e){
-			e.printStackTrace();
+			if(session != null){
+				detector = detection.newDetector(session, null);     // shared, the detector only reads it
+			}else {
+				long start = System.nanoTime();
+				try(InputStream fileContent = detection.getImage().getInputStream()) {
+					detector = detection.newDetector(null, fileContent);      // decode straight from the upload
+				}
+				metrics.record(DetectorMetrics.Stage.DECODE, start);
+			}
+		}catch (IllegalArgumentException e){
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+			return;
+		}
+		if(detector == null){
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unsupported image format");
+			return;
 		}
-		assert outStream != null;
-		outStream.write(buffer);
-		outStream.close();
-		fileContent.close();
-		System.out.println(fileName);
-		System.out.println(filePart.getSubmittedFileName());
-
-		System.out.printf("RGB Values: r: %d, g: %d, b: %d d: %d\n",r,g,b,d);
-		Detector detector = new Detector(new File(targetFile.getAbsolutePath()).toString(), new Color(r, g, b), d);
-		detector.detect();
 
-		detector.outputResults("output1.png",1);
-
-		String body = "<!doctype html>\n" +
-				"\n" +
-				"<html lang=\"en\">\n" +
-				"<head>\n" +
-				"  <meta charset=\"utf-8\">\n" +
-				"\n" +
-				"  <title>The HTML5 Herald</title>\n" +
-				"\n" +
-				"</head>\n" +
-				"\n" +
-				"<body>\n" +
-				"\t<img src=\""+fileName+"\">\n" +
-				"</body>\n" +
-				"</html>";
-
-		//out.println(body);
+		detector.setMetrics(metrics);
+		detector.detect();
 
-		printHead(out);
+		String json = detector.getResult(detection.getK()).toJson();
+		response.setHeader("X-Cache", "MISS");
+		if(detection.isJson()){   // numbers only, skip the image
+			cache.put(key, json, null);
+			respond(detection, response, json, null);
+			return;
+		}
 
-		printTableBody(out,"output1.png");
+		// the PNG goes out while it is encoded, the cache only gets a copy
+		ByteArrayOutputStream copy = cache.isEnabled() ? new ByteArrayOutputStream() : null;
+		OutputStream stream = response.getOutputStream();
+		if(detection.isPng()){
+			response.setContentType("image/png");
+			detector.writeResults(new Tee(stream, copy), detection.getK());
+		}else {
+			response.setContentType("text/html;charset=UTF-8");
+			PrintWriter out = new PrintWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+			printHead(out);
+			printImageStart(out);
+			out.print("data:image/png;base64,");
+			out.flush();
+			try(OutputStream base64 = Base64.getEncoder().wrap(new Tee(stream, null))) {
+				detector.writeResults(new Tee(base64, copy), detection.getK());
+			}
+			printImageEnd(out, detection.getFileName());
+			printTail(out);
+			out.flush();
+		}
+		if(copy != null)
+			cache.put(key, json, copy.toByteArray());
+	}
 
+	/**
+	 * Writes the output of a detection that was already encoded,
+	 * for example by the cache or a finished job.
+	 * @param detection Parsed request
+	 * @param response  HTTP response
+	 * @param json      Blob statistics
+	 * @param png       Encoded image, only needed for HTML and PNG responses
+	 * @throws IOException If the response cannot be written
+	 */
+	static void respond(DetectionRequest detection, HttpServletResponse response, String json, byte[] png)
+			throws IOException
+	{
+		if(detection.isJson()){
+			response.setContentType("application/json");
+			response.getWriter().print(json);
+			return;
+		}
+		if(detection.isPng()){
+			response.setContentType("image/png");
+			response.setContentLength(png.length);
+			response.getOutputStream().write(png);
+			return;
+		}
 
+		response.setContentType("text/html;charset=UTF-8");
+		PrintWriter out = response.getWriter();
+		printHead(out);
+		printTableBody(out,detection.getFileName(),"data:image/png;base64," + Base64.getEncoder().encodeToString(png));
 		printTail(out);
+	}
 
-
+	@Override
+	public void destroy()
+	{
+		executor.shutdown();
+		log(cache.toString());
 	}
 
-	private void printHead(PrintWriter out)
+	private static void printHead(PrintWriter out)
 	{
 		out.println("<html>");
 		out.println("");
@@ -123,51 +263,85 @@ public class OnlineBlobDetector extends HttpServlet
 		out.println("</head>");
 		out.println("");
 	}
-	private void printTableBody(PrintWriter out, String fileName)
+	private static void printTableBody(PrintWriter out, String fileName, String src)
+	{
+		printImageStart(out);
+		out.print(src);
+		printImageEnd(out, fileName);
+	}
+
+	/**
+	 * Prints the page up to the src of the image, so the image can be streamed after it.
+	 */
+	private static void printImageStart(PrintWriter out)
 	{
 		out.println("<body style=\"background-color:#c0c0c0;\">");
 		out.println("<h1>");
 		out.println("Your uploaded image");
 		out.println("</h1>");
 		out.println("");
-		String image = "<img src= \""+fileName+"\" alt = \"Broken Link\">";
-		System.out.println(image);
-//		out.println(image);
-		out.println("<label>Saved to: " +fileName+ "</label>");
-		out.println("");
-		out.println("</body>");
+		out.print("<img src= \"");
 	}
 
-	private void printTail(PrintWriter out)
+	/**
+	 * Prints the rest of the page after the src of the image.
+	 */
+	private static void printImageEnd(PrintWriter out, String fileName)
 	{
+		out.println("\" alt = \"Broken Link\">");
+		out.println("<label>" +Entities.escape(fileName)+ "</label>");
 		out.println("");
-		out.println("</html>");
+		out.println("</body>");
 	}
 
-	private void showErrorMessage(PrintWriter out)
+	/**
+	 * Passes writes on to a stream and keeps a copy of them.
+	 * Closing it leaves the stream open, so the response can still be written to.
+	 */
+	private static class Tee extends FilterOutputStream
 	{
+		/**
+		 * Copy of everything written, or null
+		 */
+		private final ByteArrayOutputStream copy;
 
-		String someMessage = "Please enter RGB values or choose a color using color picker !";
-		out.println("<html><head>");
-
-		out.println("<script type='text/javascript'>");
-		out.println("alert(" + "'" + someMessage + "'" + ");</script>");
-		out.println("</head><body></body></html>");
-	}
-
+		/**
+		 * Creates a tee
+		 * @param out  Stream written to
+		 * @param copy Receives a copy, or null for none
+		 */
+		private Tee(OutputStream out, ByteArrayOutputStream copy)
+		{
+			super(out);
+			this.copy = copy;
+		}
 
-	public void destroy()
-	{
-		File dir = new File(TMP_PATH);
+		@Override
+		public void write(int b) throws IOException
+		{
+			out.write(b);
+			if(copy != null)
+				copy.write(b);
+		}
 
-		if(dir.isDirectory() == false) {
-			System.out.println("Not a directory. Do nothing");
-			return;
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			out.write(b, off, len);
+			if(copy != null)
+				copy.write(b, off, len);
 		}
-		File[] listFiles = dir.listFiles();
-		for(File file : listFiles){
-			System.out.println("Deleting "+file.getName());
-			file.delete();
+
+		@Override
+		public void close() throws IOException
+		{
+			out.flush();
 		}
 	}
+
+	private static void printTail(PrintWriter out)
+	{
+		out.println("");
+		out.println("</html>");
+	}
 }
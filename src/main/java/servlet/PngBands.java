@@ -0,0 +1,318 @@
+package servlet;
+
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteOrder;
+import java.util.Iterator;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * PngBands decodes a PNG image one band of rows at a time in a single
+ * pass, for images too large to be decoded at once.
+ *
+ * The JDK reader inflates the image from its first row again for every
+ * source region it is asked for. Here the compressed rows are inflated
+ * and unfiltered once, in order. The rows are written into images of the
+ * type the JDK reader would have returned, so the pixels are the same.
+ * Only non-interlaced images whose samples map one to one to that type
+ * are read this way; {@link #open} and {@link #start} tell the others apart.
+ */
+class PngBands
+{
+	/**
+	 * Chunk types
+	 */
+	private static final int IHDR = 0x49484452, IDAT = 0x49444154;
+
+	/**
+	 * PNG file signature
+	 */
+	private static final long SIGNATURE = 0x89504E470D0A1A0AL;
+
+	/**
+	 * Size of the image
+	 */
+	private final int width, height;
+	/**
+	 * Bits of a sample and samples of a pixel
+	 */
+	private final int bitDepth, channels;
+	/**
+	 * Stream of the image
+	 */
+	private final ImageInputStream input;
+	/**
+	 * Position of the data of the first IDAT chunk
+	 */
+	private final long idat;
+	/**
+	 * Length of the first IDAT chunk
+	 */
+	private final int idatLength;
+	/**
+	 * Type of the images the JDK reader returns
+	 */
+	private ImageTypeSpecifier type;
+	/**
+	 * Inflated rows, each a filter byte followed by the row
+	 */
+	private InputStream rows;
+	/**
+	 * Current and previous row, unfiltered
+	 */
+	private byte[] row, prior;
+	/**
+	 * Samples of a row
+	 */
+	private int[] samples;
+	/**
+	 * Image the bands are written into, reused while the bands have the same height
+	 */
+	private BufferedImage band;
+	/**
+	 * Number of rows read so far
+	 */
+	private int y;
+
+	/**
+	 * Creates a band reader from the header of an image.
+	 */
+	private PngBands(int width, int height, int bitDepth, int channels, ImageInputStream input, long idat, int idatLength)
+	{
+		this.width = width;
+		this.height = height;
+		this.bitDepth = bitDepth;
+		this.channels = channels;
+		this.input = input;
+		this.idat = idat;
+		this.idatLength = idatLength;
+	}
+
+	/**
+	 * Reads the header of a PNG image and moves the stream back to where it was.
+	 * The JDK reader discards the header once read, so this comes before the reader gets the stream.
+	 *
+	 * @param input Stream of the image
+	 * @return Band reader, or null if the image is not a non-interlaced PNG
+	 * @throws IOException If the stream cannot be read
+	 */
+	static PngBands open(ImageInputStream input) throws IOException
+	{
+		long start = input.getStreamPosition();
+		ByteOrder order = input.getByteOrder();
+		input.setByteOrder(ByteOrder.BIG_ENDIAN);
+		try {
+			if(input.readLong() != SIGNATURE)
+				return null;
+			int width = 0, height = 0, bitDepth = 0, colorType = 0, interlace = 0;
+			while(true){
+				int length = input.readInt(), chunk = input.readInt();
+				if(chunk == IHDR){
+					width = input.readInt();
+					height = input.readInt();
+					bitDepth = input.readUnsignedByte();
+					colorType = input.readUnsignedByte();
+					input.skipBytes(2);     // compression and filter methods
+					interlace = input.readUnsignedByte();
+					input.skipBytes(length - 13 + 4);
+				}else if(chunk == IDAT){
+					int channels = colorType == 0 || colorType == 3 ? 1 : colorType == 4 ? 2 : colorType == 2 ? 3 : colorType == 6 ? 4 : 0;
+					if(channels == 0 || interlace != 0 || width < 1 || height < 1)
+						return null;
+					return new PngBands(width, height, bitDepth, channels, input, input.getStreamPosition(), length);
+				}else {
+					input.skipBytes(length + 4L);
+				}
+			}
+		}
+		catch(EOFException e){
+			return null;
+		}
+		finally {
+			input.seek(start);
+			input.setByteOrder(order);
+		}
+	}
+
+	/**
+	 * Positions the stream on the first row, once the reader has read the header.
+	 *
+	 * @param reader Reader of the image, with the stream as input
+	 * @return False if the JDK reader converts the samples, like for transparent RGB, and must read the image itself
+	 * @throws IOException If the stream cannot be read
+	 */
+	boolean start(ImageReader reader) throws IOException
+	{
+		Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+		if(!types.hasNext())
+			return false;
+		type = types.next();
+		if(type.getNumBands() != channels)
+			return false;
+		for(int b = 0; b < channels; b++)
+			if(type.getSampleModel().getSampleSize(b) != bitDepth)
+				return false;
+
+		input.seek(idat);
+		input.setByteOrder(ByteOrder.BIG_ENDIAN);
+		rows = new InflaterInputStream(new IdatStream(input, idatLength), new Inflater(), 64 * 1024);
+		int rowBytes = (int)(((long)width * channels * bitDepth + 7) / 8);
+		row = new byte[rowBytes];
+		prior = new byte[rowBytes];
+		samples = new int[width * channels];
+		return true;
+	}
+
+	/**
+	 * Decodes the next rows.
+	 *
+	 * @param count Number of rows, at most the rows left
+	 * @return Image of the rows, reused by the next call
+	 * @throws IOException If the image is damaged
+	 */
+	BufferedImage next(int count) throws IOException
+	{
+		if(count < 1 || y + count > height)
+			throw new IllegalArgumentException("count should be between 1 and " + (height - y) + ", current count=" + count);
+		if(band == null || band.getHeight() != count)
+			band = type.createBufferedImage(width, count);
+		WritableRaster raster = band.getRaster();
+		for(int r = 0; r < count; r++, y++){
+			readRow();
+			unpack();
+			raster.setPixels(0, r, width, 1, samples);
+		}
+		return band;
+	}
+
+	/**
+	 * Inflates and unfilters the next row into row.
+	 */
+	private void readRow() throws IOException
+	{
+		byte[] swap = prior;
+		prior = row;
+		row = swap;
+		int filter = rows.read();
+		if(filter < 0)
+			throw new EOFException("PNG image ends at row " + y);
+		for(int read = 0, n; read < row.length; read += n){
+			n = rows.read(row, read, row.length - read);
+			if(n < 0)
+				throw new EOFException("PNG image ends at row " + y);
+		}
+
+		int bpp = Math.max(1, channels * bitDepth / 8), a, b, c;
+		switch(filter){
+			case 0:
+				break;
+			case 1:     // sub
+				for(int i = bpp; i < row.length; i++)
+					row[i] += row[i - bpp];
+				break;
+			case 2:     // up
+				for(int i = 0; i < row.length; i++)
+					row[i] += prior[i];
+				break;
+			case 3:     // average
+				for(int i = 0; i < row.length; i++)
+					row[i] += ((i < bpp ? 0 : row[i - bpp] & 0xFF) + (prior[i] & 0xFF)) >>> 1;
+				break;
+			case 4:     // paeth
+				for(int i = 0; i < row.length; i++){
+					a = i < bpp ? 0 : row[i - bpp] & 0xFF;
+					b = prior[i] & 0xFF;
+					c = i < bpp ? 0 : prior[i - bpp] & 0xFF;
+					int p = a + b - c, pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+					row[i] += pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+				}
+				break;
+			default:
+				throw new IOException("Unknown PNG filter " + filter + " at row " + y);
+		}
+	}
+
+	/**
+	 * Splits the row into samples.
+	 */
+	private void unpack()
+	{
+		int n = samples.length;
+		if(bitDepth == 8){
+			for(int i = 0; i < n; i++)
+				samples[i] = row[i] & 0xFF;
+		}else if(bitDepth == 16){
+			for(int i = 0; i < n; i++)
+				samples[i] = (row[2 * i] & 0xFF) << 8 | (row[2 * i + 1] & 0xFF);
+		}else {
+			int perByte = 8 / bitDepth, mask = (1 << bitDepth) - 1;
+			for(int i = 0; i < n; i++){
+				int shift = 8 - bitDepth * (i % perByte + 1);
+				samples[i] = (row[i / perByte] >> shift) & mask;
+			}
+		}
+	}
+
+	/**
+	 * The data of consecutive IDAT chunks as one stream
+	 */
+	private static class IdatStream extends InputStream
+	{
+		/**
+		 * Stream of the image, positioned inside an IDAT chunk
+		 */
+		private final ImageInputStream input;
+		/**
+		 * Bytes left in the current chunk
+		 */
+		private int left;
+		/**
+		 * True once a chunk that is not IDAT follows
+		 */
+		private boolean done;
+
+		/**
+		 * Creates the stream at the start of the data of an IDAT chunk.
+		 */
+		private IdatStream(ImageInputStream input, int length)
+		{
+			this.input = input;
+			this.left = length;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			byte[] one = new byte[1];
+			return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			while(left == 0){
+				if(done)
+					return -1;
+				input.readInt();        // crc of the chunk
+				int length = input.readInt(), chunk = input.readInt();
+				if(chunk != IDAT){
+					done = true;
+					return -1;
+				}
+				left = length;
+			}
+			int n = input.read(b, off, Math.min(len, left));
+			if(n < 0)
+				throw new EOFException("PNG image ends inside its data");
+			left -= n;
+			return n;
+		}
+	}
+}
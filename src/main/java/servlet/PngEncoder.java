@@ -0,0 +1,92 @@
+package servlet;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+
+/**
+ * PngEncoder writes images as PNG straight into a stream with a chosen
+ * deflate level, and builds the palette images that let a result with
+ * few colors be written with 1, 2, 4 or 8 bits per pixel instead of 24.
+ */
+public class PngEncoder
+{
+	/**
+	 * Deflate level of the JDK PNG writer when none is asked for
+	 */
+	public static final int DEFAULT_LEVEL = 4;
+
+	/**
+	 * Writes an image as PNG. The stream is written to while the image is
+	 * being encoded, nothing is buffered up front. The level is only applied
+	 * by writers that support it, the Java 8 PNG writer does not.
+	 *
+	 * @param image Image to write
+	 * @param out   Stream the PNG is written to, left open
+	 * @param level Deflate level, 0 (store) to 9 (smallest)
+	 * @throws IOException If the image cannot be written
+	 */
+	public static void write(BufferedImage image, OutputStream out, int level) throws IOException
+	{
+		if(level < 0 || level > 9)
+			throw new IllegalArgumentException("level should be between 0 and 9, current level=" + level);
+		Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("png");
+		if(!writers.hasNext())
+			throw new IOException("No PNG writer available");
+		ImageWriter writer = writers.next();
+
+		ImageWriteParam param = writer.getDefaultWriteParam();
+		if(param.canWriteCompressed()){     // false before Java 9, the writer then always uses its own level
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			param.setCompressionQuality(1f - level / 9f);      // the writer uses level = 9 * (1 - quality)
+		}
+		try(ImageOutputStream stream = ImageIO.createImageOutputStream(out)) {
+			writer.setOutput(stream);
+			writer.write(null, new IIOImage(image, null, null), param);
+		}finally {
+			writer.dispose();
+		}
+	}
+
+	/**
+	 * Returns the number of bits per pixel a palette of this size needs.
+	 *
+	 * @param size Number of palette entries, at most 256
+	 * @return 1, 2, 4 or 8
+	 */
+	public static int bitsFor(int size)
+	{
+		if(size <= 2) return 1;
+		if(size <= 4) return 2;
+		if(size <= 16) return 4;
+		return 8;
+	}
+
+	/**
+	 * Creates a palette image.
+	 * Up to 16 colors the pixels are packed several to a byte, MSB first,
+	 * otherwise every pixel is one byte.
+	 *
+	 * @param width   Width of the image
+	 * @param height  Height of the image
+	 * @param palette RGB colors
+	 * @param size    Number of colors used in palette, at most 256
+	 * @return TYPE_BYTE_BINARY or TYPE_BYTE_INDEXED image
+	 */
+	public static BufferedImage createIndexed(int width, int height, int[] palette, int size)
+	{
+		if(size < 1 || size > 256)
+			throw new IllegalArgumentException("size should be between 1 and 256, current size=" + size);
+		int bits = bitsFor(size);
+		IndexColorModel cm = new IndexColorModel(bits, size, palette, 0, false, -1, DataBuffer.TYPE_BYTE);
+		return new BufferedImage(width, height, bits == 8 ? BufferedImage.TYPE_BYTE_INDEXED : BufferedImage.TYPE_BYTE_BINARY, cm);
+	}
+}
@@ -0,0 +1,366 @@
+package servlet;
+
+import javax.servlet.ServletContext;
+import java.awt.*;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ResultCache remembers the output of recent detections.
+ *
+ * Entries are keyed by a SHA-256 hash of the uploaded bytes together with
+ * the requested colors and distances, so the same image asked the same
+ * question again costs a hash and a lookup. The least recently used
+ * entries are evicted once the cached bytes go over a budget.
+ */
+public class ResultCache
+{
+	/**
+	 * Name of the servlet context attribute that holds the shared cache
+	 */
+	private static final String ATTRIBUTE = ResultCache.class.getName();
+	/**
+	 * Rough bookkeeping cost of one entry besides its payload
+	 */
+	private static final int ENTRY_OVERHEAD = 128;
+
+	/**
+	 * Cached entries, least recently used first
+	 */
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	/**
+	 * Largest number of bytes the cache may hold
+	 */
+	private final long maxBytes;
+	/**
+	 * Number of bytes held right now
+	 */
+	private long bytes;
+	/**
+	 * Lookup counters
+	 */
+	private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), evictions = new AtomicLong();
+
+	/**
+	 * Creates a cache.
+	 *
+	 * @param maxBytes Byte budget, 0 disables caching
+	 */
+	public ResultCache(long maxBytes)
+	{
+		this.maxBytes = Math.max(0, maxBytes);
+	}
+
+	/**
+	 * Returns the cache shared by every servlet of the application.
+	 *
+	 * @param context Servlet context
+	 * @return Shared cache
+	 */
+	public static ResultCache get(ServletContext context)
+	{
+		synchronized(context){
+			ResultCache cache = (ResultCache)context.getAttribute(ATTRIBUTE);
+			if(cache == null){
+				cache = new ResultCache(Long.getLong("detector.cache.bytes", 64L * 1024 * 1024));
+				context.setAttribute(ATTRIBUTE, cache);
+			}
+			return cache;
+		}
+	}
+
+	/**
+	 * Builds the key of a detection by hashing the image bytes.
+	 *
+	 * @param image  Image bytes, read to the end but not closed
+	 * @param color  Requested color
+	 * @param okDist Requested distance
+	 * @return Cache key
+	 * @throws IOException If the image cannot be read
+	 */
+	public static String key(InputStream image, Color color, int okDist) throws IOException
+	{
+		return key(hash(image), color, okDist);
+	}
+
+	/**
+	 * Builds the key of a detection from an image hash.
+	 *
+	 * @param hash   Image hash from {@link #hash(InputStream)}
+	 * @param color  Requested color
+	 * @param okDist Requested distance
+	 * @return Cache key
+	 */
+	public static String key(String hash, Color color, int okDist)
+	{
+		return hash + String.format(":%06x:%d", color.getRGB() & 0xFFFFFF, okDist);
+	}
+
+	/**
+	 * Builds the key of a detection of several colors from an image hash.
+	 *
+	 * @param hash    Image hash from {@link #hash(InputStream)}
+	 * @param targets Requested colors and distances
+	 * @param k       Number of blobs reported per target, Integer.MAX_VALUE for every blob
+	 * @return Cache key, the same as {@link #key(String, Color, int)} for a single target and every blob
+	 */
+	public static String key(String hash, List<Target> targets, int k)
+	{
+		StringBuilder key = new StringBuilder(hash);
+		for(Target target : targets)
+			key.append(String.format(":%06x:%d", target.getColor().getRGB() & 0xFFFFFF, target.getOkDist()));
+		if(k != Integer.MAX_VALUE)
+			key.append(":k").append(k);
+		return key.toString();
+	}
+
+	/**
+	 * Builds the key of a detection restricted to regions of interest.
+	 *
+	 * @param hash    Image hash from {@link #hash(InputStream)}
+	 * @param targets Requested colors and distances
+	 * @param k       Number of blobs reported per target, Integer.MAX_VALUE for every blob
+	 * @param roi     Regions of interest, null for the whole image
+	 * @return Cache key, the same as {@link #key(String, List, int)} without regions
+	 */
+	public static String key(String hash, List<Target> targets, int k, Roi roi)
+	{
+		String key = key(hash, targets, k);
+		return roi == null ? key : key + ":roi" + roi;
+	}
+
+	/**
+	 * Builds the key of a detection with the pixels joined 4- or 8-connected.
+	 *
+	 * @param hash         Image hash from {@link #hash(InputStream)}
+	 * @param targets      Requested colors and distances
+	 * @param k            Number of blobs reported per target, Integer.MAX_VALUE for every blob
+	 * @param roi          Regions of interest, null for the whole image
+	 * @param connectivity 4 or 8, 0 for the default of the detector
+	 * @return Cache key, the same as {@link #key(String, List, int, Roi)} for the default
+	 */
+	public static String key(String hash, List<Target> targets, int k, Roi roi, int connectivity)
+	{
+		String key = key(hash, targets, k, roi);
+		return connectivity == 0 ? key : key + ":c" + connectivity;
+	}
+
+	/**
+	 * Hashes the image bytes.
+	 *
+	 * @param image Image bytes, read to the end but not closed
+	 * @return SHA-256 as hex
+	 * @throws IOException If the image cannot be read
+	 */
+	public static String hash(InputStream image) throws IOException
+	{
+		MessageDigest digest = newDigest();
+		byte[] buffer = new byte[64 * 1024];
+		int read;
+		while((read = image.read(buffer)) != -1)
+			digest.update(buffer, 0, read);
+		return toHex(digest);
+	}
+
+	/**
+	 * Creates the digest used for image hashes.
+	 * @return SHA-256 digest
+	 */
+	public static MessageDigest newDigest()
+	{
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		}catch (NoSuchAlgorithmException e){
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	}
+
+	/**
+	 * Finishes a digest.
+	 * @param digest Digest fed with the image bytes
+	 * @return Hash as hex
+	 */
+	public static String toHex(MessageDigest digest)
+	{
+		StringBuilder hex = new StringBuilder(64);
+		for(byte b : digest.digest())
+			hex.append(String.format("%02x", b));
+		return hex.toString();
+	}
+
+	/**
+	 * Looks up a detection.
+	 *
+	 * @param key      Cache key
+	 * @param needsPng True if the caller needs the encoded image and not only the statistics
+	 * @return Cached entry, or null on a miss
+	 */
+	public Entry get(String key, boolean needsPng)
+	{
+		Entry entry;
+		synchronized(this){
+			entry = entries.get(key);
+		}
+		if(entry == null || (needsPng && entry.png == null)){
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return entry;
+	}
+
+	/**
+	 * Stores the output of a detection, evicting old entries to stay within budget.
+	 *
+	 * @param key  Cache key
+	 * @param json Blob statistics as JSON
+	 * @param png  Encoded image, or null if it was not produced
+	 */
+	public void put(String key, String json, byte[] png)
+	{
+		Entry entry = new Entry(json, png);
+		if(entry.weight() > maxBytes)
+			return;
+
+		synchronized(this){
+			Entry old = entries.put(key, entry);
+			if(old != null)
+				bytes -= old.weight();
+			bytes += entry.weight();
+
+			Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+			while(bytes > maxBytes && eldest.hasNext()){
+				Entry evicted = eldest.next().getValue();
+				eldest.remove();
+				bytes -= evicted.weight();
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of bytes the output of a detection holds.
+	 *
+	 * @param json Blob statistics as JSON
+	 * @param png  Encoded image, or null
+	 * @return Bytes
+	 */
+	static long weight(String json, byte[] png)
+	{
+		return ENTRY_OVERHEAD + 2L * json.length() + (png == null ? 0 : png.length);
+	}
+
+	/**
+	 * Returns true if anything can be cached at all.
+	 * @return False when the byte budget is 0
+	 */
+	public boolean isEnabled()
+	{
+		return maxBytes > 0;
+	}
+
+	/**
+	 * Returns the number of lookups that found an entry.
+	 * @return Hits
+	 */
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	/**
+	 * Returns the number of lookups that found nothing.
+	 * @return Misses
+	 */
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+	/**
+	 * Returns the number of entries evicted to stay within budget.
+	 * @return Evictions
+	 */
+	public long getEvictions()
+	{
+		return evictions.get();
+	}
+
+	/**
+	 * Returns the number of bytes held right now.
+	 * @return Bytes
+	 */
+	public synchronized long getBytes()
+	{
+		return bytes;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return String.format("ResultCache[entries=%d, bytes=%d/%d, hits=%d, misses=%d, evictions=%d]",
+				entries.size(), bytes, maxBytes, hits.get(), misses.get(), evictions.get());
+	}
+
+	/**
+	 * Output of one detection
+	 */
+	public static class Entry
+	{
+		/**
+		 * Blob statistics as JSON
+		 */
+		private final String json;
+		/**
+		 * Encoded image, null if only the statistics were produced
+		 */
+		private final byte[] png;
+
+		/**
+		 * Creates an entry
+		 * @param json Blob statistics as JSON
+		 * @param png  Encoded image, or null
+		 */
+		private Entry(String json, byte[] png)
+		{
+			if(json == null)
+				throw new NullPointerException("Null json");
+			this.json = json;
+			this.png = png;
+		}
+
+		/**
+		 * Returns the blob statistics.
+		 * @return JSON text
+		 */
+		public String getJson()
+		{
+			return json;
+		}
+
+		/**
+		 * Returns the encoded image.
+		 * @return PNG bytes, or null
+		 */
+		public byte[] getPng()
+		{
+			return png;
+		}
+
+		/**
+		 * Returns the number of bytes this entry holds.
+		 * @return Bytes
+		 */
+		private long weight()
+		{
+			return ResultCache.weight(json, png);
+		}
+	}
+}
@@ -0,0 +1,290 @@
+package servlet;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Roi is the part of an image a detection is restricted to: a list of
+ * rectangles, a coarse bitmap stretched over the image, or both.
+ *
+ * Rectangles are in image pixels. A bitmap cell covers width / columns by
+ * height / rows pixels of the image and is inside the region when it is
+ * not black. Either way the region comes down to a list of rectangles once
+ * the size of the image is known.
+ */
+public class Roi
+{
+	/**
+	 * Largest number of bitmap cells
+	 */
+	private static final int MAX_CELLS = 1 << 20;
+
+	/**
+	 * Rectangles, in image pixels
+	 */
+	private final List<Rectangle> rectangles;
+	/**
+	 * True for every bitmap cell inside the region, row-major, or null without a bitmap
+	 */
+	private final boolean[] cells;
+	/**
+	 * Size of the bitmap
+	 */
+	private final int columns, rows;
+
+	/**
+	 * Creates a region.
+	 *
+	 * @param rectangles Rectangles in image pixels
+	 * @param cells      Bitmap cells inside the region, row-major, or null
+	 * @param columns    Width of the bitmap
+	 * @param rows       Height of the bitmap
+	 */
+	private Roi(List<Rectangle> rectangles, boolean[] cells, int columns, int rows)
+	{
+		this.rectangles = rectangles;
+		this.cells = cells;
+		this.columns = columns;
+		this.rows = rows;
+	}
+
+	/**
+	 * Creates a region made of rectangles.
+	 *
+	 * @param rectangles Rectangles in image pixels, at least one
+	 * @return Region
+	 */
+	public static Roi of(List<Rectangle> rectangles)
+	{
+		if(rectangles.isEmpty())
+			throw new IllegalArgumentException("A region of interest needs at least one rectangle");
+		List<Rectangle> copy = new ArrayList<>(rectangles.size());
+		for(Rectangle r : rectangles){
+			if(r.width <= 0 || r.height <= 0)
+				throw new IllegalArgumentException("Region of interest " + r.x + "," + r.y + "," + r.width + "," + r.height + " is empty");
+			copy.add(new Rectangle(r));
+		}
+		return new Roi(Collections.unmodifiableList(copy), null, 0, 0);
+	}
+
+	/**
+	 * Reads rectangles written as x,y,width,height and separated by semicolons,
+	 * like {@code 0,0,100,50;200,200,64,64}.
+	 *
+	 * Throws IllegalArgumentException if the text is not a list of rectangles.
+	 *
+	 * @param text Rectangles
+	 * @return Region
+	 */
+	public static Roi parse(String text)
+	{
+		List<Rectangle> rectangles = new ArrayList<>();
+		for(String rectangle : text.split(";")){
+			String[] parts = rectangle.trim().split(",");
+			if(parts.length != 4)
+				throw new IllegalArgumentException("roi should be x,y,width,height rectangles separated by semicolons");
+			int[] values = new int[4];
+			try {
+				for(int i = 0; i < 4; i++)
+					values[i] = Integer.parseInt(parts[i].trim());
+			}catch (NumberFormatException e){
+				throw new IllegalArgumentException("roi should be x,y,width,height rectangles separated by semicolons");
+			}
+			rectangles.add(new Rectangle(values[0], values[1], values[2], values[3]));
+		}
+		return of(rectangles);
+	}
+
+	/**
+	 * Creates a region from a coarse bitmap that is stretched over the image.
+	 * Cells that are not black are inside the region.
+	 *
+	 * @param bitmap Bitmap, at most {@value #MAX_CELLS} pixels
+	 * @return Region
+	 */
+	public static Roi bitmap(BufferedImage bitmap)
+	{
+		int columns = bitmap.getWidth(), rows = bitmap.getHeight();
+		checkCells(columns, rows);
+		boolean[] cells = new boolean[columns * rows];
+		int[] row = new int[columns];
+		for(int y = 0; y < rows; y++){
+			bitmap.getRGB(0, y, columns, 1, row, 0, columns);
+			for(int x = 0; x < columns; x++)
+				cells[y * columns + x] = (row[x] & 0xFFFFFF) != 0;
+		}
+		return new Roi(Collections.emptyList(), cells, columns, rows);
+	}
+
+	/**
+	 * Creates a region from an encoded bitmap. Its size is checked from the
+	 * header, so a bitmap with too many pixels is never decoded.
+	 *
+	 * Throws IllegalArgumentException if the bitmap has more than {@value #MAX_CELLS} pixels.
+	 *
+	 * @param in Encoded bitmap, left open
+	 * @return Region, or null if the format is not supported
+	 * @throws IOException If the bitmap cannot be read
+	 */
+	public static Roi bitmap(InputStream in) throws IOException
+	{
+		ImageInputStream stream = ImageIO.createImageInputStream(in);
+		if(stream == null)
+			return null;
+		try {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+			if(!readers.hasNext())
+				return null;
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(stream, true, true);
+				checkCells(reader.getWidth(0), reader.getHeight(0));
+				return bitmap(reader.read(0));
+			}finally {
+				reader.dispose();
+			}
+		}finally {
+			stream.close();
+		}
+	}
+
+	/**
+	 * Checks that a bitmap has at most {@value #MAX_CELLS} pixels.
+	 *
+	 * @param columns Width of the bitmap
+	 * @param rows    Height of the bitmap
+	 */
+	private static void checkCells(int columns, int rows)
+	{
+		if((long)columns * rows > MAX_CELLS)
+			throw new IllegalArgumentException("The region of interest bitmap should have at most " + MAX_CELLS + " pixels");
+	}
+
+	/**
+	 * Returns a region that holds both regions.
+	 *
+	 * @param other Region, or null
+	 * @return Union, this region if other is null
+	 */
+	public Roi union(Roi other)
+	{
+		if(other == null)
+			return this;
+		if(cells != null && other.cells != null)
+			throw new IllegalArgumentException("Only one region of interest bitmap can be given");
+		List<Rectangle> both = new ArrayList<>(rectangles);
+		both.addAll(other.rectangles);
+		return cells != null ? new Roi(Collections.unmodifiableList(both), cells, columns, rows)
+				: new Roi(Collections.unmodifiableList(both), other.cells, other.columns, other.rows);
+	}
+
+	/**
+	 * Returns the rectangles of the region within an image.
+	 * A bitmap is turned into runs of cells that are merged with the runs
+	 * of the row above when they cover the same columns. Both rows of runs
+	 * are sorted by column, so they are merged in a single walk.
+	 *
+	 * @param width  Width of the image
+	 * @param height Height of the image
+	 * @return Rectangles inside the image, possibly none, possibly overlapping
+	 */
+	public List<Rectangle> getRectangles(int width, int height)
+	{
+		Rectangle image = new Rectangle(0, 0, width, height);
+		List<Rectangle> inside = new ArrayList<>();
+		for(Rectangle r : rectangles){
+			Rectangle clipped = r.intersection(image);
+			if(!clipped.isEmpty())
+				inside.add(clipped);
+		}
+		if(cells == null)
+			return inside;
+
+		List<Rectangle> open = new ArrayList<>(), next = new ArrayList<>();
+		for(int row = 0; row < rows; row++){
+			int y1 = (int)((long)row * height / rows), y2 = (int)((long)(row + 1) * height / rows);
+			next.clear();
+			int above = 0;      // next run of the row above that may continue
+			for(int col = 0; col < columns; col++){
+				if(!cells[row * columns + col])
+					continue;
+				int end = col;
+				while(end + 1 < columns && cells[row * columns + end + 1])
+					end++;
+				int x1 = (int)((long)col * width / columns), x2 = (int)((long)(end + 1) * width / columns);
+				col = end;
+				if(x2 <= x1 || y2 <= y1)
+					continue;
+				while(above < open.size() && open.get(above).x < x1)
+					inside.add(open.get(above++));     // nothing continues it
+				Rectangle run;
+				if(above < open.size() && open.get(above).x == x1 && open.get(above).width == x2 - x1){
+					run = open.get(above++);
+					run.height = y2 - run.y;        // continue the run of the row above
+				}else {
+					run = new Rectangle(x1, y1, x2 - x1, y2 - y1);
+				}
+				next.add(run);
+			}
+			while(above < open.size())
+				inside.add(open.get(above++));
+			List<Rectangle> swap = open;
+			open = next;
+			next = swap;
+		}
+		inside.addAll(open);
+		return inside;
+	}
+
+	/**
+	 * Returns the smallest rectangle holding the region within an image.
+	 *
+	 * @param width  Width of the image
+	 * @param height Height of the image
+	 * @return Bounding box, empty if the region is outside the image
+	 */
+	public Rectangle getBounds(int width, int height)
+	{
+		Rectangle bounds = null;
+		for(Rectangle r : getRectangles(width, height))
+			bounds = bounds == null ? new Rectangle(r) : bounds.union(r);
+		return bounds == null ? new Rectangle() : bounds;
+	}
+
+	/**
+	 * Describes the region, the same text for the same region.
+	 * A bitmap is described by its size and a hash of its cells.
+	 * @return Text usable in a cache key
+	 */
+	@Override
+	public String toString()
+	{
+		StringBuilder text = new StringBuilder();
+		for(Rectangle r : rectangles){
+			if(text.length() > 0)
+				text.append(';');
+			text.append(r.x).append(',').append(r.y).append(',').append(r.width).append(',').append(r.height);
+		}
+		if(cells != null){
+			MessageDigest digest = ResultCache.newDigest();
+			byte[] packed = new byte[(cells.length + 7) / 8];
+			for(int i = 0; i < cells.length; i++)
+				if(cells[i])
+					packed[i >> 3] |= 1 << (i & 7);
+			digest.update(packed);
+			text.append(text.length() > 0 ? ";" : "").append("bitmap").append(columns).append('x').append(rows)
+					.append(':').append(ResultCache.toHex(digest));
+		}
+		return text.toString();
+	}
+}
@@ -0,0 +1,496 @@
+package servlet;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * SequenceDetector finds and tracks the blobs of every frame of a video
+ * or of a sequence of images.
+ *
+ * One {@link Detector} is kept for the whole sequence, so its mask and
+ * label arrays are reused by every frame of the same size. Frames are
+ * decoded into two image buffers that take turns: the next frame is
+ * decoded on another thread into one buffer while the current frame is
+ * detected in the other, and a buffer is decoded into again as soon as its
+ * frame is done. A {@link BlobTracker} gives every blob an id that stays
+ * the same from one frame to the next.
+ *
+ * A sequence is processed by a single thread at a time.
+ */
+public class SequenceDetector
+{
+	/**
+	 * Shared serializer, Gson instances are thread safe
+	 */
+	private static final Gson GSON = new GsonBuilder().serializeSpecialFloatingPointValues().create();
+
+	/**
+	 * Colors and distances looked for
+	 */
+	private final List<Target> targets;
+	/**
+	 * Number of blobs tracked per target, largest first
+	 */
+	private final int k;
+	/**
+	 * Follows the blobs between frames
+	 */
+	private final BlobTracker tracker;
+	/**
+	 * Detector reused by every frame, created with the first one
+	 */
+	private Detector detector;
+	/**
+	 * Receives stage timings, or null
+	 */
+	private DetectorMetrics metrics;
+	/**
+	 * 4 or 8, or 0 for the default of the detector
+	 */
+	private int connectivity;
+	/**
+	 * Number of frames detected
+	 */
+	private int frames;
+	/**
+	 * Number of frames that were damaged or could not be decoded, counted by the decoder
+	 */
+	private volatile int dropped;
+	/**
+	 * Time the first frame was started, for the frame rate
+	 */
+	private long startNanos;
+
+	/**
+	 * Creates a sequence detector.
+	 *
+	 * @param targets Colors and distances looked for
+	 * @param k       Number of blobs tracked per target, Integer.MAX_VALUE for every blob
+	 * @param tracker Follows the blobs between frames
+	 */
+	public SequenceDetector(List<Target> targets, int k, BlobTracker tracker)
+	{
+		if(targets == null || tracker == null)
+			throw new NullPointerException("Null targets or tracker");
+		if(k < 1)
+			throw new IllegalArgumentException("k should be greater than 0, current k=" + k);
+		this.targets = new ArrayList<>(targets);
+		this.k = k;
+		this.tracker = tracker;
+	}
+
+	/**
+	 * Records the time spent in every stage from now on.
+	 * @param metrics Metrics to record into, null to record nothing
+	 */
+	public void setMetrics(DetectorMetrics metrics)
+	{
+		this.metrics = metrics;
+		if(detector != null)
+			detector.setMetrics(metrics);
+	}
+
+	/**
+	 * Sets which pixels touch, for every frame from now on.
+	 * @param connectivity 4 or 8, or 0 for the default of the detector
+	 */
+	public void setConnectivity(int connectivity)
+	{
+		if(connectivity != 0 && connectivity != 4 && connectivity != 8)
+			throw new IllegalArgumentException("connectivity should be 4 or 8, current connectivity=" + connectivity);
+		this.connectivity = connectivity;
+		if(detector != null && connectivity != 0)
+			detector.setConnectivity(connectivity);
+	}
+
+	/**
+	 * Detects and tracks the blobs of every frame of a source, in order.
+	 * Frames that cannot be decoded, or that the source found damaged, are
+	 * dropped and counted.
+	 *
+	 * @param source  Frames
+	 * @param decoder Decodes the next frame while the current one is detected;
+	 *                if it rejects the work the frame is decoded on the calling thread
+	 * @param output  Receives the statistics of every frame, on the calling thread
+	 * @throws IOException If the source cannot be read
+	 */
+	public void run(FrameSource source, Executor decoder, Consumer<FrameStats> output) throws IOException
+	{
+		BufferedImage[] buffers = new BufferedImage[2];
+		CompletableFuture<Decoded> next = decodeNext(source, null, decoder);
+		try {
+			for(int i = 0; ; i++){
+				Decoded current = join(next);
+				if(current == null)
+					break;
+				buffers[i & 1] = current.image;
+				next = decodeNext(source, buffers[(i + 1) & 1], decoder);    // the other buffer is free again
+				output.accept(process(current.name, current.image));
+			}
+		}finally {
+			try {
+				next.join();    // the source must not be closed while it is read
+			}catch (CompletionException ignored){
+			}
+		}
+	}
+
+	/**
+	 * Detects and tracks the blobs of one frame.
+	 *
+	 * @param name  Name of the frame
+	 * @param frame Decoded frame, not modified
+	 * @return Statistics of the frame
+	 */
+	public FrameStats process(String name, BufferedImage frame)
+	{
+		long start = System.nanoTime();
+		if(startNanos == 0)
+			startNanos = start;
+		if(detector == null){
+			detector = new Detector(frame, targets);
+			detector.setMetrics(metrics);
+			if(connectivity != 0)
+				detector.setConnectivity(connectivity);
+		}else {
+			detector.setImage(frame);
+		}
+		detector.detect();
+		List<BlobTracker.Track> tracks = tracker.update(detector.getBlobSets(k));
+		frames++;
+		long now = System.nanoTime();
+		return new FrameStats(frames, name, frame.getWidth(), frame.getHeight(), detector.getBlobCount(), tracks,
+				tracker.getCreated(), tracker.getLost(), dropped, (now - start) / 1e6,
+				frames / Math.max((now - startNanos) / 1e9, 1e-9));
+	}
+
+	/**
+	 * Reads and decodes the next frame, on the decoder if it takes the work.
+	 *
+	 * @param source  Frames
+	 * @param reuse   Image to decode into if the frame has the same size and type, or null
+	 * @param decoder Decoder threads
+	 * @return Decoded frame, null after the last one
+	 */
+	private CompletableFuture<Decoded> decodeNext(FrameSource source, BufferedImage reuse, Executor decoder)
+	{
+		Supplier<Decoded> task = () -> {
+			try {
+				for(FrameSource.Frame frame; (frame = next(source)) != null; ){
+					long start = System.nanoTime();
+					BufferedImage image;
+					try {
+						image = decode(frame.getBytes(), reuse);
+					}catch (IOException | RuntimeException e){
+						image = null;   // a damaged frame of a stream is skipped
+					}
+					if(metrics != null)
+						metrics.record(DetectorMetrics.Stage.DECODE, start);
+					if(image != null)
+						return new Decoded(frame.getName(), image);
+					dropped++;
+				}
+				return null;
+			}catch (IOException e){
+				throw new UncheckedIOException(e);
+			}
+		};
+		try {
+			return CompletableFuture.supplyAsync(task, decoder);
+		}catch (RejectedExecutionException e){
+			CompletableFuture<Decoded> decoded = new CompletableFuture<>();
+			try {
+				decoded.complete(task.get());
+			}catch (RuntimeException failure){
+				decoded.completeExceptionally(failure);
+			}
+			return decoded;
+		}
+	}
+
+	/**
+	 * Reads the next frame, counting the frames the source dropped on the way.
+	 * @param source Frames
+	 * @return Frame, or null after the last one
+	 * @throws IOException If the source cannot be read
+	 */
+	private FrameSource.Frame next(FrameSource source) throws IOException
+	{
+		int skipped = source.getDropped();
+		FrameSource.Frame frame = source.next();
+		dropped += source.getDropped() - skipped;
+		return frame;
+	}
+
+	/**
+	 * Waits for a frame to be decoded.
+	 * @param future Decoded frame
+	 * @return Frame, or null after the last one
+	 * @throws IOException If the source could not be read
+	 */
+	private static Decoded join(CompletableFuture<Decoded> future) throws IOException
+	{
+		try {
+			return future.join();
+		}catch (CompletionException e){
+			if(e.getCause() instanceof UncheckedIOException)
+				throw ((UncheckedIOException)e.getCause()).getCause();
+			throw e;
+		}
+	}
+
+	/**
+	 * Decodes an image, into an existing image when it has the same size
+	 * and the type the decoder would create anyway.
+	 *
+	 * @param bytes Encoded image
+	 * @param reuse Image to decode into, or null
+	 * @return Decoded image, reuse itself when it was decoded into, or null if the format is not supported
+	 * @throws IOException If the image cannot be decoded
+	 */
+	static BufferedImage decode(byte[] bytes, BufferedImage reuse) throws IOException
+	{
+		try(ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(bytes))) {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+			if(!readers.hasNext())
+				return null;
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(in, true, true);
+				ImageReadParam param = reader.getDefaultReadParam();
+				if(reuse != null && reuse.getWidth() == reader.getWidth(0) && reuse.getHeight() == reader.getHeight(0)){
+					Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+					ImageTypeSpecifier type = types.hasNext() ? types.next() : null;  // what ImageIO.read would create
+					if(type != null && type.getBufferedImageType() == reuse.getType()
+							&& reuse.getType() != BufferedImage.TYPE_CUSTOM
+							&& type.getColorModel().equals(reuse.getColorModel()))
+						param.setDestination(reuse);
+				}
+				return reader.read(0, param);
+			}finally {
+				reader.dispose();
+			}
+		}
+	}
+
+	/**
+	 * Detects and tracks the blobs of a directory of frames, a ZIP of
+	 * frames or a Motion JPEG file, and prints the statistics of every
+	 * frame as one line of JSON.
+	 * @param args Path, targets as #rrggbb:dist separated by commas, and optionally k
+	 * @throws IOException If the frames cannot be read
+	 */
+	public static void main(String[] args) throws IOException {
+		if(args.length < 2){
+			System.out.println("Usage: SequenceDetector <directory|frames.zip|video.mjpeg> <#rrggbb:dist,...> [k]");
+			return;
+		}
+		List<Target> targets = new ArrayList<>();
+		for(String target : args[1].split(","))
+			targets.add(Target.parse(target));
+		int k = args.length > 2 ? Integer.parseInt(args[2]) : Integer.MAX_VALUE;
+
+		SequenceDetector sequence = new SequenceDetector(targets, k, new BlobTracker(32, 0.3, 5));
+		DetectionExecutor decoder = new DetectionExecutor("decoder", 1, 1);
+		FrameStats[] last = new FrameStats[1];
+		try(FrameSource source = FrameSource.open(new File(args[0]), 256 * 1024 * 1024)) {
+			sequence.run(source, decoder::submit, stats -> {
+				System.out.println(stats.toJson());
+				last[0] = stats;
+			});
+		}finally {
+			decoder.shutdown();
+		}
+		if(last[0] != null)
+			System.err.printf("%d frames, %.1f frames/s%n", last[0].frame, last[0].framesPerSecond);
+	}
+
+	/**
+	 * A decoded frame
+	 */
+	private static class Decoded
+	{
+		/**
+		 * Name of the frame
+		 */
+		private final String name;
+		/**
+		 * Decoded image
+		 */
+		private final BufferedImage image;
+
+		/**
+		 * Creates a decoded frame
+		 */
+		private Decoded(String name, BufferedImage image)
+		{
+			this.name = name;
+			this.image = image;
+		}
+	}
+
+	/**
+	 * Statistics of one frame, in a form that can be sent as JSON
+	 */
+	public static class FrameStats
+	{
+		/**
+		 * Number of the frame, the first frame is 1
+		 */
+		private final int frame;
+		/**
+		 * Name of the frame
+		 */
+		private final String name;
+		/**
+		 * Size of the frame
+		 */
+		private final int width, height;
+		/**
+		 * Number of blobs found, tracked or not
+		 */
+		private final int blobCount;
+		/**
+		 * Number of tracks started and dropped by this frame
+		 */
+		private final int newTracks, lostTracks;
+		/**
+		 * Number of frames dropped so far because they could not be decoded
+		 */
+		private final int dropped;
+		/**
+		 * Time spent detecting and tracking this frame
+		 */
+		private final double millis;
+		/**
+		 * Frames processed per second since the first frame, decoding included
+		 */
+		private final double framesPerSecond;
+		/**
+		 * Tracked blobs, largest first for every target
+		 */
+		private final List<TrackStats> tracks;
+
+		/**
+		 * Copies the statistics of a frame
+		 */
+		private FrameStats(int frame, String name, int width, int height, int blobCount, List<BlobTracker.Track> tracks,
+				int newTracks, int lostTracks, int dropped, double millis, double framesPerSecond)
+		{
+			this.frame = frame;
+			this.name = name;
+			this.width = width;
+			this.height = height;
+			this.blobCount = blobCount;
+			this.newTracks = newTracks;
+			this.lostTracks = lostTracks;
+			this.dropped = dropped;
+			this.millis = millis;
+			this.framesPerSecond = framesPerSecond;
+			this.tracks = new ArrayList<>(tracks.size());
+			for(BlobTracker.Track track : tracks)
+				this.tracks.add(new TrackStats(track));
+		}
+
+		/**
+		 * Returns the number of the frame.
+		 * @return Frame number, the first frame is 1
+		 */
+		public int getFrame()
+		{
+			return frame;
+		}
+
+		/**
+		 * Returns the frames processed per second so far.
+		 * @return Frame rate
+		 */
+		public double getFramesPerSecond()
+		{
+			return framesPerSecond;
+		}
+
+		/**
+		 * Serializes the statistics.
+		 * @return JSON text on a single line
+		 */
+		public String toJson()
+		{
+			return GSON.toJson(this);
+		}
+	}
+
+	/**
+	 * JSON form of a {@link BlobTracker.Track} in one frame
+	 */
+	private static class TrackStats
+	{
+		/**
+		 * Track id
+		 */
+		private final long id;
+		/**
+		 * Index of the target
+		 */
+		private final int target;
+		/**
+		 * Number of frames the blob was found in
+		 */
+		private final int age;
+		/**
+		 * Number of pixels
+		 */
+		private final int area;
+		/**
+		 * Bounding box
+		 */
+		private final int x, y, width, height;
+		/**
+		 * Centroid and its movement per frame
+		 */
+		private final double centroidX, centroidY, velocityX, velocityY;
+
+		/**
+		 * Copies a track
+		 * @param track Track
+		 */
+		private TrackStats(BlobTracker.Track track)
+		{
+			Blob blob = track.getBlob();
+			Rectangle bounds = blob.getBounds();
+			this.id = track.getId();
+			this.target = track.getTarget();
+			this.age = track.getAge();
+			this.area = blob.getArea();
+			this.x = bounds.x;
+			this.y = bounds.y;
+			this.width = bounds.width;
+			this.height = bounds.height;
+			this.centroidX = blob.getCentroidX();
+			this.centroidY = blob.getCentroidY();
+			this.velocityX = track.getVelocityX();
+			this.velocityY = track.getVelocityY();
+		}
+	}
+}
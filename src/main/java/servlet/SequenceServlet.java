@@ -0,0 +1,145 @@
+package servlet;
+
+import javax.imageio.ImageIO;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.MultipartConfig;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.Part;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Detects and tracks blobs across the frames of a video.
+ *
+ * POST /sequence takes the color fields of /colorDetector and either a ZIP
+ * of frames as frames or a Motion JPEG file as mjpeg. The response is one
+ * line of JSON per frame, sent as soon as the frame is done, with the
+ * tracked blobs of the frame and ids that stay the same across frames.
+ * maxDistance, minOverlap and maxMisses tune the tracking, and
+ * connectivity=8 joins pixels that only touch on a corner. An upload is
+ * spooled to disk first and may be at most {@link #MAX_REQUEST_BYTES}.
+ */
+@WebServlet(name = "sequence", urlPatterns = {"/sequence"})
+@MultipartConfig(fileSizeThreshold = 16 * 1024 * 1024, maxFileSize = SequenceServlet.MAX_REQUEST_BYTES,
+		maxRequestSize = SequenceServlet.MAX_REQUEST_BYTES)
+public class SequenceServlet extends HttpServlet
+{
+	/**
+	 * Largest upload accepted, the frames of a video are read from disk
+	 */
+	static final long MAX_REQUEST_BYTES = 2L * 1024 * 1024 * 1024;
+	/**
+	 * Decodes the next frame of every sequence while the current one is detected
+	 */
+	private DetectionExecutor decoder;
+	/**
+	 * Stage timings and counters, shared with {@link MetricsServlet}
+	 */
+	private DetectorMetrics metrics;
+	/**
+	 * Largest frame accepted
+	 */
+	private int maxFrameBytes;
+
+	@Override
+	public void init() throws ServletException
+	{
+		super.init();
+		ImageIO.setUseCache(false);
+		int cores = Runtime.getRuntime().availableProcessors();
+		decoder = new DetectionExecutor("sequence", Integer.getInteger("detector.sequence.decoders", cores), cores);
+		metrics = DetectorMetrics.get(getServletContext());
+		metrics.register("sequence", decoder);
+		maxFrameBytes = Integer.getInteger("detector.sequence.maxFrameBytes", 64 * 1024 * 1024);
+	}
+
+	@Override
+	protected void doPost(HttpServletRequest request, HttpServletResponse response)
+			throws ServletException, IOException
+	{
+		List<Target> targets;
+		int k, connectivity;
+		BlobTracker tracker;
+		try {
+			targets = DetectionRequest.parseTargets(request);
+			k = DetectionRequest.parseK(request);
+			connectivity = DetectionRequest.parseConnectivity(request);
+			tracker = new BlobTracker(parseDouble(request, "maxDistance", 32), parseDouble(request, "minOverlap", 0.3),
+					(int)parseDouble(request, "maxMisses", 5));
+		}catch (IllegalArgumentException e){
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+			return;
+		}
+
+		Part frames = null, mjpeg = null;
+		try {
+			if(DetectionRequest.isMultipart(request)){
+				frames = request.getPart("frames");
+				mjpeg = request.getPart("mjpeg");
+			}
+		}catch (IllegalStateException e){       // over the size limits of the multipart config
+			response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+					"A sequence should be at most " + MAX_REQUEST_BYTES + " bytes");
+			return;
+		}
+		if((frames == null || frames.getSize() == 0) && (mjpeg == null || mjpeg.getSize() == 0)){
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Please upload a zip of frames or a Motion JPEG file");
+			return;
+		}
+
+		SequenceDetector sequence = new SequenceDetector(targets, k, tracker);
+		sequence.setMetrics(metrics);
+		sequence.setConnectivity(connectivity);
+		response.setContentType("application/x-ndjson;charset=UTF-8");
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8));
+		try(FrameSource source = frames != null && frames.getSize() > 0
+				? FrameSource.zip(frames.getInputStream(), maxFrameBytes)
+				: FrameSource.mjpeg(mjpeg.getInputStream(), maxFrameBytes)) {
+			sequence.run(source, decoder::submit, stats -> {
+				out.println(stats.toJson());
+				out.flush();
+				if(out.checkError())
+					throw new UncheckedIOException(new IOException("Client is gone"));
+			});
+		}catch (UncheckedIOException e){
+			log("Sequence stopped: " + e.getCause().getMessage());
+		}catch (IOException e){
+			if(!response.isCommitted())
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Cannot read the frames: " + e.getMessage());
+			else
+				log("Sequence stopped: " + e.getMessage());
+		}
+	}
+
+	@Override
+	public void destroy()
+	{
+		decoder.shutdown();
+	}
+
+	/**
+	 * Reads an optional number.
+	 * @param request      HTTP request
+	 * @param name         Parameter name
+	 * @param defaultValue Value when the parameter is missing
+	 * @return Value
+	 */
+	private static double parseDouble(HttpServletRequest request, String name, double defaultValue)
+	{
+		String value = request.getParameter(name);
+		if(value == null || value.trim().isEmpty())
+			return defaultValue;
+		try {
+			return Double.parseDouble(value.trim());
+		}catch (NumberFormatException e){
+			throw new IllegalArgumentException(name + " should be a number");
+		}
+	}
+}
@@ -0,0 +1,351 @@
+package servlet;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * StreamingDetector finds the blobs of an image that is too large to be
+ * decoded into memory at once.
+ *
+ * The image is read in bands of rows and labeled one row at a time
+ * against the row above it. Only two rows of labels and the statistics of
+ * the blobs that touch the current row are kept; a blob is handed to the
+ * caller as soon as a row no longer continues it. Working memory is one
+ * band of pixels plus O(width + live blobs), whatever the height of the
+ * image.
+ *
+ * Non-interlaced PNG images are decoded once, in order, by {@link PngBands}.
+ * Other images are read through {@link ImageReader} source regions, and
+ * readers of compressed formats such as interlaced PNG decode the image
+ * from its first row again for every region, so reading them costs about
+ * bands * height rows. Bands are therefore sized from a memory budget,
+ * {@code detector.streaming.bandBytes}, rather than a fixed number of rows.
+ */
+public class StreamingDetector
+{
+	/**
+	 * Value used in the row buffers for pixels that are not part of a blob
+	 */
+	private static final int NONE = -1;
+
+	/**
+	 * the color of the blob we are detecting
+	 */
+	private final Color blobColor;
+	/**
+	 * the distance between blobColor and the pixel which "still counts" as the color
+	 */
+	private final int okDist;
+	/**
+	 * Bytes of pixels a band may use, which sets the number of rows decoded at a time
+	 */
+	private long bandBytes = Long.getLong("detector.streaming.bandBytes", 64L * 1024 * 1024);
+	/**
+	 * Number of rows decoded at a time, 0 to size bands from bandBytes
+	 */
+	private int bandHeight;
+
+	/**
+	 * Blob id of every pixel in the previous and the current row
+	 */
+	private int[] prev, curr;
+	/**
+	 * Parent of every blob id, a root is its own parent
+	 */
+	private int[] parent;
+	/**
+	 * Statistics of every root blob id
+	 */
+	private Blob[] blobs, spare;
+	/**
+	 * New id of every root while compacting, valid when its stamp matches
+	 */
+	private int[] remap, stamp;
+	/**
+	 * Number of blob ids in use
+	 */
+	private int next;
+	/**
+	 * Number of rows finished so far, used as the current stamp
+	 */
+	private int rowCount;
+
+	/**
+	 * Creates a streaming detector.
+	 *
+	 * @param blobColor Desired color
+	 * @param okDist    Distance between two colors
+	 */
+	public StreamingDetector(Color blobColor, int okDist)
+	{
+		if(blobColor == null)
+			throw new NullPointerException("Null color");
+		this.blobColor = blobColor;
+		this.okDist = okDist;
+	}
+
+	/**
+	 * Sets how many bytes of pixels a band may use.
+	 * Larger bands use more memory but need fewer regions read.
+	 *
+	 * @param bandBytes Number of bytes
+	 */
+	public void setBandBytes(long bandBytes)
+	{
+		if(bandBytes < 1)
+			throw new IllegalArgumentException("bandBytes should be greater than 0, current bandBytes=" + bandBytes);
+		this.bandBytes = bandBytes;
+	}
+
+	/**
+	 * Sets how many rows are decoded at a time, instead of sizing bands from their bytes.
+	 *
+	 * @param bandHeight Number of rows
+	 */
+	public void setBandHeight(int bandHeight)
+	{
+		if(bandHeight < 1)
+			throw new IllegalArgumentException("bandHeight should be greater than 0, current bandHeight=" + bandHeight);
+		this.bandHeight = bandHeight;
+	}
+
+	/**
+	 * Finds every blob of an image file.
+	 *
+	 * @param file Image file
+	 * @return Statistics of every blob, in the order they were completed
+	 * @throws IOException If the image cannot be read
+	 */
+	public List<Blob> detect(File file) throws IOException
+	{
+		List<Blob> result = new ArrayList<>();
+		detect(file, result::add);
+		return result;
+	}
+
+	/**
+	 * Finds every blob of an image file and hands each one to the caller
+	 * as soon as it is complete.
+	 *
+	 * @param file Image file
+	 * @param done Receives every completed blob
+	 * @throws IOException If the image cannot be read
+	 */
+	public void detect(File file, Consumer<Blob> done) throws IOException
+	{
+		try(ImageInputStream input = ImageIO.createImageInputStream(file)) {
+			if(input == null)
+				throw new IOException("Failed to open " + file);
+			detect(input, done);
+		}
+	}
+
+	/**
+	 * Finds every blob of an image stream and hands each one to the caller
+	 * as soon as it is complete.
+	 *
+	 * @param input Image stream
+	 * @param done  Receives every completed blob
+	 * @throws IOException If the image cannot be read
+	 */
+	public void detect(ImageInputStream input, Consumer<Blob> done) throws IOException
+	{
+		Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+		if(!readers.hasNext())
+			throw new IOException("No reader for this image format");
+		ImageReader reader = readers.next();
+
+		try {
+			PngBands png = PngBands.open(input);
+			reader.setInput(input, false, true);
+			int width = reader.getWidth(0), height = reader.getHeight(0);
+			reset(width);
+			if(png != null && !png.start(reader))
+				png = null;
+
+			// 4 bytes of pixels and 1 of mask per pixel
+			int bandRows = bandHeight > 0 ? bandHeight : (int)Math.max(1, Math.min(height, bandBytes / (5L * width)));
+			byte[] mask = null;
+			int[] rgb = new int[width];
+			for(int top = 0; top < height; top += bandRows){
+				int rows = Math.min(bandRows, height - top);
+				BufferedImage band;
+				if(png != null){
+					band = png.next(rows);
+				}else {
+					ImageReadParam param = reader.getDefaultReadParam();
+					param.setSourceRegion(new Rectangle(0, top, width, rows));
+					band = reader.read(0, param);
+				}
+
+				mask = Threshold.mask(band, blobColor, okDist, mask);
+				for(int row = 0; row < rows; row++){
+					band.getRGB(0, row, width, 1, rgb, 0, width);
+					scanRow(mask, row * width, rgb, width, top + row);
+					closeRow(width, done);
+				}
+			}
+			for(int id = 0; id < next; id++)     // blobs touching the last row
+				done.accept(blobs[id]);
+		}
+		finally {
+			reader.dispose();
+		}
+	}
+
+	/**
+	 * Allocates the row buffers for an image width.
+	 * A row holds at most (width+1)/2 blobs, so the blob ids of two rows fit in width+2.
+	 *
+	 * @param width Width of the image
+	 */
+	private void reset(int width)
+	{
+		int capacity = width + 2;
+		prev = new int[width];
+		curr = new int[width];
+		parent = new int[capacity];
+		remap = new int[capacity];
+		stamp = new int[capacity];
+		blobs = new Blob[capacity];
+		spare = new Blob[capacity];
+		Arrays.fill(prev, NONE);
+		next = 0;
+		rowCount = 0;
+	}
+
+	/**
+	 * Labels one row against the row above it.
+	 *
+	 * @param mask   Thresholded band
+	 * @param offset Index of the row in the mask
+	 * @param rgb    Colors of the row
+	 * @param width  Width of the image
+	 * @param y      Row in the image
+	 */
+	private void scanRow(byte[] mask, int offset, int[] rgb, int width, int y)
+	{
+		int id, left;
+		for(int x = 0; x < width; x++){
+			if(mask[offset + x] == 0){
+				curr[x] = NONE;
+				continue;
+			}
+			id = prev[x] == NONE ? NONE : find(prev[x]);      // top
+			if(x > 0 && curr[x - 1] != NONE){
+				left = find(curr[x - 1]);
+				if(id == NONE)
+					id = left;
+				else if(left != id)
+					id = union(id, left);
+			}
+			if(id == NONE){
+				id = next++;
+				parent[id] = id;
+				blobs[id] = new Blob();
+			}
+			curr[x] = id;
+			blobs[id].add(x, y, rgb[x]);
+		}
+	}
+
+	/**
+	 * Hands over the blobs of the previous row that the current row does not
+	 * continue, then renumbers the blobs of the current row from 0.
+	 *
+	 * @param width Width of the image
+	 * @param done  Receives every completed blob
+	 */
+	private void closeRow(int width, Consumer<Blob> done)
+	{
+		int mark = ++rowCount, live = 0, root;
+
+		for(int x = 0; x < width; x++){
+			if(curr[x] == NONE)
+				continue;
+			root = find(curr[x]);
+			if(stamp[root] != mark){
+				stamp[root] = mark;
+				remap[root] = live;
+				spare[live++] = blobs[root];
+			}
+			curr[x] = remap[root];
+		}
+
+		for(int id = 0; id < next; id++){
+			if(parent[id] == id && stamp[id] != mark && blobs[id] != null)
+				done.accept(blobs[id]);     // not continued by this row
+			blobs[id] = null;
+		}
+
+		Blob[] tempBlobs = blobs;
+		blobs = spare;
+		spare = tempBlobs;
+		for(int id = 0; id < live; id++)
+			parent[id] = id;
+		next = live;
+
+		int[] tempRow = prev;
+		prev = curr;
+		curr = tempRow;
+	}
+
+	/**
+	 * Finds the root of a blob id and halves the path on the way up.
+	 *
+	 * @param x Blob id
+	 * @return Root blob id
+	 */
+	private int find(int x)
+	{
+		while(parent[x] != x){
+			parent[x] = parent[parent[x]];     // path halving
+			x = parent[x];
+		}
+		return x;
+	}
+
+	/**
+	 * Unions two root blob ids and merges their statistics.
+	 *
+	 * @param root1 Root
+	 * @param root2 Root
+	 * @return New root
+	 */
+	private int union(int root1, int root2)
+	{
+		if(root2 < root1){
+			int temp = root1;
+			root1 = root2;
+			root2 = temp;
+		}
+		parent[root2] = root1;
+		blobs[root1].merge(blobs[root2]);
+		blobs[root2] = null;
+		return root1;
+	}
+
+	//Main
+	public static void main(String[] args) throws IOException {
+		if(args.length < 5){
+			System.out.println("Usage: StreamingDetector <image> <red> <green> <blue> <dist>");
+			return;
+		}
+		Color color = new Color(Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+		StreamingDetector detector = new StreamingDetector(color, Integer.parseInt(args[4]));
+		int[] count = new int[1];
+		detector.detect(new File(args[0]), blob -> count[0]++);
+		System.out.println("Blobs: " + count[0]);
+	}
+}
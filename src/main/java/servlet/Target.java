@@ -0,0 +1,73 @@
+package servlet;
+
+import java.awt.*;
+
+/**
+ * Target is one color a detection looks for, together with the distance
+ * at which a pixel still counts as that color.
+ */
+public class Target
+{
+	/**
+	 * the color of the blob we are detecting
+	 */
+	private final Color color;
+	/**
+	 * the distance between color and the pixel which "still counts" as the color
+	 */
+	private final int okDist;
+
+	/**
+	 * Creates a target.
+	 *
+	 * @param color  Desired color
+	 * @param okDist Distance between two colors
+	 */
+	public Target(Color color, int okDist)
+	{
+		if(color == null)
+			throw new NullPointerException("Null color");
+		this.color = color;
+		this.okDist = okDist;
+	}
+
+	/**
+	 * Reads a target written as #rrggbb:dist, like #ff0000:5.
+	 *
+	 * Throws IllegalArgumentException if the text is not a target.
+	 *
+	 * @param value Target text
+	 * @return Target
+	 */
+	public static Target parse(String value)
+	{
+		if(value == null || !value.trim().matches("#[0-9a-fA-F]{6}:\\d{1,3}"))
+			throw new IllegalArgumentException("Targets should look like #rrggbb:dist, got " + value);
+		String[] parts = value.trim().split(":");
+		return new Target(new Color(Integer.parseInt(parts[0].substring(1), 16)), Integer.parseInt(parts[1]));
+	}
+
+	/**
+	 * Returns the color.
+	 * @return Color
+	 */
+	public Color getColor()
+	{
+		return color;
+	}
+
+	/**
+	 * Returns the distance.
+	 * @return Distance
+	 */
+	public int getOkDist()
+	{
+		return okDist;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("#%06x:%d", color.getRGB() & 0xFFFFFF, okDist);
+	}
+}
@@ -0,0 +1,556 @@
+package servlet;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Threshold turns an image into a mask of the pixels that are
+ * close enough to the requested color.
+ *
+ * It gives the same answer as {@link Detector#getDifference(Color, Color)}
+ * but compares the squared distance of each pixel against an integer
+ * cutoff, and reads the pixels straight from the backing data buffer
+ * whenever the image layout allows it. Palette images are thresholded
+ * once per palette entry, after which every pixel is a table lookup.
+ *
+ * Several targets can be thresholded in the same pass: every pixel is
+ * given the class of the nearest target it matches. With a {@link TileMask}
+ * only the marked tiles are thresholded and every other pixel is 0.
+ *
+ * A single target can also be thresholded into a {@link BitMask}: a band of
+ * rows is thresholded into a small byte buffer that stays in cache, then
+ * packed into the bits eight pixels at a time.
+ */
+public class Threshold
+{
+	/**
+	 * Largest possible squared distance between two colors, 3 * 255^2
+	 */
+	static final int MAX_SQ_DIST = 195075;
+	/**
+	 * Largest number of targets, one mask byte holds the class of a pixel
+	 */
+	public static final int MAX_TARGETS = 255;
+	/**
+	 * Pixel layouts read straight from the data buffer, see {@link #layout(BufferedImage)}
+	 */
+	static final int INDEXED = 0, PACKED = 1, INTERLEAVED = 2, GENERIC = 3;
+	/**
+	 * Size of the buffer a band of rows is thresholded into before it is packed into bits
+	 */
+	private static final int BAND_BYTES = 1 << 15;
+	/**
+	 * Moves the lowest bit of each of the eight bytes of a long into the top byte
+	 */
+	private static final long PACK_BYTES = 0x0102040810204080L;
+
+	/**
+	 * Finds the largest squared distance that still counts as the same color.
+	 * The search uses the exact formula of {@link Detector#getDifference(Color, Color)}
+	 * so rounding at the boundary behaves the same.
+	 *
+	 * @param okDist Acceptable distance on the 0-100 scale
+	 * @return Largest matching squared distance, or -1 if nothing matches
+	 */
+	public static int cutoff(int okDist)
+	{
+		int lo = -1, hi = MAX_SQ_DIST, mid;
+		while(lo < hi){
+			mid = (lo + hi + 1) >>> 1;
+			if((int)((mid/(double)MAX_SQ_DIST)*100) <= okDist)
+				lo = mid;
+			else
+				hi = mid - 1;
+		}
+		return lo;
+	}
+
+	/**
+	 * Thresholds the image into a mask.
+	 * Pixels matching the color are marked with 1, everything else with 0.
+	 * The image itself is left untouched.
+	 *
+	 * @param image  Image to be processed
+	 * @param c      Desired color
+	 * @param okDist Acceptable distance where two color can still be considered the same
+	 * @param mask   Mask to reuse, or null to allocate a new one
+	 * @return One byte per pixel, row-major
+	 */
+	public static byte[] mask(BufferedImage image, Color c, int okDist, byte[] mask)
+	{
+		return mask(image, Collections.singletonList(new Target(c, okDist)), mask);
+	}
+
+	/**
+	 * Classifies every pixel of the image against several targets in one pass.
+	 * A pixel that matches target i is marked with i+1; when it matches
+	 * several targets it goes to the nearest one, and to the first one on a tie.
+	 * Pixels that match nothing are marked with 0.
+	 *
+	 * @param image   Image to be processed
+	 * @param targets Colors and distances, at most {@link #MAX_TARGETS}
+	 * @param mask    Mask to reuse, or null to allocate a new one
+	 * @return One byte per pixel, row-major
+	 */
+	public static byte[] mask(BufferedImage image, List<Target> targets, byte[] mask)
+	{
+		return mask(image, targets, mask, (TileMask)null);
+	}
+
+	/**
+	 * Same as {@link #mask(BufferedImage, List, byte[])} for the marked tiles
+	 * only. Pixels outside of them are set to 0 without being read, which
+	 * gives the same mask as the whole image when the tiles come from
+	 * {@link TilePyramid#candidates(List)} for the same targets.
+	 *
+	 * @param image   Image to be processed
+	 * @param targets Colors and distances, at most {@link #MAX_TARGETS}
+	 * @param mask    Mask to reuse, or null to allocate a new one
+	 * @param tiles   Tiles that may hold a match, or null for the whole image
+	 * @return One byte per pixel, row-major
+	 */
+	public static byte[] mask(BufferedImage image, List<Target> targets, byte[] mask, TileMask tiles)
+	{
+		int n = targets.size();
+		if(n < 1 || n > MAX_TARGETS)
+			throw new IllegalArgumentException("Between 1 and " + MAX_TARGETS + " targets are needed, got " + n);
+		int len = image.getWidth() * image.getHeight();
+		if(mask == null || mask.length < len)
+			mask = new byte[len];
+
+		int[] t = targetTable(targets);
+		int layout = layout(image);
+		byte[] table = layout == INDEXED ? paletteTable(image, t) : null;
+		int width = image.getWidth(), height = image.getHeight();
+		if(tiles == null){
+			maskRegion(image, layout, t, table, mask, 0, width, 0, 0, width, height);
+			return mask;
+		}
+		checkTiles(image, tiles);
+
+		Arrays.fill(mask, 0, len, (byte)0);
+		int tile = tiles.getTileSize();
+		for(int tileRow = 0; tileRow < tiles.getTileRows(); tileRow++){
+			int[] spans = tiles.getSpans(tileRow);
+			int y0 = tileRow * tile, y1 = Math.min(y0 + tile, height);
+			for(int i = 0; i < spans.length; i += 2)
+				maskRegion(image, layout, t, table, mask, 0, width, spans[i], y0, spans[i + 1], y1);
+		}
+		return mask;
+	}
+
+	/**
+	 * Same as {@link #mask(BufferedImage, List, byte[])} inside the rectangles
+	 * only; pixels outside of them are set to 0 without being read. Every
+	 * rectangle is thresholded straight into the mask.
+	 *
+	 * @param image   Image to be processed
+	 * @param targets Colors and distances, at most {@link #MAX_TARGETS}
+	 * @param mask    Mask to reuse, or null to allocate a new one
+	 * @param regions Rectangles inside the image
+	 * @return One byte per pixel, row-major
+	 */
+	public static byte[] mask(BufferedImage image, List<Target> targets, byte[] mask, List<Rectangle> regions)
+	{
+		int n = targets.size();
+		if(n < 1 || n > MAX_TARGETS)
+			throw new IllegalArgumentException("Between 1 and " + MAX_TARGETS + " targets are needed, got " + n);
+		int width = image.getWidth(), height = image.getHeight(), len = width * height;
+		if(mask == null || mask.length < len)
+			mask = new byte[len];
+
+		int[] t = targetTable(targets);
+		int layout = layout(image);
+		byte[] table = layout == INDEXED ? paletteTable(image, t) : null;
+		Arrays.fill(mask, 0, len, (byte)0);
+		for(Rectangle r : regions){
+			if(r.x < 0 || r.y < 0 || r.x + r.width > width || r.y + r.height > height)
+				throw new IllegalArgumentException("The region is outside the image, current region=" + r);
+			maskRegion(image, layout, t, table, mask, 0, width, r.x, r.y, r.x + r.width, r.y + r.height);
+		}
+		return mask;
+	}
+
+	/**
+	 * Thresholds the image into a bit mask.
+	 * Pixels matching the target are set, everything else is cleared.
+	 *
+	 * @param image  Image to be processed
+	 * @param target Color and distance
+	 * @param mask   Mask to reuse, or null to allocate a new one
+	 * @return One bit per pixel
+	 */
+	public static BitMask bits(BufferedImage image, Target target, BitMask mask)
+	{
+		return bits(image, target, mask, (TileMask)null);
+	}
+
+	/**
+	 * Same as {@link #bits(BufferedImage, Target, BitMask)} for the marked
+	 * tiles only; pixels outside of them are cleared without being read.
+	 *
+	 * @param image  Image to be processed
+	 * @param target Color and distance
+	 * @param mask   Mask to reuse, or null to allocate a new one
+	 * @param tiles  Tiles that may hold a match, or null for the whole image
+	 * @return One bit per pixel
+	 */
+	public static BitMask bits(BufferedImage image, Target target, BitMask mask, TileMask tiles)
+	{
+		int width = image.getWidth(), height = image.getHeight();
+		mask = BitMask.reuse(mask, width, height);
+		int[] t = targetTable(Collections.singletonList(target));
+		int layout = layout(image);
+		byte[] table = layout == INDEXED ? paletteTable(image, t) : null;
+		byte[] band = new byte[Math.max(width, BAND_BYTES)];
+		if(tiles == null){
+			bitsRegion(image, layout, t, table, band, mask, 0, 0, width, height);
+			return mask;
+		}
+		checkTiles(image, tiles);
+
+		int tile = tiles.getTileSize();
+		for(int tileRow = 0; tileRow < tiles.getTileRows(); tileRow++){
+			int[] spans = tiles.getSpans(tileRow);
+			int y0 = tileRow * tile, y1 = Math.min(y0 + tile, height);
+			for(int i = 0; i < spans.length; i += 2)
+				bitsRegion(image, layout, t, table, band, mask, spans[i], y0, spans[i + 1], y1);
+		}
+		return mask;
+	}
+
+	/**
+	 * Same as {@link #bits(BufferedImage, Target, BitMask)} inside the
+	 * rectangles only; pixels outside of them are cleared without being read.
+	 *
+	 * @param image   Image to be processed
+	 * @param target  Color and distance
+	 * @param mask    Mask to reuse, or null to allocate a new one
+	 * @param regions Rectangles inside the image
+	 * @return One bit per pixel
+	 */
+	public static BitMask bits(BufferedImage image, Target target, BitMask mask, List<Rectangle> regions)
+	{
+		int width = image.getWidth(), height = image.getHeight();
+		mask = BitMask.reuse(mask, width, height);
+		int[] t = targetTable(Collections.singletonList(target));
+		int layout = layout(image);
+		byte[] table = layout == INDEXED ? paletteTable(image, t) : null;
+		byte[] band = new byte[Math.max(width, BAND_BYTES)];
+		for(Rectangle r : regions){
+			if(r.x < 0 || r.y < 0 || r.x + r.width > width || r.y + r.height > height)
+				throw new IllegalArgumentException("The region is outside the image, current region=" + r);
+			bitsRegion(image, layout, t, table, band, mask, r.x, r.y, r.x + r.width, r.y + r.height);
+		}
+		return mask;
+	}
+
+	/**
+	 * Lays out the targets the way the threshold loops read them.
+	 * @param targets Colors and distances
+	 * @return Red, green, blue and cutoff of every target
+	 */
+	private static int[] targetTable(List<Target> targets)
+	{
+		int n = targets.size();
+		int[] t = new int[4 * n];
+		for(int i = 0; i < n; i++){
+			Color c = targets.get(i).getColor();
+			t[4*i] = c.getRed();
+			t[4*i + 1] = c.getGreen();
+			t[4*i + 2] = c.getBlue();
+			t[4*i + 3] = cutoff(targets.get(i).getOkDist());
+		}
+		return t;
+	}
+
+	/**
+	 * Checks that the tiles were found for this image.
+	 */
+	private static void checkTiles(BufferedImage image, TileMask tiles)
+	{
+		if(tiles.getWidth() != image.getWidth() || tiles.getHeight() != image.getHeight())
+			throw new IllegalArgumentException("The tiles do not match the image");
+	}
+
+	/**
+	 * Finds how the pixels of an image can be read.
+	 * @param image Image
+	 * @return {@link #INDEXED}, {@link #PACKED}, {@link #INTERLEAVED} or {@link #GENERIC}
+	 */
+	static int layout(BufferedImage image)
+	{
+		Raster raster = image.getRaster();
+		DataBuffer buffer = raster.getDataBuffer();
+		if(image.getColorModel() instanceof IndexColorModel && raster.getNumBands() == 1
+				&& raster.getSampleModel().getSampleSize(0) == image.getColorModel().getPixelSize())
+			return INDEXED;
+		if(buffer instanceof DataBufferInt && image.getColorModel() instanceof DirectColorModel
+				&& raster.getSampleModel() instanceof SinglePixelPackedSampleModel
+				&& !image.isAlphaPremultiplied() && isEightBit((DirectColorModel)image.getColorModel()))
+			return PACKED;
+		if(buffer instanceof DataBufferByte && raster.getSampleModel() instanceof ComponentSampleModel
+				&& raster.getNumBands() >= 3 && image.getColorModel().getColorSpace().isCS_sRGB()
+				&& !image.isAlphaPremultiplied() && image.getColorModel().getComponentSize(0) == 8)
+			return INTERLEAVED;
+		return GENERIC;
+	}
+
+	/**
+	 * Thresholds a rectangle of the image into the mask.
+	 * Pixel (x, y) goes to mask[maskOffset + y * maskStride + x].
+	 */
+	private static void maskRegion(BufferedImage image, int layout, int[] t, byte[] table, byte[] mask,
+			int maskOffset, int maskStride, int x0, int y0, int x1, int y1)
+	{
+		switch(layout){
+			case INDEXED:
+				maskIndexed(image, table, mask, maskOffset, maskStride, x0, y0, x1, y1);
+				break;
+			case PACKED:
+				maskPacked(image, t, mask, maskOffset, maskStride, x0, y0, x1, y1);
+				break;
+			case INTERLEAVED:
+				maskInterleaved(image, t, mask, maskOffset, maskStride, x0, y0, x1, y1);
+				break;
+			default:
+				maskGeneric(image, t, mask, maskOffset, maskStride, x0, y0, x1, y1);
+		}
+	}
+
+	/**
+	 * Thresholds a rectangle of the image into a bit mask, a band of rows
+	 * at a time. The bits are ORed in, so the rectangle must start out cleared.
+	 *
+	 * @param band Buffer a band of rows is thresholded into, at least x1 - x0 long
+	 * @param bits Mask the matching pixels are set in
+	 */
+	private static void bitsRegion(BufferedImage image, int layout, int[] t, byte[] table, byte[] band,
+			BitMask bits, int x0, int y0, int x1, int y1)
+	{
+		int columns = x1 - x0, rows = Math.max(1, band.length / Math.max(1, columns)), end;
+		for(int row = y0; row < y1; row = end){
+			end = Math.min(y1, row + rows);
+			maskRegion(image, layout, t, table, band, -row * columns - x0, columns, x0, row, x1, end);
+			pack(band, columns, bits, x0, row, x1, end);
+		}
+	}
+
+	/**
+	 * ORs a band of thresholded rows into a bit mask, a set bit for class 1.
+	 * Eight classes are read as one little-endian long and multiplied by
+	 * {@link #PACK_BYTES}, which gathers their low bits into the top byte.
+	 *
+	 * @param band   Class of every pixel of the band, row-major
+	 * @param stride Pixels in a row of the band
+	 * @param bits   Mask the matching pixels are set in
+	 */
+	private static void pack(byte[] band, int stride, BitMask bits, int x0, int y0, int x1, int y1)
+	{
+		long[] words = bits.getWords();
+		ByteBuffer buffer = ByteBuffer.wrap(band).order(ByteOrder.LITTLE_ENDIAN);
+		int i, col, base;
+		for(int row = y0; row < y1; row++){
+			i = (row - y0) * stride;
+			base = row * bits.getWordsPerRow();
+			for(col = x0; col < x1 && (col & 7) != 0; col++, i++)
+				words[base + (col >>> 6)] |= (long)band[i] << col;
+			for(; col + 8 <= x1; col += 8, i += 8)     // never crosses a word
+				words[base + (col >>> 6)] |= ((buffer.getLong(i) * PACK_BYTES) >>> 56) << col;
+			for(; col < x1; col++, i++)
+				words[base + (col >>> 6)] |= (long)band[i] << col;
+		}
+	}
+
+	/**
+	 * Finds the class of one pixel.
+	 *
+	 * @param r Red of the pixel
+	 * @param g Green of the pixel
+	 * @param b Blue of the pixel
+	 * @param t Red, green, blue and cutoff of every target
+	 * @return 1 + index of the nearest matching target, or 0
+	 */
+	private static byte classify(int r, int g, int b, int[] t)
+	{
+		int best = 0, bestSq = Integer.MAX_VALUE, dr, dg, db, sq;
+		for(int i = 0; i < t.length; i += 4){
+			dr = r - t[i];
+			dg = g - t[i + 1];
+			db = b - t[i + 2];
+			sq = dr*dr + dg*dg + db*db;
+			if(sq <= t[i + 3] && sq < bestSq){
+				bestSq = sq;
+				best = (i >> 2) + 1;
+			}
+		}
+		return (byte)best;
+	}
+
+	/**
+	 * Checks that every color channel of a packed pixel is 8 bits wide.
+	 * @param cm Color model
+	 * @return True if red, green and blue are 8 bits each
+	 */
+	private static boolean isEightBit(DirectColorModel cm)
+	{
+		return Integer.bitCount(cm.getRedMask()) == 8 && Integer.bitCount(cm.getGreenMask()) == 8
+				&& Integer.bitCount(cm.getBlueMask()) == 8;
+	}
+
+	/**
+	 * Thresholds an image whose pixels are packed into ints,
+	 * like TYPE_INT_RGB and TYPE_INT_ARGB.
+	 */
+	private static void maskPacked(BufferedImage image, int[] t, byte[] mask, int maskOffset, int maskStride,
+			int x0, int y0, int x1, int y1)
+	{
+		Raster raster = image.getRaster();
+		SinglePixelPackedSampleModel sm = (SinglePixelPackedSampleModel)raster.getSampleModel();
+		DirectColorModel cm = (DirectColorModel)image.getColorModel();
+		int[] data = ((DataBufferInt)raster.getDataBuffer()).getData();
+		int stride = sm.getScanlineStride();
+		int base = raster.getDataBuffer().getOffset()
+				+ sm.getOffset(-raster.getSampleModelTranslateX(), -raster.getSampleModelTranslateY());
+		int rShift = Integer.numberOfTrailingZeros(cm.getRedMask());
+		int gShift = Integer.numberOfTrailingZeros(cm.getGreenMask());
+		int bShift = Integer.numberOfTrailingZeros(cm.getBlueMask());
+
+		int pixel, dr, dg, db, id;
+		int r = t[0], g = t[1], b = t[2], maxSq = t[3];
+		boolean single = t.length == 4;
+		for(int row = y0; row < y1; row++){
+			int offset = base + row * stride;
+			id = maskOffset + row * maskStride + x0;
+			for(int col = x0; col < x1; col++, id++){
+				pixel = data[offset + col];
+				if(single){     // the common case, kept free of the target loop
+					dr = ((pixel >>> rShift) & 0xFF) - r;
+					dg = ((pixel >>> gShift) & 0xFF) - g;
+					db = ((pixel >>> bShift) & 0xFF) - b;
+					mask[id] = (byte)(dr*dr + dg*dg + db*db <= maxSq ? 1 : 0);
+				}else {
+					mask[id] = classify((pixel >>> rShift) & 0xFF, (pixel >>> gShift) & 0xFF, (pixel >>> bShift) & 0xFF, t);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Thresholds an image whose samples are interleaved bytes,
+	 * like TYPE_3BYTE_BGR and TYPE_4BYTE_ABGR.
+	 */
+	private static void maskInterleaved(BufferedImage image, int[] t, byte[] mask, int maskOffset, int maskStride,
+			int x0, int y0, int x1, int y1)
+	{
+		Raster raster = image.getRaster();
+		ComponentSampleModel sm = (ComponentSampleModel)raster.getSampleModel();
+		byte[] data = ((DataBufferByte)raster.getDataBuffer()).getData();
+		int stride = sm.getScanlineStride(), pixelStride = sm.getPixelStride();
+		int tx = -raster.getSampleModelTranslateX(), ty = -raster.getSampleModelTranslateY();
+		int dbOffset = raster.getDataBuffer().getOffset();
+		int rOff = dbOffset + sm.getOffset(tx, ty, 0);
+		int gOff = dbOffset + sm.getOffset(tx, ty, 1);
+		int bOff = dbOffset + sm.getOffset(tx, ty, 2);
+
+		int dr, dg, db, p, id;
+		int r = t[0], g = t[1], b = t[2], maxSq = t[3];
+		boolean single = t.length == 4;
+		for(int row = y0; row < y1; row++){
+			p = row * stride + x0 * pixelStride;
+			id = maskOffset + row * maskStride + x0;
+			for(int col = x0; col < x1; col++, id++, p += pixelStride){
+				if(single){
+					dr = (data[rOff + p] & 0xFF) - r;
+					dg = (data[gOff + p] & 0xFF) - g;
+					db = (data[bOff + p] & 0xFF) - b;
+					mask[id] = (byte)(dr*dr + dg*dg + db*db <= maxSq ? 1 : 0);
+				}else {
+					mask[id] = classify(data[rOff + p] & 0xFF, data[gOff + p] & 0xFF, data[bOff + p] & 0xFF, t);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Works out the class of every palette entry of a palette image.
+	 * @param image Palette image
+	 * @param t     Red, green, blue and cutoff of every target
+	 * @return Class of every pixel index
+	 */
+	private static byte[] paletteTable(BufferedImage image, int[] t)
+	{
+		IndexColorModel cm = (IndexColorModel)image.getColorModel();
+		byte[] table = new byte[1 << cm.getPixelSize()];
+		int rgb;
+		for(int i = 0; i < table.length; i++){
+			rgb = cm.getRGB(i);     // same color getRGB would give every pixel with this index
+			table[i] = classify((rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF, t);
+		}
+		return table;
+	}
+
+	/**
+	 * Thresholds a palette image, like TYPE_BYTE_INDEXED and TYPE_BYTE_BINARY.
+	 * The distance is worked out once per palette entry and every pixel
+	 * index is then looked up in that table.
+	 */
+	private static void maskIndexed(BufferedImage image, byte[] table, byte[] mask, int maskOffset, int maskStride,
+			int x0, int y0, int x1, int y1)
+	{
+		Raster raster = image.getRaster();
+		int id;
+		if(raster.getDataBuffer() instanceof DataBufferByte && raster.getSampleModel() instanceof ComponentSampleModel){
+			ComponentSampleModel sm = (ComponentSampleModel)raster.getSampleModel();
+			byte[] data = ((DataBufferByte)raster.getDataBuffer()).getData();
+			int stride = sm.getScanlineStride(), pixelStride = sm.getPixelStride();
+			int base = raster.getDataBuffer().getOffset()
+					+ sm.getOffset(-raster.getSampleModelTranslateX(), -raster.getSampleModelTranslateY());
+			for(int row = y0; row < y1; row++){
+				int p = base + row * stride + x0 * pixelStride;
+				id = maskOffset + row * maskStride + x0;
+				for(int col = x0; col < x1; col++, id++, p += pixelStride)
+					mask[id] = table[data[p] & 0xFF];
+			}
+			return;
+		}
+
+		int[] index = new int[x1 - x0];   // packed sub-byte or 16 bit indices
+		for(int row = y0; row < y1; row++){
+			raster.getSamples(x0, row, x1 - x0, 1, 0, index);
+			id = maskOffset + row * maskStride + x0;
+			for(int col = 0; col < index.length; col++, id++)
+				mask[id] = table[index[col]];
+		}
+	}
+
+	/**
+	 * Thresholds any other image one row of ARGB values at a time.
+	 */
+	private static void maskGeneric(BufferedImage image, int[] t, byte[] mask, int maskOffset, int maskStride,
+			int x0, int y0, int x1, int y1)
+	{
+		int[] rgb = new int[x1 - x0];
+
+		int id;
+		for(int row = y0; row < y1; row++){
+			image.getRGB(x0, row, rgb.length, 1, rgb, 0, rgb.length);
+			id = maskOffset + row * maskStride + x0;
+			for(int col = 0; col < rgb.length; col++, id++)
+				mask[id] = classify((rgb[col] >> 16) & 0xFF, (rgb[col] >> 8) & 0xFF, rgb[col] & 0xFF, t);
+		}
+	}
+}
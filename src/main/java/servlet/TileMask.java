@@ -0,0 +1,109 @@
+package servlet;
+
+/**
+ * TileMask marks the tiles of an image that may hold a pixel of a target,
+ * as found by {@link TilePyramid#candidates(java.util.List)}.
+ *
+ * The marked tiles of every row of tiles are stored as spans of pixel
+ * columns, neighboring tiles merged into one span, so thresholding and
+ * labeling can walk only those columns and leave the rest of the image
+ * as background.
+ */
+public class TileMask
+{
+	/**
+	 * Side of a tile in pixels
+	 */
+	private final int tileSize;
+	/**
+	 * Size of the image
+	 */
+	private final int width, height;
+	/**
+	 * First column and column after the last of every span, for every row of tiles
+	 */
+	private final int[][] spans;
+	/**
+	 * Number of pixels inside the spans
+	 */
+	private final long pixels;
+
+	/**
+	 * Creates a tile mask.
+	 *
+	 * @param tileSize Side of a tile in pixels
+	 * @param width    Width of the image
+	 * @param height   Height of the image
+	 * @param spans    Start and end column pairs of every row of tiles, in increasing order
+	 */
+	TileMask(int tileSize, int width, int height, int[][] spans)
+	{
+		this.tileSize = tileSize;
+		this.width = width;
+		this.height = height;
+		this.spans = spans;
+		long covered = 0;
+		for(int row = 0; row < spans.length; row++){
+			int rows = Math.min(tileSize, height - row * tileSize);
+			for(int i = 0; i < spans[row].length; i += 2)
+				covered += (long)(spans[row][i + 1] - spans[row][i]) * rows;
+		}
+		this.pixels = covered;
+	}
+
+	/**
+	 * Returns the side of a tile.
+	 * @return Pixels
+	 */
+	public int getTileSize()
+	{
+		return tileSize;
+	}
+
+	/**
+	 * Returns the width of the image.
+	 * @return Pixels
+	 */
+	public int getWidth()
+	{
+		return width;
+	}
+
+	/**
+	 * Returns the height of the image.
+	 * @return Pixels
+	 */
+	public int getHeight()
+	{
+		return height;
+	}
+
+	/**
+	 * Returns the number of rows of tiles.
+	 * @return Rows of tiles
+	 */
+	public int getTileRows()
+	{
+		return spans.length;
+	}
+
+	/**
+	 * Returns the marked columns of a row of tiles.
+	 * @param tileRow Row of tiles
+	 * @return First column and column after the last of every span, in increasing order; must not be modified
+	 */
+	public int[] getSpans(int tileRow)
+	{
+		return spans[tileRow];
+	}
+
+	/**
+	 * Returns the part of the image inside the marked tiles.
+	 * @return 0 for no tile to 1 for every tile
+	 */
+	public double getCoverage()
+	{
+		long len = (long)width * height;
+		return len == 0 ? 0 : pixels / (double)len;
+	}
+}
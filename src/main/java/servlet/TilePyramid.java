@@ -0,0 +1,432 @@
+package servlet;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * TilePyramid is a coarse view of an image used to skip the parts that
+ * cannot hold a target color.
+ *
+ * The first level cuts the image into tiles of {@value #TILE_SIZE} by
+ * {@value #TILE_SIZE} pixels and keeps the smallest and largest red, green
+ * and blue of every tile; the second level does the same for groups of
+ * {@value #GROUP} by {@value #GROUP} tiles. The color of every pixel of a
+ * tile lies in the box of its minimums and maximums, so when the nearest
+ * point of that box is farther from a target than the target cutoff, no
+ * pixel of the tile can match it. Groups are looked at first and only the
+ * tiles of the groups that may match are looked at next.
+ *
+ * The test is exact, never approximate: a tile that is left out has no
+ * matching pixel, so thresholding and labeling only the other tiles gives
+ * the same blobs as the whole image. A pyramid only depends on the image,
+ * so it can be built once and used for any number of colors.
+ */
+public class TilePyramid
+{
+	/**
+	 * Side of a tile in pixels
+	 */
+	public static final int TILE_SIZE = 8;
+	/**
+	 * Side of a group of the second level in tiles
+	 */
+	private static final int GROUP = 8;
+	/**
+	 * Bytes kept per tile: smallest and largest red, green and blue
+	 */
+	private static final int BOX = 6;
+
+	/**
+	 * Size of the image
+	 */
+	private final int width, height;
+	/**
+	 * Number of tiles across and down
+	 */
+	private final int columns, rows;
+	/**
+	 * Color box of every tile, row-major
+	 */
+	private final byte[] tiles;
+	/**
+	 * Number of groups across and down
+	 */
+	private final int groupColumns, groupRows;
+	/**
+	 * Color box of every group, row-major
+	 */
+	private final byte[] groups;
+
+	/**
+	 * Creates a pyramid from the color boxes of the tiles.
+	 */
+	private TilePyramid(int width, int height, int columns, int rows, byte[] tiles)
+	{
+		this.width = width;
+		this.height = height;
+		this.columns = columns;
+		this.rows = rows;
+		this.tiles = tiles;
+		this.groupColumns = (columns + GROUP - 1) / GROUP;
+		this.groupRows = (rows + GROUP - 1) / GROUP;
+		this.groups = new byte[BOX * groupColumns * groupRows];
+		for(int g = 0; g < groupColumns * groupRows; g++)
+			clear(groups, BOX * g);
+		for(int row = 0; row < rows; row++)
+			for(int col = 0; col < columns; col++)
+				widen(groups, BOX * ((row / GROUP) * groupColumns + col / GROUP), tiles, BOX * (row * columns + col));
+	}
+
+	/**
+	 * Builds the pyramid of an image, reading every pixel once.
+	 * Pixels are read the way {@link Threshold} reads them, so the boxes
+	 * hold the very values the threshold compares.
+	 *
+	 * @param image Image
+	 * @return Pyramid
+	 */
+	public static TilePyramid build(BufferedImage image)
+	{
+		int width = image.getWidth(), height = image.getHeight();
+		int columns = (width + TILE_SIZE - 1) / TILE_SIZE, rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+		byte[] tiles = new byte[BOX * columns * rows];
+		int[] box = new int[BOX * columns];     // boxes of the current row of tiles
+		Rows source = rows(image);
+		for(int tileRow = 0; tileRow < rows; tileRow++){
+			for(int col = 0; col < columns; col++){
+				box[BOX * col] = box[BOX * col + 2] = box[BOX * col + 4] = 255;
+				box[BOX * col + 1] = box[BOX * col + 3] = box[BOX * col + 5] = 0;
+			}
+			for(int row = tileRow * TILE_SIZE; row < Math.min(height, (tileRow + 1) * TILE_SIZE); row++)
+				source.add(row, box);
+			for(int i = 0; i < box.length; i++)
+				tiles[BOX * tileRow * columns + i] = (byte)box[i];
+		}
+		return new TilePyramid(width, height, columns, rows, tiles);
+	}
+
+	/**
+	 * Returns the number of bytes a pyramid of an image of some size takes.
+	 *
+	 * @param width  Width of the image
+	 * @param height Height of the image
+	 * @return Bytes of color boxes
+	 */
+	public static long sizeOf(int width, int height)
+	{
+		long columns = (width + TILE_SIZE - 1) / TILE_SIZE, rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+		return BOX * (columns * rows + ((columns + GROUP - 1) / GROUP) * ((rows + GROUP - 1) / GROUP));
+	}
+
+	/**
+	 * Finds the tiles that may hold a pixel of at least one of the targets.
+	 *
+	 * @param targets Colors and distances
+	 * @return Tiles to threshold and label, every other pixel is background
+	 */
+	public TileMask candidates(List<Target> targets)
+	{
+		int[] t = new int[4 * targets.size()];
+		for(int i = 0; i < targets.size(); i++){
+			Color c = targets.get(i).getColor();
+			t[4*i] = c.getRed();
+			t[4*i + 1] = c.getGreen();
+			t[4*i + 2] = c.getBlue();
+			t[4*i + 3] = Threshold.cutoff(targets.get(i).getOkDist());
+		}
+
+		boolean[] marked = new boolean[columns * rows];
+		for(int groupRow = 0; groupRow < groupRows; groupRow++){
+			for(int groupCol = 0; groupCol < groupColumns; groupCol++){
+				if(!near(groups, BOX * (groupRow * groupColumns + groupCol), t))
+					continue;
+				int rowEnd = Math.min(rows, (groupRow + 1) * GROUP), colEnd = Math.min(columns, (groupCol + 1) * GROUP);
+				for(int row = groupRow * GROUP; row < rowEnd; row++)
+					for(int col = groupCol * GROUP; col < colEnd; col++)
+						marked[row * columns + col] = near(tiles, BOX * (row * columns + col), t);
+			}
+		}
+
+		int[][] spans = new int[rows][];
+		int[] run = new int[columns + 1];
+		for(int row = 0; row < rows; row++){
+			int n = 0;
+			for(int col = 0; col < columns; col++){
+				if(!marked[row * columns + col])
+					continue;
+				int end = col;
+				while(end + 1 < columns && marked[row * columns + end + 1])
+					end++;
+				run[n++] = col * TILE_SIZE;
+				run[n++] = Math.min(width, (end + 1) * TILE_SIZE);
+				col = end;
+			}
+			spans[row] = Arrays.copyOf(run, n);
+		}
+		return new TileMask(TILE_SIZE, width, height, spans);
+	}
+
+	/**
+	 * Returns the width of the image.
+	 * @return Pixels
+	 */
+	public int getWidth()
+	{
+		return width;
+	}
+
+	/**
+	 * Returns the height of the image.
+	 * @return Pixels
+	 */
+	public int getHeight()
+	{
+		return height;
+	}
+
+	/**
+	 * Checks whether a color box comes within the cutoff of any target.
+	 *
+	 * @param boxes Color boxes
+	 * @param i     Offset of the box
+	 * @param t     Red, green, blue and cutoff of every target
+	 * @return True if the nearest color of the box matches a target
+	 */
+	private static boolean near(byte[] boxes, int i, int[] t)
+	{
+		int minR = boxes[i] & 0xFF, maxR = boxes[i + 1] & 0xFF;
+		int minG = boxes[i + 2] & 0xFF, maxG = boxes[i + 3] & 0xFF;
+		int minB = boxes[i + 4] & 0xFF, maxB = boxes[i + 5] & 0xFF;
+		int dr, dg, db;
+		for(int j = 0; j < t.length; j += 4){
+			dr = t[j] < minR ? minR - t[j] : t[j] > maxR ? t[j] - maxR : 0;
+			dg = t[j + 1] < minG ? minG - t[j + 1] : t[j + 1] > maxG ? t[j + 1] - maxG : 0;
+			db = t[j + 2] < minB ? minB - t[j + 2] : t[j + 2] > maxB ? t[j + 2] - maxB : 0;
+			if(dr*dr + dg*dg + db*db <= t[j + 3])
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Sets a color box to hold nothing.
+	 */
+	private static void clear(byte[] boxes, int i)
+	{
+		boxes[i] = boxes[i + 2] = boxes[i + 4] = (byte)255;
+		boxes[i + 1] = boxes[i + 3] = boxes[i + 5] = 0;
+	}
+
+	/**
+	 * Widens a color box to hold another one.
+	 */
+	private static void widen(byte[] boxes, int i, byte[] other, int j)
+	{
+		for(int k = 0; k < BOX; k += 2){
+			boxes[i + k] = (byte)Math.min(boxes[i + k] & 0xFF, other[j + k] & 0xFF);
+			boxes[i + k + 1] = (byte)Math.max(boxes[i + k + 1] & 0xFF, other[j + k + 1] & 0xFF);
+		}
+	}
+
+	/**
+	 * Picks the fastest way to read the rows of an image, the same as the threshold.
+	 * @param image Image
+	 * @return Row reader
+	 */
+	private static Rows rows(BufferedImage image)
+	{
+		int layout = Threshold.layout(image);
+		if(layout == Threshold.PACKED)
+			return new PackedRows(image);
+		if(layout == Threshold.INTERLEAVED)
+			return new InterleavedRows(image);
+		return new GenericRows(image);
+	}
+
+	/**
+	 * Reads the rows of an image into the color boxes of their tiles
+	 */
+	private interface Rows
+	{
+		/**
+		 * Widens the boxes of a row of tiles with one row of pixels.
+		 * @param row Row of pixels
+		 * @param box Smallest and largest red, green and blue of every tile of the row
+		 */
+		void add(int row, int[] box);
+	}
+
+	/**
+	 * Rows of an image whose pixels are packed into ints
+	 */
+	private static class PackedRows implements Rows
+	{
+		/**
+		 * Packed pixels
+		 */
+		private final int[] data;
+		/**
+		 * Width of the image, distance between rows and offset of the first pixel
+		 */
+		private final int width, stride, base;
+		/**
+		 * Position of the channels in a packed pixel
+		 */
+		private final int rShift, gShift, bShift;
+
+		/**
+		 * Reads the layout of an image
+		 */
+		private PackedRows(BufferedImage image)
+		{
+			Raster raster = image.getRaster();
+			SinglePixelPackedSampleModel sm = (SinglePixelPackedSampleModel)raster.getSampleModel();
+			DirectColorModel cm = (DirectColorModel)image.getColorModel();
+			data = ((DataBufferInt)raster.getDataBuffer()).getData();
+			width = image.getWidth();
+			stride = sm.getScanlineStride();
+			base = raster.getDataBuffer().getOffset()
+					+ sm.getOffset(-raster.getSampleModelTranslateX(), -raster.getSampleModelTranslateY());
+			rShift = Integer.numberOfTrailingZeros(cm.getRedMask());
+			gShift = Integer.numberOfTrailingZeros(cm.getGreenMask());
+			bShift = Integer.numberOfTrailingZeros(cm.getBlueMask());
+		}
+
+		@Override
+		public void add(int row, int[] box)
+		{
+			int offset = base + row * stride, pixel, r, g, b;
+			for(int x = 0, i = 0; x < width; i += BOX){
+				int end = Math.min(width, x + TILE_SIZE);
+				int minR = box[i], maxR = box[i + 1], minG = box[i + 2], maxG = box[i + 3], minB = box[i + 4], maxB = box[i + 5];
+				for(; x < end; x++){
+					pixel = data[offset + x];
+					r = (pixel >>> rShift) & 0xFF;
+					g = (pixel >>> gShift) & 0xFF;
+					b = (pixel >>> bShift) & 0xFF;
+					minR = Math.min(minR, r);
+					maxR = Math.max(maxR, r);
+					minG = Math.min(minG, g);
+					maxG = Math.max(maxG, g);
+					minB = Math.min(minB, b);
+					maxB = Math.max(maxB, b);
+				}
+				box[i] = minR; box[i + 1] = maxR; box[i + 2] = minG; box[i + 3] = maxG; box[i + 4] = minB; box[i + 5] = maxB;
+			}
+		}
+	}
+
+	/**
+	 * Rows of an image whose samples are interleaved bytes
+	 */
+	private static class InterleavedRows implements Rows
+	{
+		/**
+		 * Samples
+		 */
+		private final byte[] data;
+		/**
+		 * Width of the image, distance between rows and between pixels
+		 */
+		private final int width, stride, pixelStride;
+		/**
+		 * Offset of the channels of the first pixel
+		 */
+		private final int rOff, gOff, bOff;
+
+		/**
+		 * Reads the layout of an image
+		 */
+		private InterleavedRows(BufferedImage image)
+		{
+			Raster raster = image.getRaster();
+			ComponentSampleModel sm = (ComponentSampleModel)raster.getSampleModel();
+			data = ((DataBufferByte)raster.getDataBuffer()).getData();
+			width = image.getWidth();
+			stride = sm.getScanlineStride();
+			pixelStride = sm.getPixelStride();
+			int tx = -raster.getSampleModelTranslateX(), ty = -raster.getSampleModelTranslateY();
+			int dbOffset = raster.getDataBuffer().getOffset();
+			rOff = dbOffset + sm.getOffset(tx, ty, 0);
+			gOff = dbOffset + sm.getOffset(tx, ty, 1);
+			bOff = dbOffset + sm.getOffset(tx, ty, 2);
+		}
+
+		@Override
+		public void add(int row, int[] box)
+		{
+			int p = row * stride, r, g, b;
+			for(int x = 0, i = 0; x < width; i += BOX){
+				int end = Math.min(width, x + TILE_SIZE);
+				int minR = box[i], maxR = box[i + 1], minG = box[i + 2], maxG = box[i + 3], minB = box[i + 4], maxB = box[i + 5];
+				for(; x < end; x++, p += pixelStride){
+					r = data[rOff + p] & 0xFF;
+					g = data[gOff + p] & 0xFF;
+					b = data[bOff + p] & 0xFF;
+					minR = Math.min(minR, r);
+					maxR = Math.max(maxR, r);
+					minG = Math.min(minG, g);
+					maxG = Math.max(maxG, g);
+					minB = Math.min(minB, b);
+					maxB = Math.max(maxB, b);
+				}
+				box[i] = minR; box[i + 1] = maxR; box[i + 2] = minG; box[i + 3] = maxG; box[i + 4] = minB; box[i + 5] = maxB;
+			}
+		}
+	}
+
+	/**
+	 * Rows of any other image, read as ARGB values
+	 */
+	private static class GenericRows implements Rows
+	{
+		/**
+		 * Image
+		 */
+		private final BufferedImage image;
+		/**
+		 * One row of ARGB values
+		 */
+		private final int[] rgb;
+
+		/**
+		 * Creates a reader for an image
+		 */
+		private GenericRows(BufferedImage image)
+		{
+			this.image = image;
+			this.rgb = new int[image.getWidth()];
+		}
+
+		@Override
+		public void add(int row, int[] box)
+		{
+			int width = rgb.length, r, g, b;
+			image.getRGB(0, row, width, 1, rgb, 0, width);
+			for(int x = 0, i = 0; x < width; i += BOX){
+				int end = Math.min(width, x + TILE_SIZE);
+				int minR = box[i], maxR = box[i + 1], minG = box[i + 2], maxG = box[i + 3], minB = box[i + 4], maxB = box[i + 5];
+				for(; x < end; x++){
+					r = (rgb[x] >> 16) & 0xFF;
+					g = (rgb[x] >> 8) & 0xFF;
+					b = rgb[x] & 0xFF;
+					minR = Math.min(minR, r);
+					maxR = Math.max(maxR, r);
+					minG = Math.min(minG, g);
+					maxG = Math.max(maxG, g);
+					minB = Math.min(minB, b);
+					maxB = Math.max(maxB, b);
+				}
+				box[i] = minR; box[i + 1] = maxR; box[i + 2] = minG; box[i + 3] = maxG; box[i + 4] = minB; box[i + 5] = maxB;
+			}
+		}
+	}
+}
@@ -41,6 +41,21 @@
 
   <output id="amount" name="amount" for="rangeInput">5</output>
 
+  <h4>Optional: only recolor the largest blobs. Leave empty to recolor every blob.</h4>
+  <label for="k">Number of blobs:</label>
+  <input name = "k" type="number" id="k" min = "1"><br>
+
+  <h4>Optional: only look inside these rectangles, as x,y,width,height separated by semicolons.</h4>
+  <label for="roi">Regions of interest:</label>
+  <input name = "roi" type="text" id="roi" placeholder="0,0,320,240"><br>
+
+  <h4>Optional: also join pixels that only touch on a corner, for thin diagonal lines.</h4>
+  <label for="connectivity">Connectivity:</label>
+  <select name = "connectivity" id="connectivity">
+    <option value="4">4 (edges)</option>
+    <option value="8">8 (edges and corners)</option>
+  </select><br>
+
  <br><input type="submit">
 </form>
 </body>